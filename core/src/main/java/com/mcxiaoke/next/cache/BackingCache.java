@@ -0,0 +1,37 @@
+package com.mcxiaoke.next.cache;
+
+/**
+ * Cache holding the entries of {@link MemoryCacheImpl}, expiration and refresh
+ * read entries through {@link #peek(Object)}, so maintenance is not counted
+ * in stats, presence checks use {@link #containsKey(Object)}.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 21:10
+ */
+interface BackingCache<K, V> extends IMemoryCache<K, V> {
+
+    interface EvictionListener<K> {
+        /**
+         * Called when key is evicted to make space, not for remove or replace.
+         * May be called with the lock of the cache held, must not call the cache.
+         */
+        void onEvicted(K key);
+    }
+
+    /**
+     * @return value of key, or null if not cached, stats and access frequency
+     * are not updated, lru caches still move the key in access order
+     */
+    V peek(K key);
+
+    /**
+     * @return true if key is cached, nothing is updated
+     */
+    boolean containsKey(K key);
+
+    /**
+     * @param listener notified of evictions by size, null to remove
+     */
+    void setEvictionListener(EvictionListener<K> listener);
+}
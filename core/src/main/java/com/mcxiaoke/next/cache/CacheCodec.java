@@ -0,0 +1,31 @@
+package com.mcxiaoke.next.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes disc cache entries, such as compression, the id is saved in the
+ * entry header to select the codec when reading.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:55
+ */
+public interface CacheCodec {
+
+    /**
+     * @return id saved in entry header, 0-15 are reserved for {@link CacheCodecs}
+     */
+    int id();
+
+    /**
+     * @return stream encoding data written to it into out, closing it closes out
+     */
+    OutputStream encode(OutputStream out) throws IOException;
+
+    /**
+     * @return stream decoding data read from in, closing it closes in
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
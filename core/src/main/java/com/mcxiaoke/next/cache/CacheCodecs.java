@@ -0,0 +1,132 @@
+package com.mcxiaoke.next.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Built-in codecs for {@link DiscCache#setCodec(CacheCodec, int)}.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:58
+ */
+public final class CacheCodecs {
+
+    static final int ID_NONE = 0;
+    static final int ID_DEFLATE = 1;
+    static final int ID_GZIP = 2;
+    static final int ID_RESERVED_MAX = 15;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private CacheCodecs() {
+    }
+
+    /**
+     * stores data as is, used for entries smaller than the compress threshold
+     */
+    public static final CacheCodec NONE = new CacheCodec() {
+        @Override
+        public int id() {
+            return ID_NONE;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(final InputStream in) {
+            return in;
+        }
+    };
+
+    /**
+     * raw deflate without gzip header and crc, smallest and fastest
+     */
+    public static final CacheCodec DEFLATE = new CacheCodec() {
+        @Override
+        public int id() {
+            return ID_DEFLATE;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream out) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // release native memory now instead of in finalizer
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(final InputStream in) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * gzip format, data is verified by crc32
+     */
+    public static final CacheCodec GZIP = new CacheCodec() {
+        @Override
+        public int id() {
+            return ID_GZIP;
+        }
+
+        @Override
+        public OutputStream encode(final OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(final InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * @param custom codec set to the cache, may be null
+     * @return codec of id, or null if unknown
+     */
+    static CacheCodec forId(final int id, final CacheCodec custom) {
+        if (custom != null && custom.id() == id) {
+            return custom;
+        }
+        switch (id) {
+            case ID_NONE:
+                return NONE;
+            case ID_DEFLATE:
+                return DEFLATE;
+            case ID_GZIP:
+                return GZIP;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mcxiaoke.next.cache;
+
+/**
+ * Computes or retrieves the value for a key on cache miss.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 20:10
+ */
+public interface CacheLoader<K, V> {
+
+    /**
+     * @return the value for key, or null if not found
+     * @throws Exception if unable to load the value
+     */
+    V load(K key) throws Exception;
+}
@@ -0,0 +1,198 @@
+package com.mcxiaoke.next.cache;
+
+/**
+ * Immutable snapshot of cache statistics, counters are cumulative since the
+ * cache was created, use {@link #minus(CacheStats)} to get counts of an interval.
+ * <p/>
+ * Evictions are counted by cause: {@link #evictionCount()} for entries dropped
+ * to stay under max size, {@link #expiredCount()} for entries dropped by expiration.
+ * Bytes read and written are counted by disc caches only.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:20
+ */
+public final class CacheStats {
+
+    public static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    private final long expiredCount;
+    private final long bytesRead;
+    private final long bytesWritten;
+
+    /**
+     * @param totalLoadTime total load time in nanoseconds
+     */
+    public CacheStats(long hitCount, long missCount,
+                      long loadSuccessCount, long loadFailureCount, long totalLoadTime,
+                      long evictionCount, long expiredCount,
+                      long bytesRead, long bytesWritten) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+        this.expiredCount = expiredCount;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return hits / requests, 1.0 if there is no request
+     */
+    public double hitRate() {
+        final long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public double missRate() {
+        final long requests = requestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    public long loadCount() {
+        return loadSuccessCount + loadFailureCount;
+    }
+
+    public long loadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    public long loadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return total time spent loading in nanoseconds
+     */
+    public long totalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * @return average load time in nanoseconds
+     */
+    public double averageLoadPenalty() {
+        final long loads = loadCount();
+        return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    /**
+     * @return number of entries evicted by size
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of entries removed because they expired
+     */
+    public long expiredCount() {
+        return expiredCount;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return difference of this and other, negative values are clamped to 0
+     */
+    public CacheStats minus(CacheStats other) {
+        return new CacheStats(
+                Math.max(0, hitCount - other.hitCount),
+                Math.max(0, missCount - other.missCount),
+                Math.max(0, loadSuccessCount - other.loadSuccessCount),
+                Math.max(0, loadFailureCount - other.loadFailureCount),
+                Math.max(0, totalLoadTime - other.totalLoadTime),
+                Math.max(0, evictionCount - other.evictionCount),
+                Math.max(0, expiredCount - other.expiredCount),
+                Math.max(0, bytesRead - other.bytesRead),
+                Math.max(0, bytesWritten - other.bytesWritten));
+    }
+
+    public CacheStats plus(CacheStats other) {
+        return new CacheStats(
+                hitCount + other.hitCount,
+                missCount + other.missCount,
+                loadSuccessCount + other.loadSuccessCount,
+                loadFailureCount + other.loadFailureCount,
+                totalLoadTime + other.totalLoadTime,
+                evictionCount + other.evictionCount,
+                expiredCount + other.expiredCount,
+                bytesRead + other.bytesRead,
+                bytesWritten + other.bytesWritten);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheStats)) {
+            return false;
+        }
+        final CacheStats that = (CacheStats) o;
+        return hitCount == that.hitCount
+                && missCount == that.missCount
+                && loadSuccessCount == that.loadSuccessCount
+                && loadFailureCount == that.loadFailureCount
+                && totalLoadTime == that.totalLoadTime
+                && evictionCount == that.evictionCount
+                && expiredCount == that.expiredCount
+                && bytesRead == that.bytesRead
+                && bytesWritten == that.bytesWritten;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = hitCount;
+        h = 31 * h + missCount;
+        h = 31 * h + loadSuccessCount;
+        h = 31 * h + loadFailureCount;
+        h = 31 * h + totalLoadTime;
+        h = 31 * h + evictionCount;
+        h = 31 * h + expiredCount;
+        h = 31 * h + bytesRead;
+        h = 31 * h + bytesWritten;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTime=" + totalLoadTime +
+                ", evictionCount=" + evictionCount +
+                ", expiredCount=" + expiredCount +
+                ", bytesRead=" + bytesRead +
+                ", bytesWritten=" + bytesWritten +
+                '}';
+    }
+}
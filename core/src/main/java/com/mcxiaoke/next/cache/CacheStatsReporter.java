@@ -0,0 +1,113 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports stats of registered caches to a listener periodically,
+ * with the totals and the counts since the previous report.
+ * <pre>
+ *     CacheStatsReporter reporter = new CacheStatsReporter(listener)
+ *             .add("images", imageCache)
+ *             .add("json", discCache);
+ *     reporter.start(60 * 1000L);
+ * </pre>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:50
+ */
+public class CacheStatsReporter {
+
+    public interface Listener {
+        /**
+         * @param total    stats since the cache was created
+         * @param interval stats since the previous report
+         */
+        void onReport(String name, CacheStats total, CacheStats interval);
+    }
+
+    private interface Source {
+        CacheStats stats();
+    }
+
+    private final Listener mListener;
+    private final Map<String, Source> mSources = new LinkedHashMap<String, Source>();
+    private final Map<String, CacheStats> mLastStats = new LinkedHashMap<String, CacheStats>();
+    private ScheduledExecutorService mExecutor;
+
+    public CacheStatsReporter(final Listener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null.");
+        }
+        mListener = listener;
+    }
+
+    public synchronized CacheStatsReporter add(final String name, final IMemoryCache<?, ?> cache) {
+        mSources.put(name, new Source() {
+            @Override
+            public CacheStats stats() {
+                return cache.stats();
+            }
+        });
+        mLastStats.put(name, cache.stats());
+        return this;
+    }
+
+    public synchronized CacheStatsReporter add(final String name, final IDiscCache cache) {
+        mSources.put(name, new Source() {
+            @Override
+            public CacheStats stats() {
+                return cache.stats();
+            }
+        });
+        mLastStats.put(name, cache.stats());
+        return this;
+    }
+
+    public synchronized void remove(final String name) {
+        mSources.remove(name);
+        mLastStats.remove(name);
+    }
+
+    /**
+     * @param period report period in millis
+     */
+    public synchronized void start(final long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period <= 0");
+        }
+        stop();
+        mExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadUtils.CounterThreadFactory("cache-stats"));
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * report all caches now, on the calling thread
+     */
+    public synchronized void report() {
+        for (Map.Entry<String, Source> entry : mSources.entrySet()) {
+            final String name = entry.getKey();
+            final CacheStats total = entry.getValue().stats();
+            final CacheStats last = mLastStats.put(name, total);
+            mListener.onReport(name, total, last == null ? total : total.minus(last));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.mcxiaoke.next.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import com.mcxiaoke.next.utils.IOUtils;
+import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Warm start for memory cache, the most recently accessed keys are saved to a file
+ * on trim or shutdown, after restart they are loaded from disc cache into memory
+ * cache in background, bounded by time and bytes.
+ * <pre>
+ *     final CacheWarmer&lt;Bitmap&gt; warmer = new CacheWarmer&lt;Bitmap&gt;(tieredCache,
+ *             new File(context.getCacheDir(), "images.hotkeys"));
+ *     context.registerComponentCallbacks(warmer);
+ *     warmer.loadAsync(2000, 4 * 1024 * 1024);
+ * </pre>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 00:30
+ */
+public class CacheWarmer<V> implements ComponentCallbacks2 {
+    public static final String TAG = CacheWarmer.class.getSimpleName();
+
+    public static final int MAX_KEYS_DEFAULT = 200;
+
+    private static final int FILE_MAGIC = 0x4e58484b;
+    private static final int FILE_VERSION = 1;
+    /**
+     * keys read from disc cache in one batch
+     */
+    private static final int LOAD_BATCH_SIZE = 16;
+
+    private static final Executor sExecutor = ThreadUtils.newSingleThreadExecutor("cache-warmer");
+    private static boolean sDebug;
+
+    private final IMemoryCache<String, V> mMemoryCache;
+    private final IDiscCache mDiscCache;
+    private final TieredCache.Converter<V> mConverter;
+    private final File mFile;
+    private volatile int mMaxKeys = MAX_KEYS_DEFAULT;
+
+    public CacheWarmer(final TieredCache<V> cache, final File file) {
+        this(cache.getMemoryCache(), cache.getDiscCache(), cache.getDiscConverter(), file);
+    }
+
+    /**
+     * @param file file of saved keys, should not be inside the disc cache dir
+     */
+    public CacheWarmer(final IMemoryCache<String, V> memoryCache,
+                       final IDiscCache discCache,
+                       final TieredCache.Converter<V> converter,
+                       final File file) {
+        if (memoryCache == null || discCache == null || converter == null || file == null) {
+            throw new NullPointerException("memoryCache, discCache, converter and file must not be null.");
+        }
+        mMemoryCache = memoryCache;
+        mDiscCache = discCache;
+        mConverter = converter;
+        mFile = file;
+    }
+
+    public static void setDebug(final boolean debug) {
+        sDebug = debug;
+    }
+
+    /**
+     * @param maxKeys max number of keys saved
+     */
+    public void setMaxKeys(final int maxKeys) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys <= 0");
+        }
+        mMaxKeys = maxKeys;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * save the most recently accessed keys of memory cache, most recent first
+     *
+     * @return number of keys saved
+     */
+    public int save() {
+        final List<String> keys = new ArrayList<String>(mMemoryCache.snapshot().keySet());
+        final int count = Math.min(keys.size(), mMaxKeys);
+        final File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(count);
+            // snapshot is ordered from least recently accessed
+            for (int i = keys.size() - 1; i >= keys.size() - count; i--) {
+                output.writeUTF(keys.get(i));
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("rename failed: " + temp);
+            }
+            if (sDebug) {
+                LogUtils.v(TAG, "save() count=" + count + " file=" + mFile);
+            }
+            return count;
+        } catch (IOException e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "save() error=" + e);
+            }
+            IOUtils.delete(temp);
+            return 0;
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    public void saveAsync() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * load saved keys from disc cache into memory cache, hottest first,
+     * keys in memory when loading starts are skipped
+     *
+     * @param maxMillis stop after this many millis, 0 means no limit
+     * @param maxBytes  stop after this many bytes read from disc, 0 means no limit
+     * @return number of entries loaded
+     */
+    public int load(final long maxMillis, final long maxBytes) {
+        final List<String> keys = readKeys();
+        // not get() for each key, would count as misses and change access order
+        final Set<String> present = mMemoryCache.snapshot().keySet();
+        final long deadline = maxMillis > 0 ? System.currentTimeMillis() + maxMillis : Long.MAX_VALUE;
+        final long budget = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        long bytes = 0;
+        int loaded = 0;
+        int index = 0;
+        while (index < keys.size() && bytes < budget && System.currentTimeMillis() < deadline) {
+            final List<String> batch = new ArrayList<String>(LOAD_BATCH_SIZE);
+            while (index < keys.size() && batch.size() < LOAD_BATCH_SIZE) {
+                final String key = keys.get(index++);
+                if (!present.contains(key)) {
+                    batch.add(key);
+                }
+            }
+            for (Map.Entry<String, byte[]> entry : mDiscCache.getAll(batch).entrySet()) {
+                if (bytes >= budget) {
+                    break;
+                }
+                bytes += entry.getValue().length;
+                try {
+                    mMemoryCache.put(entry.getKey(), mConverter.decode(entry.getValue()));
+                    loaded++;
+                } catch (IOException e) {
+                    if (sDebug) {
+                        LogUtils.e(TAG, "load() key=" + entry.getKey() + " error=" + e);
+                    }
+                }
+            }
+        }
+        if (sDebug) {
+            LogUtils.v(TAG, "load() loaded=" + loaded + " bytes=" + bytes);
+        }
+        return loaded;
+    }
+
+    public void loadAsync(final long maxMillis, final long maxBytes) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(maxMillis, maxBytes);
+            }
+        });
+    }
+
+    /**
+     * save keys when app goes to background
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            saveAsync();
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+
+    private List<String> readKeys() {
+        final List<String> keys = new ArrayList<String>();
+        if (!mFile.exists()) {
+            return keys;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                throw new IOException("invalid keys file: " + mFile);
+            }
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.add(input.readUTF());
+            }
+        } catch (IOException e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "readKeys() error=" + e);
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,462 @@
+package com.mcxiaoke.next.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lock striped lru cache, keys are spread over several {@link LruCacheCompat}
+ * segments, each segment has its own lock and its own share of maxSize,
+ * so threads accessing different segments never contend.
+ * Eviction order is lru inside a segment, approximate lru for the whole cache.
+ * An entry heavier than the share of its segment, maxSize / segment count, is
+ * never cached, even if it fits in maxSize, put removes the old value of its key
+ * instead of evicting the whole segment.
+ * <p/>
+ * Entries put with expires are scheduled in a {@link TimerWheel} of their segment,
+ * guarded by the lock of the segment, wheels are created when the first entry
+ * with expires is put, until then no operation takes an extra lock.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 11:05
+ */
+class ConcurrentLruCacheImpl<K, V> implements BackingCache<K, V> {
+
+    static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+    static final int MAX_CONCURRENCY_LEVEL = 64;
+
+    private final List<LruCacheCompat<K, V>> mSegments;
+    private final int mSegmentMask;
+    private final int mMaxSize;
+    private final Weigher<? super K, ? super V> mWeigher;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>(mStats);
+    /**
+     * wheel of each segment, null until an entry with expires is put in it,
+     * read and written with the lock of the segment held
+     */
+    private final List<TimerWheel<K>> mWheels;
+    private volatile boolean mExpiring;
+
+    private final TimerWheel.Listener<K> mExpirer = new TimerWheel.Listener<K>() {
+        @Override
+        public long onExpired(final K key, final long now) {
+            // called with the lock of the segment held
+            if (segmentFor(key).remove(key) != null) {
+                mStats.recordExpired();
+            }
+            return 0;
+        }
+    };
+
+    private final EvictionListener<K> mOnEvicted = new EvictionListener<K>() {
+        @Override
+        public void onEvicted(final K key) {
+            if (mExpiring) {
+                final int index = indexFor(key);
+                final LruCacheCompat<K, V> segment = mSegments.get(index);
+                synchronized (segment) {
+                    final TimerWheel<K> wheel = mWheels.get(index);
+                    // may be put again after eviction
+                    if (wheel != null && !segment.containsKey(key)) {
+                        wheel.deschedule(key);
+                    }
+                }
+            }
+            final EvictionListener<K> listener = mEvictionListener;
+            if (listener != null) {
+                listener.onEvicted(key);
+            }
+        }
+    };
+    private volatile EvictionListener<K> mEvictionListener;
+
+    public ConcurrentLruCacheImpl(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    public ConcurrentLruCacheImpl(int maxSize, int concurrencyLevel) {
+        this(maxSize, concurrencyLevel, Weighers.<K, V>singleton());
+    }
+
+    /**
+     * @param weigher each segment evicts by total weight of its entries
+     */
+    public ConcurrentLruCacheImpl(int maxSize, int concurrencyLevel,
+                                  final Weigher<? super K, ? super V> weigher) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        final int level = Math.min(Math.min(concurrencyLevel, MAX_CONCURRENCY_LEVEL), maxSize);
+        // round down to power of two, segment index is hash & mask
+        final int count = Integer.highestOneBit(level);
+        final List<LruCacheCompat<K, V>> segments = new ArrayList<LruCacheCompat<K, V>>(count);
+        mSegmentMask = count - 1;
+        mMaxSize = maxSize;
+        mWeigher = weigher;
+        final int segmentSize = maxSize / count;
+        final int remainder = maxSize % count;
+        for (int i = 0; i < count; i++) {
+            segments.add(LruCacheImpl.newLruCache(
+                    i < remainder ? segmentSize + 1 : segmentSize, weigher, mOnEvicted));
+        }
+        mSegments = Collections.unmodifiableList(segments);
+        mWheels = new ArrayList<TimerWheel<K>>(Collections.<TimerWheel<K>>nCopies(count, null));
+    }
+
+    @Override
+    public V get(final K key) {
+        final int index = indexFor(key);
+        V value = mSegments.get(index).get(key);
+        if (value != null && mExpiring && removeIfExpired(index, key)) {
+            value = null;
+        }
+        if (value == null) {
+            mStats.recordMiss();
+        } else {
+            mStats.recordHit();
+        }
+        return value;
+    }
+
+    @Override
+    public V peek(final K key) {
+        return segmentFor(key).peek(key);
+    }
+
+    @Override
+    public boolean containsKey(final K key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    @Override
+    public void setEvictionListener(final EvictionListener<K> listener) {
+        mEvictionListener = listener;
+    }
+
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    /**
+     * keys are grouped by segment, each segment is locked once
+     */
+    @Override
+    public Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final List<List<K>> groups = groupBySegment(keys);
+        final Map<K, V> found = new HashMap<K, V>();
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i) != null) {
+                final Map<K, V> values = mSegments.get(i).getAll(groups.get(i));
+                if (mExpiring) {
+                    final Iterator<K> it = values.keySet().iterator();
+                    while (it.hasNext()) {
+                        if (removeIfExpired(i, it.next())) {
+                            it.remove();
+                        }
+                    }
+                }
+                found.putAll(values);
+            }
+        }
+        final Map<K, V> result = new LinkedHashMap<K, V>(found.size());
+        int misses = 0;
+        for (K key : keys) {
+            final V value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
+            } else {
+                misses++;
+            }
+        }
+        mStats.recordHits(result.size());
+        mStats.recordMisses(misses);
+        return result;
+    }
+
+    /**
+     * @return previous value, the new value is not cached if it is heavier than the segment
+     */
+    @Override
+    public V put(final K key, final V value) {
+        final int index = indexFor(key);
+        final LruCacheCompat<K, V> segment = mSegments.get(index);
+        if (!mExpiring) {
+            if (isTooHeavy(segment, key, value)) {
+                return segment.remove(key);
+            }
+            return segment.put(key, value);
+        }
+        synchronized (segment) {
+            final V previous = isTooHeavy(segment, key, value)
+                    ? segment.remove(key) : segment.put(key, value);
+            final TimerWheel<K> wheel = mWheels.get(index);
+            if (wheel != null) {
+                wheel.deschedule(key);
+                wheel.advance(System.currentTimeMillis());
+            }
+            return previous;
+        }
+    }
+
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> map) {
+        final List<Map<K, V>> groups = new ArrayList<Map<K, V>>(
+                Collections.<Map<K, V>>nCopies(mSegments.size(), null));
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            final K key = entry.getKey();
+            final int index = indexFor(key);
+            final LruCacheCompat<K, V> segment = mSegments.get(index);
+            if (isTooHeavy(segment, key, entry.getValue())) {
+                segment.remove(key);
+                continue;
+            }
+            if (groups.get(index) == null) {
+                groups.set(index, new HashMap<K, V>());
+            }
+            groups.get(index).put(key, entry.getValue());
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i) != null) {
+                final LruCacheCompat<K, V> segment = mSegments.get(i);
+                if (!mExpiring) {
+                    segment.putAll(groups.get(i));
+                    continue;
+                }
+                synchronized (segment) {
+                    segment.putAll(groups.get(i));
+                    final TimerWheel<K> wheel = mWheels.get(i);
+                    if (wheel != null) {
+                        for (K key : groups.get(i).keySet()) {
+                            wheel.deschedule(key);
+                        }
+                        wheel.advance(System.currentTimeMillis());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param expires time to live in millis, 0 means never expires
+     */
+    @Override
+    public V put(final K key, final V value, final long expires) {
+        if (expires <= 0) {
+            return put(key, value);
+        }
+        final int index = indexFor(key);
+        final LruCacheCompat<K, V> segment = mSegments.get(index);
+        synchronized (segment) {
+            final long now = System.currentTimeMillis();
+            TimerWheel<K> wheel = mWheels.get(index);
+            if (wheel == null) {
+                wheel = new TimerWheel<K>(mExpirer, now);
+                mWheels.set(index, wheel);
+                mExpiring = true;
+            }
+            if (isTooHeavy(segment, key, value)) {
+                wheel.deschedule(key);
+                return segment.remove(key);
+            }
+            final V previous = segment.put(key, value);
+            wheel.schedule(key, now + expires);
+            wheel.advance(now);
+            return previous;
+        }
+    }
+
+    @Override
+    public V remove(final K key) {
+        final int index = indexFor(key);
+        final LruCacheCompat<K, V> segment = mSegments.get(index);
+        if (!mExpiring) {
+            return segment.remove(key);
+        }
+        synchronized (segment) {
+            final TimerWheel<K> wheel = mWheels.get(index);
+            if (wheel != null) {
+                wheel.deschedule(key);
+            }
+            return segment.remove(key);
+        }
+    }
+
+    @Override
+    public void removeAll(final Iterable<? extends K> keys) {
+        final List<List<K>> groups = groupBySegment(keys);
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i) != null) {
+                final LruCacheCompat<K, V> segment = mSegments.get(i);
+                if (!mExpiring) {
+                    segment.removeAll(groups.get(i));
+                    continue;
+                }
+                synchronized (segment) {
+                    final TimerWheel<K> wheel = mWheels.get(i);
+                    if (wheel != null) {
+                        for (K key : groups.get(i)) {
+                            wheel.deschedule(key);
+                        }
+                    }
+                    segment.removeAll(groups.get(i));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < mSegments.size(); i++) {
+            final LruCacheCompat<K, V> segment = mSegments.get(i);
+            if (!mExpiring) {
+                segment.evictAll();
+                continue;
+            }
+            synchronized (segment) {
+                segment.evictAll();
+                final TimerWheel<K> wheel = mWheels.get(i);
+                if (wheel != null) {
+                    wheel.clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LruCacheCompat<K, V> segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * segments are copied one by one, the result is ordered by segment,
+     * then from least recently accessed to most recently accessed,
+     * expired entries are skipped
+     */
+    @Override
+    public Map<K, V> snapshot() {
+        final Map<K, V> map = new LinkedHashMap<K, V>();
+        for (int i = 0; i < mSegments.size(); i++) {
+            final LruCacheCompat<K, V> segment = mSegments.get(i);
+            if (!mExpiring) {
+                map.putAll(segment.snapshot());
+                continue;
+            }
+            synchronized (segment) {
+                final Map<K, V> values = segment.snapshot();
+                final TimerWheel<K> wheel = mWheels.get(i);
+                if (wheel != null) {
+                    final long now = System.currentTimeMillis();
+                    final Iterator<K> it = values.keySet().iterator();
+                    while (it.hasNext()) {
+                        final long deadline = wheel.getDeadline(it.next());
+                        if (deadline > 0 && deadline <= now) {
+                            it.remove();
+                        }
+                    }
+                }
+                map.putAll(values);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public CacheStats stats() {
+        long evictionCount = 0;
+        for (LruCacheCompat<K, V> segment : mSegments) {
+            evictionCount += segment.evictionCount();
+        }
+        return mStats.snapshot(evictionCount);
+    }
+
+    /**
+     * @return count of keys in the timer wheels, for tests
+     */
+    int scheduledCount() {
+        int count = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            synchronized (mSegments.get(i)) {
+                final TimerWheel<K> wheel = mWheels.get(i);
+                count += wheel == null ? 0 : wheel.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if key was expired and is removed
+     */
+    private boolean removeIfExpired(final int index, final K key) {
+        final LruCacheCompat<K, V> segment = mSegments.get(index);
+        synchronized (segment) {
+            final TimerWheel<K> wheel = mWheels.get(index);
+            if (wheel == null) {
+                return false;
+            }
+            final long deadline = wheel.getDeadline(key);
+            if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+                segment.remove(key);
+                wheel.deschedule(key);
+                mStats.recordExpired();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private LruCacheCompat<K, V> segmentFor(final K key) {
+        return mSegments.get(indexFor(key));
+    }
+
+    /**
+     * putting an entry heavier than the segment would evict all other entries, then itself
+     */
+    private boolean isTooHeavy(final LruCacheCompat<K, V> segment, final K key, final V value) {
+        return value != null && mWeigher.weigh(key, value) > segment.maxSize();
+    }
+
+    private int indexFor(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        int h = key.hashCode();
+        // spread high bits, same as HashMap
+        h ^= (h >>> 16);
+        return h & mSegmentMask;
+    }
+
+    /**
+     * @return keys of each segment, null for segments without keys
+     */
+    private List<List<K>> groupBySegment(final Iterable<? extends K> keys) {
+        final List<List<K>> groups = new ArrayList<List<K>>(
+                Collections.<List<K>>nCopies(mSegments.size(), null));
+        for (K key : keys) {
+            final int index = indexFor(key);
+            if (groups.get(index) == null) {
+                groups.set(index, new ArrayList<K>());
+            }
+            groups.get(index).add(key);
+        }
+        return groups;
+    }
+}
@@ -2,17 +2,47 @@ package com.mcxiaoke.next.cache;
 
 import android.content.Context;
 import com.mcxiaoke.next.Charsets;
+import com.mcxiaoke.next.io.CountingOutputStream;
+import com.mcxiaoke.next.io.HashedNameGenerator;
 import com.mcxiaoke.next.io.NameGenerator;
 import com.mcxiaoke.next.io.SafeFileNameGenerator;
 import com.mcxiaoke.next.utils.AndroidUtils;
 import com.mcxiaoke.next.utils.IOUtils;
 import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: mcxiaoke
@@ -30,12 +60,55 @@ public class DiscCache implements IDiscCache {
     public static final int MODE_AUTO = 2;
     private int mMode = MODE_AUTO;
     public static final String DIR_NAME_DEFAULT = ".disc";
+    public static final int CODEC_THRESHOLD_DEFAULT = 1024;
+    /**
+     * entry header written when codec is set: magic, codec id, decoded length
+     */
+    private static final byte[] HEADER_MAGIC = {0, 'N', 'X', 'C'};
+    private static final int HEADER_SIZE = HEADER_MAGIC.length + 1 + 8;
+    /**
+     * getAll reads in at most this many slices, one slice by the caller
+     */
+    private static final int READ_PARALLELISM = 4;
+    private static final int READ_SLICE_MIN = 8;
+    private static ExecutorService sReadExecutor;
+    /**
+     * incremental trim runs in slices of this many millis, with a pause between slices
+     */
+    private static final long TRIM_SLICE_MILLIS = 20;
+    private static final long TRIM_SLICE_DELAY = 100;
+    private static ScheduledExecutorService sTrimExecutor;
     private static boolean sDebug;
     private Context mContext;
     private File mCacheDir;
     private String mCacheDirName;
     private NameGenerator mGenerator = new SafeFileNameGenerator();
     private Charset mCharset = Charsets.UTF_8;
+    private long mMaxSize;
+    private boolean mSharded;
+    private volatile DiscJournal mJournal;
+    /**
+     * keep the journal as index even if max size is not set
+     */
+    private boolean mIndexed;
+    private final StatsCounter mStats = new StatsCounter();
+    private volatile CacheCodec mCodec;
+    private volatile int mCodecThreshold;
+    private volatile DiscCacheManager mManager;
+    private final DiscJournal.SizeListener mSizeListener = new DiscJournal.SizeListener() {
+        @Override
+        public void onSizeChanged(final long delta) {
+            final DiscCacheManager manager = mManager;
+            if (manager != null) {
+                manager.onSizeChanged(delta);
+            }
+        }
+    };
+    private volatile NegativeCache<String> mMissing;
+    /**
+     * temp files of editors not committed or aborted yet
+     */
+    private final Set<File> mEditing = new HashSet<File>();
 
     public DiscCache(Context context) {
         this(context, DIR_NAME_DEFAULT);
@@ -46,10 +119,23 @@ public class DiscCache implements IDiscCache {
     }
 
     public DiscCache(Context context, String dirName, int mode) {
+        this(context, dirName, mode, 0);
+    }
+
+    /**
+     * 指定缓存大小上限，超出时在后台按LRU顺序删除文件
+     *
+     * @param maxSize max bytes of cache dir, 0 means no limit
+     */
+    public DiscCache(Context context, String dirName, int mode, long maxSize) {
         if (sDebug) {
-            LogUtils.v(TAG, "DiscCache() cacheDirName=" + dirName);
+            LogUtils.v(TAG, "DiscCache() cacheDirName=" + dirName + " maxSize=" + maxSize);
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
         }
         mContext = context;
+        mMaxSize = maxSize;
         setCacheDir(dirName, mode);
     }
 
@@ -107,63 +193,249 @@ public class DiscCache implements IDiscCache {
         mGenerator = generator;
     }
 
+    /**
+     * 使用两级子目录存放缓存文件，避免单个目录文件过多，
+     * 适合大量缓存文件，建议同时使用{@link HashedNameGenerator}，
+     * 切换后之前的缓存文件不再可用
+     *
+     * @param sharded files are spread over 16 x 256 sub dirs by file name hash
+     */
+    public void setShardedLayout(boolean sharded) {
+        mSharded = sharded;
+    }
+
+    public boolean isShardedLayout() {
+        return mSharded;
+    }
+
+    /**
+     * 设置缓存编码，如压缩，put/get/getBytes/snapshot自动编码和解码，
+     * 编码后的缓存文件头记录codec，之前写入的缓存仍然可以读取。
+     * 没有设置codec时不识别文件头，所有文件按原样读取，已经写入编码缓存后
+     * 如果只想停止压缩，使用 {@link CacheCodecs#NONE}，编码的缓存仍然可以读取
+     *
+     * @param codec     codec such as {@link CacheCodecs#DEFLATE}, null to disable,
+     *                  encoded entries are then read as is
+     * @param threshold entries smaller than threshold bytes are not encoded
+     */
+    public void setCodec(CacheCodec codec, int threshold) {
+        if (sDebug) {
+            LogUtils.v(TAG, "setCodec() codec=" + codec + " threshold=" + threshold);
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold < 0");
+        }
+        mCodecThreshold = threshold;
+        mCodec = codec;
+    }
+
+    public void setCodec(CacheCodec codec) {
+        setCodec(codec, CODEC_THRESHOLD_DEFAULT);
+    }
+
+    public CacheCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * 设置缺失key缓存，最近读取不到的key在ttl内直接返回null，
+     * 不再访问文件系统，写入时自动移除
+     *
+     * @param maxSize max number of missing keys, 0 to disable
+     * @param ttl     time to live of missing keys in millis
+     */
+    public void setNegativeCache(int maxSize, long ttl) {
+        if (sDebug) {
+            LogUtils.v(TAG, "setNegativeCache() maxSize=" + maxSize + " ttl=" + ttl);
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMissing = maxSize == 0 ? null : new NegativeCache<String>(maxSize, ttl);
+    }
+
+    /**
+     * 设置缓存大小上限，使用journal记录文件大小和访问顺序
+     *
+     * @param maxSize max bytes of cache dir, 0 means no limit
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (sDebug) {
+            LogUtils.v(TAG, "setMaxSize() maxSize=" + maxSize);
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMaxSize = maxSize;
+        if (maxSize == 0 && !mIndexed) {
+            closeJournal();
+        } else if (mJournal != null) {
+            mJournal.setMaxSize(maxSize > 0 ? maxSize : Long.MAX_VALUE);
+        } else {
+            checkJournal();
+        }
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
     @Override
     public void put(String key, byte[] data) {
-        checkCacheDir(false);
-        try {
-            if (sDebug) {
-                LogUtils.v(TAG, "put() bytes key=" + key);
-            }
-            IOUtils.writeBytes(getFile(key), data);
-        } catch (IOException ignored) {
-            if (sDebug) {
-                ignored.printStackTrace();
-                LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
-            }
+        if (sDebug) {
+            LogUtils.v(TAG, "put() bytes key=" + key);
         }
+        write(key, data);
     }
 
+    /**
+     * if codec is set, stream is encoded unless it is shorter than codec threshold
+     */
     @Override
     public void put(String key, InputStream stream) {
-        checkCacheDir(false);
+        Editor editor = null;
         try {
             if (sDebug) {
                 LogUtils.v(TAG, "put() stream key=" + key);
             }
-            IOUtils.writeStream(getFile(key), stream);
+            final CacheCodec codec = mCodec;
+            if (codec == null) {
+                editor = edit(key, null);
+                IOUtils.copyLarge(stream, editor.newOutputStream());
+            } else {
+                final byte[] buffer = new byte[mCodecThreshold];
+                int count = 0;
+                int n;
+                while (count < buffer.length
+                        && (n = stream.read(buffer, count, buffer.length - count)) != -1) {
+                    count += n;
+                }
+                // buffer not filled, end of stream reached
+                if (count < buffer.length) {
+                    editor = edit(key, CacheCodecs.NONE);
+                    editor.newOutputStream().write(buffer, 0, count);
+                } else {
+                    editor = edit(key, codec);
+                    final OutputStream output = editor.newOutputStream();
+                    output.write(buffer, 0, count);
+                    IOUtils.copyLarge(stream, output);
+                }
+            }
+            editor.commit();
         } catch (IOException ignored) {
             if (sDebug) {
                 ignored.printStackTrace();
                 LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
             }
+        } finally {
+            IOUtils.closeQuietly(stream);
+            abortQuietly(editor);
         }
     }
 
     @Override
     public void put(String key, String text) {
+        if (sDebug) {
+            LogUtils.v(TAG, "put() string key=" + key);
+        }
+        write(key, text == null ? new byte[0] : text.getBytes(mCharset));
+    }
+
+    /**
+     * 写入缓存，数据先写入临时文件，commit时原子替换缓存文件，
+     * 读取方不会看到写了一半的数据
+     *
+     * @return editor, must call {@link Editor#commit()} or {@link Editor#abort()},
+     * data is encoded if codec is set
+     * @throws IOException if temp file can not be created
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, mCodec);
+    }
+
+    /**
+     * @param codec codec of entry, or null to write without header
+     */
+    private Editor edit(String key, CacheCodec codec) throws IOException {
         checkCacheDir(false);
+        final File file = getFile(key);
+        final File parent = file.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        final File temp;
+        synchronized (mEditing) {
+            // created and registered at once, a journal scan never sees it unregistered
+            temp = File.createTempFile(DiscJournal.EDIT_FILE_PREFIX,
+                    DiscJournal.EDIT_FILE_SUFFIX, parent);
+            mEditing.add(temp);
+        }
+        if (sDebug) {
+            LogUtils.v(TAG, "edit() key=" + key + " temp=" + temp);
+        }
+        return new Editor(key, file, temp, codec);
+    }
+
+    /**
+     * 读取缓存，返回流式读取的快照，不需要把整个文件读入内存，
+     * 快照打开后缓存文件被替换或删除不影响已打开的快照
+     *
+     * @return snapshot, must be closed after use, or null if not found
+     */
+    public Snapshot snapshot(String key) {
+        if (isMissing(key)) {
+            mStats.recordMiss();
+            return null;
+        }
+        final File file = getFile(key);
+        FileInputStream input = null;
         try {
-            if (sDebug) {
-                LogUtils.v(TAG, "put() string key=" + key);
+            input = new FileInputStream(file);
+            final FileChannel channel = input.getChannel();
+            final long size = channel.size();
+            final Snapshot snapshot;
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // read header
+            }
+            if (isEncoded(header.array(), header.position())) {
+                final CacheCodec codec = codecOf(header.array());
+                channel.position(HEADER_SIZE);
+                snapshot = new Snapshot(key, input, codec.decode(input),
+                        header.getLong(HEADER_MAGIC.length + 1), file.lastModified(),
+                        codec != CacheCodecs.NONE);
+            } else {
+                snapshot = new Snapshot(key, input, input, size, file.lastModified(), false);
             }
-            IOUtils.writeString(getFile(key), text);
+            onFileRead(file, size);
+            return snapshot;
         } catch (IOException ignored) {
+            IOUtils.closeQuietly(input);
+            onMissing(key, file, ignored);
+            mStats.recordMiss();
             if (sDebug) {
-                ignored.printStackTrace();
-                LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
+                LogUtils.e(TAG, "snapshot() key=" + key + " error=" + ignored);
             }
+            return null;
         }
     }
 
     @Override
     public String get(String key) {
+        if (isMissing(key)) {
+            mStats.recordMiss();
+            return null;
+        }
+        final File file = getFile(key);
         try {
-            String value = IOUtils.readString(getFile(key), mCharset);
+            String value = new String(read(file), mCharset);
             if (sDebug) {
                 LogUtils.v(TAG, "get() key=" + key + " value=" + value);
             }
             return value;
         } catch (IOException ignored) {
+            onMissing(key, file, ignored);
+            mStats.recordMiss();
             if (sDebug) {
                 ignored.printStackTrace();
                 LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
@@ -183,10 +455,16 @@ public class DiscCache implements IDiscCache {
 
     @Override
     public byte[] getBytes(String key) {
+        if (isMissing(key)) {
+            mStats.recordMiss();
+            return null;
+        }
         File file = getFile(key);
         try {
-            return IOUtils.readBytes(file);
+            return read(file);
         } catch (IOException ignored) {
+            onMissing(key, file, ignored);
+            mStats.recordMiss();
             if (sDebug) {
                 ignored.printStackTrace();
                 LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
@@ -195,47 +473,212 @@ public class DiscCache implements IDiscCache {
         }
     }
 
+    /**
+     * 批量读取，文件按路径排序后分段并行读取，
+     * 结果按keys的顺序返回，不存在的key不包含在结果中，
+     * 缺失key缓存中的key不读取
+     *
+     * @param keys keys
+     * @return key-data map
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        final String[] keyArray = keys.toArray(new String[keys.size()]);
+        final int count = keyArray.length;
+        final File[] files = new File[count];
+        final List<Integer> indexes = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            if (isMissing(keyArray[i])) {
+                mStats.recordMiss();
+            } else {
+                files[i] = getCacheFile(keyArray[i]);
+                indexes.add(i);
+            }
+        }
+        // read in path order, files of same shard dir are read together
+        final Integer[] order = indexes.toArray(new Integer[indexes.size()]);
+        final int readCount = order.length;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return files[lhs].getPath().compareTo(files[rhs].getPath());
+            }
+        });
+        final byte[][] values = new byte[count][];
+        final int slices = Math.max(1, Math.min(READ_PARALLELISM, readCount / READ_SLICE_MIN));
+        final List<Future<?>> futures = new ArrayList<Future<?>>(slices - 1);
+        for (int s = 1; s < slices; s++) {
+            final int from = readCount * s / slices;
+            final int to = readCount * (s + 1) / slices;
+            futures.add(getReadExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    readSlice(keyArray, files, order, values, from, to);
+                }
+            }));
+        }
+        readSlice(keyArray, files, order, values, 0, readCount / slices);
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (sDebug) {
+                        LogUtils.e(TAG, "getAll() error=" + e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                result.put(keyArray[i], values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量保存，按顺序逐个写入
+     *
+     * @param values key-data map
+     */
+    @Override
+    public void putAll(Map<String, byte[]> values) {
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
     @Override
     public boolean remove(String key) {
         File file = getFile(key);
         if (sDebug) {
             LogUtils.v(TAG, "remove() key=" + key + " file=" + file);
         }
+        final DiscJournal journal = mJournal;
+        if (journal != null) {
+            journal.remove(DiscJournal.relativeName(mCacheDir, file));
+        }
         return IOUtils.delete(file);
     }
 
+    @Override
+    public void removeAll(Collection<String> keys) {
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
     @Override
     public void clear() {
         if (sDebug) {
             LogUtils.v(TAG, "clear()");
         }
-        IOUtils.delete(mCacheDir);
-        checkCacheDir(false);
+        synchronized (this) {
+            final DiscJournal journal = mJournal;
+            if (journal != null) {
+                journal.reset();
+            }
+            mJournal = null;
+            IOUtils.delete(mCacheDir);
+            checkCacheDir(false);
+        }
+        final NegativeCache<String> missing = mMissing;
+        if (missing != null) {
+            missing.clear();
+        }
     }
 
+    /**
+     * 删除符合条件的文件，使用索引，不需要遍历缓存目录，
+     * 第一次调用时如果没有索引，扫描一次缓存目录建立索引
+     *
+     * @param filter file filter
+     * @return count of deleted files
+     */
     @Override
     public int delete(FileFilter filter) {
-        File cacheDir = getCacheDir();
-        File[] files = cacheDir.listFiles();
-        if (files == null || files.length == 0) {
-            return 0;
+        final DiscJournal journal = index();
+        final int count = journal != null ? journal.delete(filter) : delete(getCacheDir(), filter);
+        if (sDebug) {
+            LogUtils.v(TAG, "trim() count=" + count);
         }
-        int count = 0;
-        for (File file : files) {
-            if (filter.accept(file)) {
-                if (sDebug) {
-                    LogUtils.v(TAG, "trim() file=" + file.getPath());
-                }
-                // no recursion
-                file.delete();
-            }
+        return count;
+    }
+
+    /**
+     * 删除超过maxAge没有访问或修改的文件，索引按访问顺序排列，只访问过期的文件
+     *
+     * @param maxAge max age in millis
+     * @return count of deleted files
+     */
+    public int trimToAge(long maxAge) {
+        final DiscJournal journal = index();
+        if (journal == null) {
+            return 0;
         }
+        final int count = journal.trimOlderThan(System.currentTimeMillis() - maxAge, Long.MAX_VALUE);
         if (sDebug) {
-            LogUtils.v(TAG, "trim() count=" + count);
+            LogUtils.v(TAG, "trimToAge() maxAge=" + maxAge + " count=" + count);
         }
         return count;
     }
 
+    /**
+     * 在后台低优先级线程分段删除过期文件，每段最多20毫秒，不长时间占用磁盘和锁
+     *
+     * @param maxAge max age in millis
+     */
+    public void trimToAgeAsync(final long maxAge) {
+        final long cutoff = System.currentTimeMillis() - maxAge;
+        getTrimExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiscJournal journal = index();
+                if (journal == null) {
+                    return;
+                }
+                final long deadline = System.nanoTime() + TRIM_SLICE_MILLIS * 1000000L;
+                final int count = journal.trimOlderThan(cutoff, deadline);
+                if (sDebug) {
+                    LogUtils.v(TAG, "trimToAgeAsync() count=" + count);
+                }
+                if (journal.hasOlderThan(cutoff)) {
+                    getTrimExecutor().schedule(this, TRIM_SLICE_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * 删除最久没有访问的文件，直到缓存大小不超过maxSize
+     *
+     * @param maxSize max bytes of cache dir
+     * @return count of deleted files
+     */
+    public int trimToSize(long maxSize) {
+        final DiscJournal journal = index();
+        return journal == null ? 0 : journal.trimToSize(maxSize);
+    }
+
+    /**
+     * hits, misses and bytes read are counted by get, getBytes and snapshot,
+     * evictions are counted when max size is set
+     */
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot();
+    }
+
     @Override
     public File getCacheDir() {
         checkCacheDir(false);
@@ -248,7 +691,20 @@ public class DiscCache implements IDiscCache {
 
     @Override
     public long getCacheSize() {
-        return IOUtils.sizeOf(getCacheDir());
+        final File cacheDir = getCacheDir();
+        final DiscJournal journal = mJournal;
+        if (journal != null) {
+            return journal.size();
+        }
+        return IOUtils.sizeOf(cacheDir);
+    }
+
+    void setManager(DiscCacheManager manager) {
+        mManager = manager;
+    }
+
+    DiscCacheManager getManager() {
+        return mManager;
     }
 
     private void checkCacheDir(boolean forceSet) {
@@ -261,6 +717,239 @@ public class DiscCache implements IDiscCache {
         if (sDebug) {
             LogUtils.v(TAG, "checkCacheDir() cacheDir=" + mCacheDir + " forceSet=" + forceSet);
         }
+        checkJournal();
+    }
+
+    /**
+     * journal as index, built by scanning the cache dir once if missing,
+     * then kept and saved like the journal of size bounded cache
+     */
+    private synchronized DiscJournal index() {
+        if (mJournal == null) {
+            mIndexed = true;
+            checkCacheDir(false);
+        }
+        return mJournal;
+    }
+
+    /**
+     * open journal if max size is set or index is used, reopen it when cache dir changed
+     */
+    private synchronized void checkJournal() {
+        if ((mMaxSize <= 0 && !mIndexed) || mCacheDir == null) {
+            return;
+        }
+        if (mJournal != null && mJournal.getDirectory().equals(mCacheDir)) {
+            return;
+        }
+        closeJournal();
+        final DiscJournal journal = new DiscJournal(mCacheDir,
+                mMaxSize > 0 ? mMaxSize : Long.MAX_VALUE, mStats, mEditing);
+        journal.setDebug(sDebug);
+        journal.setSizeListener(mSizeListener);
+        journal.open();
+        mJournal = journal;
+    }
+
+    private void finishEdit(File temp) {
+        synchronized (mEditing) {
+            mEditing.remove(temp);
+        }
+    }
+
+    private synchronized void closeJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    private void onFileWritten(File file) {
+        mStats.recordWrite(file.length());
+        final DiscJournal journal = mJournal;
+        if (journal != null) {
+            journal.put(DiscJournal.relativeName(mCacheDir, file), file.length());
+        }
+    }
+
+    private void onFileRead(File file, long length) {
+        mStats.recordHit();
+        mStats.recordRead(length);
+        final DiscJournal journal = mJournal;
+        if (journal != null) {
+            journal.read(DiscJournal.relativeName(mCacheDir, file));
+        }
+    }
+
+    /**
+     * delete accepted files in dir and shard dirs
+     */
+    private int delete(File dir, FileFilter filter) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        int count = 0;
+        final DiscJournal journal = mJournal;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += delete(file, filter);
+                continue;
+            }
+            if (DiscJournal.isJournalFile(file) || DiscJournal.isTempFile(file)) {
+                continue;
+            }
+            if (filter.accept(file)) {
+                if (sDebug) {
+                    LogUtils.v(TAG, "trim() file=" + file.getPath());
+                }
+                if (journal != null) {
+                    journal.remove(DiscJournal.relativeName(mCacheDir, file));
+                }
+                if (file.delete()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void readSlice(String[] keys, File[] files, Integer[] order,
+                           byte[][] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final int index = order[i];
+            try {
+                values[index] = read(files[index]);
+            } catch (IOException ignored) {
+                onMissing(keys[index], files[index], ignored);
+                mStats.recordMiss();
+                if (sDebug) {
+                    LogUtils.e(TAG, "getAll() file=" + files[index] + " error=" + ignored);
+                }
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTrimExecutor() {
+        if (sTrimExecutor == null) {
+            final ThreadFactory factory = new ThreadUtils.CounterThreadFactory("disc-cache-trim");
+            sTrimExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = factory.newThread(r);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sTrimExecutor;
+    }
+
+    private static synchronized ExecutorService getReadExecutor() {
+        if (sReadExecutor == null) {
+            sReadExecutor = ThreadUtils.newCachedThreadPool("disc-cache-read");
+        }
+        return sReadExecutor;
+    }
+
+    private void write(String key, byte[] data) {
+        Editor editor = null;
+        try {
+            CacheCodec codec = mCodec;
+            if (codec != null && data.length < mCodecThreshold) {
+                codec = CacheCodecs.NONE;
+            }
+            editor = edit(key, codec);
+            editor.newOutputStream().write(data);
+            editor.commit();
+        } catch (IOException ignored) {
+            if (sDebug) {
+                ignored.printStackTrace();
+                LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
+            }
+        } finally {
+            abortQuietly(editor);
+        }
+    }
+
+    private boolean isMissing(String key) {
+        final NegativeCache<String> missing = mMissing;
+        return missing != null && missing.contains(key);
+    }
+
+    /**
+     * remember key if its file does not exist, other read errors are not cached
+     */
+    private void onMissing(String key, File file, IOException e) {
+        final NegativeCache<String> missing = mMissing;
+        if (missing != null && e instanceof FileNotFoundException) {
+            missing.add(key);
+            // a concurrent commit may have renamed the file after the failed open
+            if (file.exists()) {
+                missing.remove(key);
+            }
+        }
+    }
+
+    /**
+     * read file and decode it if it has a header
+     */
+    private byte[] read(File file) throws IOException {
+        final byte[] data = IOUtils.readBytes(file);
+        onFileRead(file, data.length);
+        if (!isEncoded(data, data.length)) {
+            return data;
+        }
+        final CacheCodec codec = codecOf(data);
+        final long length = ByteBuffer.wrap(data, HEADER_MAGIC.length + 1, 8).getLong();
+        if (codec == CacheCodecs.NONE) {
+            final byte[] value = new byte[data.length - HEADER_SIZE];
+            System.arraycopy(data, HEADER_SIZE, value, 0, value.length);
+            return value;
+        }
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("invalid entry length: " + length);
+        }
+        final byte[] value = new byte[(int) length];
+        final InputStream input = codec.decode(
+                new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE));
+        try {
+            new DataInputStream(input).readFully(value);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        return value;
+    }
+
+    /**
+     * without codec files are read as is, plain data starting with the magic
+     * is not taken for an encoded entry
+     */
+    private boolean isEncoded(byte[] header, int length) {
+        if (mCodec == null || length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < HEADER_MAGIC.length; i++) {
+            if (header[i] != HEADER_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CacheCodec codecOf(byte[] header) throws IOException {
+        final int id = header[HEADER_MAGIC.length] & 0xff;
+        final CacheCodec codec = CacheCodecs.forId(id, mCodec);
+        if (codec == null) {
+            throw new IOException("unknown codec id: " + id);
+        }
+        return codec;
+    }
+
+    private static void abortQuietly(Editor editor) {
+        if (editor != null) {
+            editor.abort();
+        }
     }
 
     private File getCacheFile(String key) {
@@ -268,9 +957,25 @@ public class DiscCache implements IDiscCache {
         if (sDebug) {
             LogUtils.v(TAG, "getCacheFile() key=" + key + " fileName=" + fileName);
         }
+        if (mSharded) {
+            return new File(mCacheDir, shardOf(fileName) + fileName);
+        }
         return new File(mCacheDir, fileName);
     }
 
+    /**
+     * @return shard dirs of file name, such as "a/3f/"
+     */
+    private static String shardOf(String fileName) {
+        int h = fileName.hashCode();
+        // spread bits, file names may share long prefix
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        final String second = Integer.toHexString(0x100 | ((h >>> 4) & 0xff)).substring(1);
+        return Integer.toHexString(h & 0xf) + File.separator + second + File.separator;
+    }
+
     private File getBaseCacheDir() {
         File baseCacheDir;
         switch (mMode) {
@@ -295,4 +1000,178 @@ public class DiscCache implements IDiscCache {
         return baseCacheDir;
     }
 
+    /**
+     * 缓存写入器，写入临时文件，commit时重命名为缓存文件
+     */
+    public final class Editor {
+        private final String mKey;
+        private final File mFile;
+        private final File mTemp;
+        private final CacheCodec mCodec;
+        private OutputStream mOutput;
+        private CountingOutputStream mCounter;
+        private boolean mDone;
+
+        Editor(String key, File file, File temp, CacheCodec codec) {
+            mKey = key;
+            mFile = file;
+            mTemp = temp;
+            mCodec = codec;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return buffered stream of the temp file, encoded if codec is set,
+         * closed by commit or abort
+         */
+        public OutputStream newOutputStream() throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("editor is committed or aborted");
+            }
+            if (mOutput == null) {
+                mOutput = new BufferedOutputStream(new FileOutputStream(mTemp));
+                if (mCodec != null) {
+                    mOutput.write(HEADER_MAGIC);
+                    mOutput.write(mCodec.id());
+                    // decoded length, written on commit
+                    mOutput.write(new byte[8]);
+                    mCounter = new CountingOutputStream(mCodec.encode(mOutput));
+                    mOutput = mCounter;
+                }
+            }
+            return mOutput;
+        }
+
+        /**
+         * close the stream and atomically replace the cache file with the temp file
+         */
+        public void commit() throws IOException {
+            if (mDone) {
+                throw new IllegalStateException("editor is committed or aborted");
+            }
+            mDone = true;
+            try {
+                if (mOutput != null) {
+                    mOutput.close();
+                }
+                if (mCounter != null) {
+                    writeLength(mCounter.getByteCount());
+                }
+                if (!mTemp.renameTo(mFile)) {
+                    // rename does not replace existing file on some file systems
+                    mFile.delete();
+                    if (!mTemp.renameTo(mFile)) {
+                        throw new IOException("rename " + mTemp + " to " + mFile + " failed");
+                    }
+                }
+            } finally {
+                IOUtils.closeQuietly(mOutput);
+                mTemp.delete();
+                finishEdit(mTemp);
+            }
+            final NegativeCache<String> missing = mMissing;
+            if (missing != null) {
+                // after rename, see onMissing()
+                missing.remove(mKey);
+            }
+            onFileWritten(mFile);
+            if (sDebug) {
+                LogUtils.v(TAG, "commit() key=" + mKey + " file=" + mFile);
+            }
+        }
+
+        /**
+         * discard written data, no effect after commit
+         */
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            IOUtils.closeQuietly(mOutput);
+            mTemp.delete();
+            finishEdit(mTemp);
+        }
+
+        private void writeLength(long length) throws IOException {
+            final RandomAccessFile file = new RandomAccessFile(mTemp, "rw");
+            try {
+                file.seek(HEADER_MAGIC.length + 1);
+                file.writeLong(length);
+            } finally {
+                IOUtils.closeQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * 缓存快照，持有打开的文件流，使用后需要关闭
+     */
+    public static final class Snapshot implements Closeable {
+        private final String mKey;
+        private final FileInputStream mFile;
+        private final InputStream mInput;
+        private final long mLength;
+        private final long mLastModified;
+        private final boolean mEncoded;
+
+        Snapshot(String key, FileInputStream file, InputStream input,
+                 long length, long lastModified, boolean encoded) {
+            mKey = key;
+            mFile = file;
+            mInput = input;
+            mLength = length;
+            mLastModified = lastModified;
+            mEncoded = encoded;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return length in bytes, after decoding
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return true if data is stored encoded by codec,
+         * {@link #getChannel()} returns the encoded bytes then
+         */
+        public boolean isEncoded() {
+            return mEncoded;
+        }
+
+        /**
+         * @return decoded data
+         */
+        public InputStream getInputStream() {
+            return mInput;
+        }
+
+        /**
+         * @return channel of the file, positioned at the data after the entry header,
+         * supports transferTo and memory mapping, sharing position with
+         * {@link #getInputStream()} if the entry is not encoded
+         */
+        public FileChannel getChannel() {
+            return mFile.getChannel();
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(mInput);
+            IOUtils.closeQuietly(mFile);
+        }
+    }
+
 }
@@ -0,0 +1,229 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one storage budget between several {@link DiscCache} namespaces,
+ * eg. images, api responses and downloads. Each namespace has its own quota,
+ * enforced by the journal of its cache, when the total size exceeds the global
+ * budget, least recently used files of lower priority namespaces are evicted first.
+ * Sizes come from the journals, no directory walk is needed, the journals report
+ * each change to a running total, so writes do not sum up all namespaces.
+ * <pre>
+ *     final DiscCacheManager manager = new DiscCacheManager(200 * 1024 * 1024L);
+ *     manager.add("images", imageCache, 150 * 1024 * 1024L, DiscCacheManager.PRIORITY_LOW);
+ *     manager.add("api", apiCache, 50 * 1024 * 1024L, DiscCacheManager.PRIORITY_HIGH);
+ * </pre>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 09:40
+ */
+public class DiscCacheManager {
+    public static final String TAG = DiscCacheManager.class.getSimpleName();
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final ExecutorService sExecutor =
+            ThreadUtils.newSingleThreadExecutor("disc-cache-manager");
+    private static boolean sDebug;
+
+    static final class Namespace {
+        final String name;
+        final DiscCache cache;
+        final long quota;
+        final int priority;
+
+        Namespace(final String name, final DiscCache cache, final long quota, final int priority) {
+            this.name = name;
+            this.cache = cache;
+            this.quota = quota;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<String, Namespace> mNamespaces = new LinkedHashMap<String, Namespace>();
+    private volatile long mMaxSize;
+    /**
+     * total bytes of all namespaces, updated by their journals
+     */
+    private final AtomicLong mTotalSize = new AtomicLong();
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+
+    private final Runnable mTrimTask = new Runnable() {
+        @Override
+        public void run() {
+            mTrimScheduled.set(false);
+            trimToSize();
+        }
+    };
+
+    /**
+     * @param maxSize global budget in bytes for all namespaces
+     */
+    public DiscCacheManager(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    public static void setDebug(final boolean debug) {
+        sDebug = debug;
+    }
+
+    /**
+     * max size of the cache is set to its quota, or to the global budget if quota is 0
+     *
+     * @param name     namespace name
+     * @param cache    disc cache of the namespace, can only be managed by one manager
+     * @param quota    max bytes of the namespace, 0 means limited by global budget only
+     * @param priority one of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL}, {@link #PRIORITY_HIGH}
+     */
+    public synchronized DiscCacheManager add(final String name, final DiscCache cache,
+                                             final long quota, final int priority) {
+        if (name == null || cache == null) {
+            throw new NullPointerException("name and cache must not be null.");
+        }
+        if (quota < 0) {
+            throw new IllegalArgumentException("quota < 0");
+        }
+        if (mNamespaces.containsKey(name)) {
+            throw new IllegalArgumentException("namespace already added: " + name);
+        }
+        if (cache.getManager() != null) {
+            throw new IllegalStateException("cache is managed by another manager: " + name);
+        }
+        cache.setMaxSize(quota > 0 ? Math.min(quota, mMaxSize) : mMaxSize);
+        cache.setManager(this);
+        mTotalSize.addAndGet(cache.getCacheSize());
+        mNamespaces.put(name, new Namespace(name, cache, quota, priority));
+        scheduleTrim();
+        return this;
+    }
+
+    /**
+     * stop managing the namespace, its cache keeps the max size
+     */
+    public synchronized void remove(final String name) {
+        final Namespace namespace = mNamespaces.remove(name);
+        if (namespace != null) {
+            namespace.cache.setManager(null);
+            mTotalSize.addAndGet(-namespace.cache.getCacheSize());
+        }
+    }
+
+    public synchronized DiscCache getCache(final String name) {
+        final Namespace namespace = mNamespaces.get(name);
+        return namespace == null ? null : namespace.cache;
+    }
+
+    public synchronized void setMaxSize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        for (Namespace namespace : mNamespaces.values()) {
+            namespace.cache.setMaxSize(namespace.quota > 0
+                    ? Math.min(namespace.quota, maxSize) : maxSize);
+        }
+        scheduleTrim();
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return total bytes of all namespaces
+     */
+    public long getCacheSize() {
+        return mTotalSize.get();
+    }
+
+    /**
+     * @return bytes used by each namespace, in the order added
+     */
+    public Map<String, Long> usage() {
+        final Map<String, Long> usage = new LinkedHashMap<String, Long>();
+        for (Namespace namespace : namespaces()) {
+            usage.put(namespace.name, namespace.cache.getCacheSize());
+        }
+        return usage;
+    }
+
+    /**
+     * evict files until total size is within the global budget,
+     * lower priority namespaces first, larger ones first in the same priority
+     */
+    public void trimToSize() {
+        final List<Namespace> namespaces = namespaces();
+        final Map<Namespace, Long> sizes = new HashMap<Namespace, Long>();
+        long total = 0;
+        for (Namespace namespace : namespaces) {
+            final long size = namespace.cache.getCacheSize();
+            sizes.put(namespace, size);
+            total += size;
+        }
+        final long maxSize = getMaxSize();
+        if (total <= maxSize) {
+            return;
+        }
+        Collections.sort(namespaces, new Comparator<Namespace>() {
+            @Override
+            public int compare(final Namespace lhs, final Namespace rhs) {
+                if (lhs.priority != rhs.priority) {
+                    return lhs.priority < rhs.priority ? -1 : 1;
+                }
+                // sizes taken before sorting, may change while sorting
+                return sizes.get(rhs).compareTo(sizes.get(lhs));
+            }
+        });
+        for (Namespace namespace : namespaces) {
+            final long size = sizes.get(namespace);
+            final long target = Math.max(0, size - (total - maxSize));
+            namespace.cache.trimToSize(target);
+            final long trimmed = namespace.cache.getCacheSize();
+            if (sDebug) {
+                LogUtils.v(TAG, "trimToSize() namespace=" + namespace.name
+                        + " size=" + size + " trimmed=" + trimmed);
+            }
+            total -= size - trimmed;
+            if (total <= maxSize) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * called by journals of managed caches with their locks held
+     */
+    void onSizeChanged(final long delta) {
+        if (mTotalSize.addAndGet(delta) > mMaxSize) {
+            scheduleTrim();
+        }
+    }
+
+    private void scheduleTrim() {
+        if (mTrimScheduled.compareAndSet(false, true)) {
+            sExecutor.submit(mTrimTask);
+        }
+    }
+
+    private synchronized List<Namespace> namespaces() {
+        return new ArrayList<Namespace>(mNamespaces.values());
+    }
+}
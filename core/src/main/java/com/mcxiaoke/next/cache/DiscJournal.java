@@ -0,0 +1,648 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.Charsets;
+import com.mcxiaoke.next.utils.IOUtils;
+import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Append-only journal for size bounded {@link DiscCache}, keeps file names,
+ * sizes, access order and access time, so the cache state can be restored without
+ * scanning the cache dir, least recently used files are evicted in background,
+ * and age based trims only visit files older than the cutoff.
+ * <p/>
+ * Journal format, one record per line:
+ * <pre>
+ *     next.cache.DiscJournal
+ *     2
+ *
+ *     PUT 1024 1540600000000 name
+ *     READ 1540600000000 name
+ *     DEL name
+ * </pre>
+ * Version 2 adds the time in millis to PUT and READ records, for age based trims,
+ * version 1 records had no time. A journal of another version is not read, it is
+ * rebuilt by scanning the cache dir once, times are taken from file modification times.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 10:12
+ */
+class DiscJournal {
+    private static final String TAG = DiscJournal.class.getSimpleName();
+
+    static final String JOURNAL_FILE = ".journal";
+    static final String JOURNAL_FILE_TEMP = ".journal.tmp";
+    static final String EDIT_FILE_PREFIX = ".edit-";
+    static final String EDIT_FILE_SUFFIX = ".tmp";
+    static final String MAGIC = "next.cache.DiscJournal";
+    static final String VERSION = "2";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final ExecutorService sExecutor =
+            ThreadUtils.newSingleThreadExecutor("disc-cache");
+
+    static class Entry {
+        public final String name;
+        public long size;
+        /**
+         * last access or modification time in millis
+         */
+        public long time;
+
+        public Entry(final String name, final long size, final long time) {
+            this.name = name;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    interface SizeListener {
+        /**
+         * called with the journal lock held, must not call the journal
+         *
+         * @param delta bytes added, negative if removed
+         */
+        void onSizeChanged(long delta);
+    }
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTemp;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final StatsCounter mStats;
+    private final Set<File> mEditing;
+    private long mMaxSize;
+    private long mSize;
+    private SizeListener mSizeListener;
+    /**
+     * size reported to the listener, a closed journal reports 0
+     */
+    private long mReportedSize;
+    private int mRedundantOpCount;
+    private boolean mCleanupScheduled;
+    /**
+     * null if closed, or if a failed compact could not reopen the journal,
+     * then the next cleanup rewrites it
+     */
+    private Writer mWriter;
+    private boolean mClosed = true;
+    private boolean mDebug;
+
+    private final Runnable mCleanupTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiscJournal.this) {
+                mCleanupScheduled = false;
+                if (mClosed) {
+                    return;
+                }
+                trimToSize(mMaxSize);
+                if (isCompactRequired()) {
+                    compact();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param stats   counts evicted files
+     * @param editing temp files of live editors, not deleted when scanning,
+     *                guarded by itself
+     */
+    DiscJournal(final File directory, final long maxSize, final StatsCounter stats,
+                final Set<File> editing) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mStats = stats;
+        mEditing = editing;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTemp = new File(directory, JOURNAL_FILE_TEMP);
+        mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+        mMaxSize = maxSize;
+    }
+
+    static boolean isJournalFile(final File file) {
+        final String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TEMP.equals(name);
+    }
+
+    /**
+     * @return path of file relative to directory, used as entry name
+     */
+    static String relativeName(final File directory, final File file) {
+        final String dir = directory.getPath();
+        final String path = file.getPath();
+        if (path.length() > dir.length() && path.startsWith(dir)) {
+            return path.substring(dir.length() + 1);
+        }
+        return file.getName();
+    }
+
+    /**
+     * temp file of an uncommitted {@link DiscCache.Editor}
+     */
+    static boolean isTempFile(final File file) {
+        final String name = file.getName();
+        return name.startsWith(EDIT_FILE_PREFIX) && name.endsWith(EDIT_FILE_SUFFIX);
+    }
+
+    void setDebug(final boolean debug) {
+        mDebug = debug;
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * set before {@link #open()}, changes of size are reported after each operation
+     */
+    synchronized void setSizeListener(final SizeListener listener) {
+        mSizeListener = listener;
+    }
+
+    /**
+     * restore entries from journal file, if the journal is missing or
+     * corrupted, rebuild it by scanning the cache dir once
+     */
+    synchronized void open() {
+        mClosed = false;
+        if (mJournalFile.exists()) {
+            try {
+                readJournal();
+                mWriter = newJournalWriter();
+                if (mDebug) {
+                    LogUtils.v(TAG, "open() restored entries=" + mEntries.size()
+                            + " size=" + mSize);
+                }
+                scheduleCleanup();
+                reportSize();
+                return;
+            } catch (IOException e) {
+                if (mDebug) {
+                    LogUtils.w(TAG, "open() journal is corrupt, rebuilding: " + e);
+                }
+            }
+        }
+        scanDirectory();
+        compact();
+        scheduleCleanup();
+        reportSize();
+    }
+
+    /**
+     * files of a closed journal are no longer counted by the listener
+     */
+    synchronized void close() {
+        mClosed = true;
+        IOUtils.closeQuietly(mWriter);
+        mWriter = null;
+        if (mSizeListener != null && mReportedSize != 0) {
+            final long delta = -mReportedSize;
+            mReportedSize = 0;
+            mSizeListener.onSizeChanged(delta);
+        }
+    }
+
+    synchronized void put(final String name, final long size) {
+        final long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(name, size, now);
+            mEntries.put(name, entry);
+        } else {
+            mSize -= entry.size;
+            entry.size = size;
+            entry.time = now;
+            mRedundantOpCount++;
+        }
+        mSize += size;
+        writeRecord(PUT + ' ' + size + ' ' + now + ' ' + name, true);
+        if (mSize > mMaxSize || isCompactRequired()) {
+            scheduleCleanup();
+        }
+        reportSize();
+    }
+
+    synchronized void read(final String name) {
+        final Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.time = System.currentTimeMillis();
+            mRedundantOpCount++;
+            // read records only affect access order, no flush here
+            writeRecord(READ + ' ' + entry.time + ' ' + name, false);
+        }
+    }
+
+    synchronized void remove(final String name) {
+        final Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mSize -= entry.size;
+            mRedundantOpCount += 2;
+            writeRecord(DEL + ' ' + name, true);
+            reportSize();
+        }
+    }
+
+    synchronized boolean contains(final String name) {
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * clear entries, the cache dir is deleted by caller
+     */
+    synchronized void reset() {
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOpCount = 0;
+        reportSize();
+        close();
+    }
+
+    synchronized long size() {
+        return mSize;
+    }
+
+    synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    synchronized int count() {
+        return mEntries.size();
+    }
+
+    synchronized void setMaxSize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        scheduleCleanup();
+    }
+
+    /**
+     * evict least recently used files until size is at or below maxSize
+     *
+     * @return number of files deleted
+     */
+    synchronized int trimToSize(final long maxSize) {
+        int count = 0;
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            deleteEntry(entry);
+            mStats.recordEviction();
+            count++;
+            if (mDebug) {
+                LogUtils.v(TAG, "trimToSize() evict name=" + entry.name + " size=" + entry.size);
+            }
+        }
+        flush();
+        reportSize();
+        return count;
+    }
+
+    /**
+     * delete files not accessed since cutoff, entries are in access order,
+     * so only expired entries are visited
+     *
+     * @param deadline stop at this {@link System#nanoTime()}, Long.MAX_VALUE means no limit
+     * @return number of files deleted
+     */
+    synchronized int trimOlderThan(final long cutoff, final long deadline) {
+        int count = 0;
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            // not strictly ordered by time if clock goes back, stop at first newer entry
+            if (entry.time >= cutoff) {
+                break;
+            }
+            if (deadline != Long.MAX_VALUE && System.nanoTime() >= deadline) {
+                break;
+            }
+            it.remove();
+            deleteEntry(entry);
+            count++;
+        }
+        flush();
+        if (isCompactRequired()) {
+            scheduleCleanup();
+        }
+        reportSize();
+        return count;
+    }
+
+    /**
+     * @return true if the least recently accessed file is older than cutoff
+     */
+    synchronized boolean hasOlderThan(final long cutoff) {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        return it.hasNext() && it.next().time < cutoff;
+    }
+
+    /**
+     * delete files accepted by filter, only files in the index are visited
+     *
+     * @return number of files deleted
+     */
+    synchronized int delete(final FileFilter filter) {
+        int count = 0;
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (filter.accept(new File(mDirectory, entry.name))) {
+                it.remove();
+                deleteEntry(entry);
+                count++;
+            }
+        }
+        flush();
+        if (isCompactRequired()) {
+            scheduleCleanup();
+        }
+        reportSize();
+        return count;
+    }
+
+    private void deleteEntry(final Entry entry) {
+        mSize -= entry.size;
+        mRedundantOpCount += 2;
+        IOUtils.delete(new File(mDirectory, entry.name));
+        writeRecord(DEL + ' ' + entry.name, false);
+    }
+
+    private void reportSize() {
+        if (mSizeListener != null && mSize != mReportedSize) {
+            final long delta = mSize - mReportedSize;
+            mReportedSize = mSize;
+            mSizeListener.onSizeChanged(delta);
+        }
+    }
+
+    private void scheduleCleanup() {
+        if (!mCleanupScheduled) {
+            mCleanupScheduled = true;
+            sExecutor.submit(mCleanupTask);
+        }
+    }
+
+    private boolean isCompactRequired() {
+        if (mWriter == null) {
+            // journal lost by a failed compact, rewrite it
+            return !mClosed;
+        }
+        return mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size();
+    }
+
+    private void writeRecord(final String record, final boolean flush) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(record);
+            mWriter.write('\n');
+            if (flush) {
+                mWriter.flush();
+            }
+        } catch (IOException e) {
+            if (mDebug) {
+                LogUtils.e(TAG, "writeRecord() record=" + record + " error=" + e);
+            }
+        }
+    }
+
+    private void flush() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            if (mDebug) {
+                LogUtils.e(TAG, "flush() error=" + e);
+            }
+        }
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mJournalFile), Charsets.UTF_8));
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            final String blank = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + blank + "]");
+            }
+            mEntries.clear();
+            mSize = 0;
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readRecord(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private void readRecord(final String line) throws IOException {
+        final int first = line.indexOf(' ');
+        if (first == -1) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        final String op = line.substring(0, first);
+        if (PUT.equals(op)) {
+            final int second = line.indexOf(' ', first + 1);
+            final int third = second == -1 ? -1 : line.indexOf(' ', second + 1);
+            if (third == -1) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            final long size = parseLong(line, first + 1, second);
+            final long time = parseLong(line, second + 1, third);
+            final String name = line.substring(third + 1);
+            final Entry old = mEntries.put(name, new Entry(name, size, time));
+            if (old != null) {
+                mSize -= old.size;
+            }
+            mSize += size;
+        } else if (READ.equals(op)) {
+            final int second = line.indexOf(' ', first + 1);
+            if (second == -1) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            final Entry entry = mEntries.get(line.substring(second + 1));
+            if (entry != null) {
+                entry.time = parseLong(line, first + 1, second);
+            }
+        } else if (DEL.equals(op)) {
+            final Entry old = mEntries.remove(line.substring(first + 1));
+            if (old != null) {
+                mSize -= old.size;
+            }
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    private static long parseLong(final String line, final int start, final int end)
+            throws IOException {
+        try {
+            return Long.parseLong(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    private void scanDirectory() {
+        mEntries.clear();
+        mSize = 0;
+        final List<File> list = new ArrayList<File>();
+        listFiles(mDirectory, list, mEditing);
+        // oldest first, keep the access order as close as possible
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : list) {
+            final String name = relativeName(mDirectory, file);
+            final long size = file.length();
+            mEntries.put(name, new Entry(name, size, file.lastModified()));
+            mSize += size;
+        }
+        if (mDebug) {
+            LogUtils.v(TAG, "scanDirectory() entries=" + mEntries.size() + " size=" + mSize);
+        }
+    }
+
+    /**
+     * collect cache files, including files in shard dirs, the journal may be
+     * opened while editors are writing, their temp files are kept
+     */
+    private static void listFiles(final File dir, final List<File> list,
+                                  final Set<File> editing) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listFiles(file, list, editing);
+            } else if (isTempFile(file)) {
+                synchronized (editing) {
+                    if (!editing.contains(file)) {
+                        // left by an editor not committed before process died
+                        file.delete();
+                    }
+                }
+            } else if (!isJournalFile(file)) {
+                list.add(file);
+            }
+        }
+    }
+
+    /**
+     * rewrite the journal with current entries, drop redundant records
+     */
+    private void compact() {
+        IOUtils.closeQuietly(mWriter);
+        mWriter = null;
+        Writer writer = null;
+        try {
+            mDirectory.mkdirs();
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mJournalFileTemp), Charsets.UTF_8));
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                writer.write(PUT + ' ' + e.getValue().size + ' ' + e.getValue().time + ' ' + e.getKey());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!mJournalFileTemp.renameTo(mJournalFile)) {
+                throw new IOException("can not rename " + mJournalFileTemp);
+            }
+            mRedundantOpCount = 0;
+            mWriter = newJournalWriter();
+            if (mDebug) {
+                LogUtils.v(TAG, "compact() entries=" + mEntries.size());
+            }
+        } catch (IOException e) {
+            if (mDebug) {
+                LogUtils.e(TAG, "compact() error=" + e);
+            }
+            IOUtils.closeQuietly(writer);
+            writer = null;
+            mJournalFileTemp.delete();
+            reopen();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * keep appending to the old journal after a failed compact, it still holds
+     * all records, if it is missing or can not be opened, the writer stays null
+     * and the next cleanup tries to compact again
+     */
+    private void reopen() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        try {
+            mWriter = newJournalWriter();
+        } catch (IOException e) {
+            if (mDebug) {
+                LogUtils.e(TAG, "reopen() error=" + e);
+            }
+        }
+    }
+
+    private Writer newJournalWriter() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFile, true), Charsets.UTF_8));
+    }
+
+}
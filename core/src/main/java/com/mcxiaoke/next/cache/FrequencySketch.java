@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mcxiaoke.next.cache;
+
+/**
+ * Count-Min sketch with 4-bit counters, estimates how often a key was accessed
+ * within a time window. Counters are halved when the sample size is reached,
+ * so old popularity fades away. Used by {@link TinyLfuCacheImpl}.
+ * <p/>
+ * Each long holds sixteen 4-bit counters, a key maps to four counters
+ * in four different longs, the estimate is the minimum of them.
+ * <p/>
+ * Ported from {@code com.github.benmanes.caffeine.cache.FrequencySketch} of
+ * Caffeine (https://github.com/ben-manes/caffeine), changed for Java 7, the table
+ * is sized once in the constructor instead of by ensureCapacity.
+ */
+final class FrequencySketch<K> {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize;
+
+    /**
+     * @param maximum expected max number of keys, usually cache max size
+     */
+    FrequencySketch(int maximum) {
+        final int max = Math.max(1, Math.min(maximum, 1 << 30));
+        final int capacity = max == 1 ? 1 : Integer.highestOneBit(max - 1) << 1;
+        mTable = new long[capacity];
+        mTableMask = capacity - 1;
+        mSampleSize = max > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : 10 * max;
+    }
+
+    /**
+     * @return estimated access count of key, at most 15
+     */
+    int frequency(K key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * increment access count of key, halve all counters if sample size reached
+     */
+    void increment(K key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = 0L;
+        }
+        mSize = 0;
+    }
+
+    private boolean incrementAt(int i, int j) {
+        final int offset = j << 2;
+        final long mask = 0xfL << offset;
+        if ((mTable[i] & mask) != mask) {
+            mTable[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            count += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & mTableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
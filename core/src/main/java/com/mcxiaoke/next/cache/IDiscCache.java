@@ -18,6 +18,8 @@ package com.mcxiaoke.next.cache;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
 
 public interface IDiscCache {
 
@@ -33,8 +35,17 @@ public interface IDiscCache {
 
     byte[] getBytes(String key);
 
+    /**
+     * Returns the data of {@code keys} present in the cache, in the order of keys.
+     */
+    Map<String, byte[]> getAll(Collection<String> keys);
+
+    void putAll(Map<String, byte[]> values);
+
     boolean remove(String key);
 
+    void removeAll(Collection<String> keys);
+
     void clear();
 
     int delete(FileFilter filter);
@@ -42,4 +53,9 @@ public interface IDiscCache {
     File getCacheDir();
 
     long getCacheSize();
+
+    /**
+     * Returns a snapshot of hit, miss, eviction and byte counts since the cache was created.
+     */
+    CacheStats stats();
 }
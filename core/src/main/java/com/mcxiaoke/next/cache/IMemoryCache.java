@@ -16,6 +16,22 @@ public interface IMemoryCache<K, V> {
      */
     V get(K key);
 
+    /**
+     * Returns the value for {@code key}, or loads it with {@code loader} and caches
+     * the result. Concurrent misses of the same key are coalesced into one load,
+     * other callers wait for its result, misses of different keys do not block each other.
+     *
+     * @return the cached or loaded value, or null if loader returns null
+     * @throws Exception exception thrown by the loader
+     */
+    V get(K key, CacheLoader<? super K, ? extends V> loader) throws Exception;
+
+    /**
+     * Returns the values of {@code keys} present in the cache, in the order of keys.
+     * Lock based caches take each lock once for the whole batch.
+     */
+    Map<K, V> getAll(Iterable<? extends K> keys);
+
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
      * the queue.
@@ -24,10 +40,16 @@ public interface IMemoryCache<K, V> {
      */
     V put(K key, V value);
 
+    /**
+     * Caches all entries of {@code map}, lock based caches take each lock once.
+     */
+    void putAll(Map<? extends K, ? extends V> map);
+
     /**
      * Caches {@code value} for {@code key} with expires. The value is moved to the head of
      * the queue.
      *
+     * @param expires time to live in milliseconds, 0 means never expires
      * @return the previous value mapped by {@code key}.
      */
     V put(K key, V value, long expires);
@@ -39,6 +61,11 @@ public interface IMemoryCache<K, V> {
      */
     V remove(K key);
 
+    /**
+     * Removes the entries for {@code keys}, lock based caches take each lock once.
+     */
+    void removeAll(Iterable<? extends K> keys);
+
     /**
      * Clear the cache, calling {@link #remove} on each removed entry.
      */
@@ -63,4 +90,9 @@ public interface IMemoryCache<K, V> {
      */
     Map<K, V> snapshot();
 
+    /**
+     * Returns a snapshot of hit, miss, load and eviction counts since the cache was created.
+     */
+    CacheStats stats();
+
 }
@@ -125,6 +125,29 @@ class LruCacheCompat<K, V> {
         }
     }
 
+    /**
+     * Returns the value for {@code key} if it exists in the cache, without
+     * counting a hit or miss and without creating a value. The map is in
+     * access order, so the value is still moved to the head of the queue,
+     * use {@link #containsKey} to check presence without moving it.
+     */
+    public synchronized final V peek(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Returns true if {@code key} is in the cache, the queue is not changed.
+     */
+    public synchronized final boolean containsKey(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return map.containsKey(key);
+    }
+
     /**
      * Caches {@code value} for {@code key}. The value is moved to the head of
      * the queue.
@@ -154,6 +177,82 @@ class LruCacheCompat<K, V> {
         return previous;
     }
 
+    /**
+     * Returns the values of {@code keys} present in the cache, in the order of
+     * keys, taking the lock once. Values are not created for missing keys.
+     */
+    public final Map<K, V> getAll(Iterable<? extends K> keys) {
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        synchronized (this) {
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                final V mapValue = map.get(key);
+                if (mapValue != null) {
+                    hitCount++;
+                    result.put(key, mapValue);
+                } else {
+                    missCount++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Caches all entries of {@code values} taking the lock once,
+     * then trims the cache once.
+     */
+    public final void putAll(Map<? extends K, ? extends V> values) {
+        final Map<K, V> replaced = new LinkedHashMap<K, V>();
+        synchronized (this) {
+            for (Map.Entry<? extends K, ? extends V> entry : values.entrySet()) {
+                final K key = entry.getKey();
+                final V value = entry.getValue();
+                if (key == null || value == null) {
+                    throw new NullPointerException("key == null || value == null");
+                }
+                putCount++;
+                size += safeSizeOf(key, value);
+                final V previous = map.put(key, value);
+                if (previous != null) {
+                    size -= safeSizeOf(key, previous);
+                    replaced.put(key, previous);
+                }
+            }
+        }
+
+        for (Map.Entry<K, V> entry : replaced.entrySet()) {
+            entryRemoved(false, entry.getKey(), entry.getValue(), values.get(entry.getKey()));
+        }
+
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Removes the entries for {@code keys} taking the lock once.
+     */
+    public final void removeAll(Iterable<? extends K> keys) {
+        final Map<K, V> removed = new LinkedHashMap<K, V>();
+        synchronized (this) {
+            for (K key : keys) {
+                if (key == null) {
+                    throw new NullPointerException("key == null");
+                }
+                final V previous = map.remove(key);
+                if (previous != null) {
+                    size -= safeSizeOf(key, previous);
+                    removed.put(key, previous);
+                }
+            }
+        }
+
+        for (Map.Entry<K, V> entry : removed.entrySet()) {
+            entryRemoved(false, entry.getKey(), entry.getValue(), null);
+        }
+    }
+
     /**
      * Remove the eldest entries until the total of remaining entries is at or
      * below the requested size.
@@ -1,5 +1,6 @@
 package com.mcxiaoke.next.cache;
 
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -7,41 +8,243 @@ import java.util.Map;
  * Date: 15/6/16
  * Time: 13:35
  */
-class LruCacheImpl<K, V> implements IMemoryCache<K, V> {
+class LruCacheImpl<K, V> implements BackingCache<K, V> {
 
+    private final Object mLock = new Object();
     private LruCacheCompat<K, V> mCache;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>(mStats);
+    /**
+     * created when the first entry with expires is put
+     */
+    private volatile TimerWheel<K> mWheel;
+
+    private final TimerWheel.Listener<K> mExpirer = new TimerWheel.Listener<K>() {
+        @Override
+        public long onExpired(final K key, final long now) {
+            if (mCache.remove(key) != null) {
+                mStats.recordExpired();
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * evicted keys are descheduled at once, not kept in the wheel until their deadlines
+     */
+    private final EvictionListener<K> mOnEvicted = new EvictionListener<K>() {
+        @Override
+        public void onEvicted(final K key) {
+            final TimerWheel<K> wheel = mWheel;
+            if (wheel != null) {
+                synchronized (mLock) {
+                    // may be put again after eviction
+                    if (!mCache.containsKey(key)) {
+                        wheel.deschedule(key);
+                    }
+                }
+            }
+            final EvictionListener<K> listener = mEvictionListener;
+            if (listener != null) {
+                listener.onEvicted(key);
+            }
+        }
+    };
+    private volatile EvictionListener<K> mEvictionListener;
 
     public LruCacheImpl() {
-        mCache = new LruCacheCompat<K, V>(Integer.MAX_VALUE / 2);
+        this(Integer.MAX_VALUE / 2);
     }
 
     public LruCacheImpl(int maxSize) {
-        mCache = new LruCacheCompat<K, V>(maxSize);
+        this(maxSize, Weighers.<K, V>singleton());
+    }
+
+    public LruCacheImpl(int maxSize, final Weigher<? super K, ? super V> weigher) {
+        mCache = newLruCache(maxSize, weigher, mOnEvicted);
+    }
+
+    /**
+     * @param listener called without the lock of the lru cache held
+     */
+    static <K, V> LruCacheCompat<K, V> newLruCache(int maxSize,
+                                                   final Weigher<? super K, ? super V> weigher,
+                                                   final EvictionListener<K> listener) {
+        return new LruCacheCompat<K, V>(maxSize) {
+            @Override
+            protected int sizeOf(final K key, final V value) {
+                return weigher.weigh(key, value);
+            }
+
+            @Override
+            protected void entryRemoved(final boolean evicted, final K key,
+                                        final V oldValue, final V newValue) {
+                if (evicted) {
+                    listener.onEvicted(key);
+                }
+            }
+        };
     }
 
     @Override
     public V get(final K key) {
-        return mCache.get(key);
+        final V value = mCache.get(key);
+        final TimerWheel<K> wheel = mWheel;
+        if (value == null || wheel == null) {
+            recordRead(value);
+            return value;
+        }
+        synchronized (mLock) {
+            final long deadline = wheel.getDeadline(key);
+            if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+                mCache.remove(key);
+                wheel.deschedule(key);
+                mStats.recordExpired();
+                mStats.recordMiss();
+                return null;
+            }
+        }
+        mStats.recordHit();
+        return value;
+    }
+
+    @Override
+    public V peek(final K key) {
+        return mCache.peek(key);
+    }
+
+    @Override
+    public boolean containsKey(final K key) {
+        return mCache.containsKey(key);
+    }
+
+    @Override
+    public void setEvictionListener(final EvictionListener<K> listener) {
+        mEvictionListener = listener;
+    }
+
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    @Override
+    public Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final Map<K, V> result = mCache.getAll(keys);
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel != null && !result.isEmpty()) {
+            synchronized (mLock) {
+                final long now = System.currentTimeMillis();
+                final Iterator<K> it = result.keySet().iterator();
+                while (it.hasNext()) {
+                    final K key = it.next();
+                    final long deadline = wheel.getDeadline(key);
+                    if (deadline > 0 && deadline <= now) {
+                        mCache.remove(key);
+                        wheel.deschedule(key);
+                        mStats.recordExpired();
+                        it.remove();
+                    }
+                }
+            }
+        }
+        int requests = 0;
+        for (K ignored : keys) {
+            requests++;
+        }
+        mStats.recordHits(result.size());
+        mStats.recordMisses(requests - result.size());
+        return result;
     }
 
     @Override
     public V put(final K key, final V value) {
-        return mCache.put(key, value);
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            return mCache.put(key, value);
+        }
+        synchronized (mLock) {
+            final V previous = mCache.put(key, value);
+            wheel.deschedule(key);
+            wheel.advance(System.currentTimeMillis());
+            return previous;
+        }
     }
 
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> map) {
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            mCache.putAll(map);
+            return;
+        }
+        synchronized (mLock) {
+            mCache.putAll(map);
+            for (K key : map.keySet()) {
+                wheel.deschedule(key);
+            }
+            wheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @param expires time to live in millis, 0 means never expires
+     */
     @Override
     public V put(final K key, final V value, final long expires) {
-        throw new UnsupportedOperationException();
+        if (expires <= 0) {
+            return put(key, value);
+        }
+        synchronized (mLock) {
+            final long now = System.currentTimeMillis();
+            TimerWheel<K> wheel = mWheel;
+            if (wheel == null) {
+                wheel = new TimerWheel<K>(mExpirer, now);
+                mWheel = wheel;
+            }
+            final V previous = mCache.put(key, value);
+            wheel.schedule(key, now + expires);
+            wheel.advance(now);
+            return previous;
+        }
     }
 
     @Override
     public V remove(final K key) {
-        return mCache.remove(key);
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            return mCache.remove(key);
+        }
+        synchronized (mLock) {
+            wheel.deschedule(key);
+            return mCache.remove(key);
+        }
+    }
+
+    @Override
+    public void removeAll(final Iterable<? extends K> keys) {
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            mCache.removeAll(keys);
+            return;
+        }
+        synchronized (mLock) {
+            for (K key : keys) {
+                wheel.deschedule(key);
+            }
+            mCache.removeAll(keys);
+        }
     }
 
     @Override
     public void clear() {
-        mCache.evictAll();
+        synchronized (mLock) {
+            mCache.evictAll();
+            final TimerWheel<K> wheel = mWheel;
+            if (wheel != null) {
+                wheel.clear();
+            }
+        }
     }
 
     @Override
@@ -51,11 +254,59 @@ class LruCacheImpl<K, V> implements IMemoryCache<K, V> {
 
     @Override
     public int maxSize() {
-        return Integer.MAX_VALUE;
+        return mCache.maxSize();
     }
 
+    /**
+     * ordered from least recently accessed to most recently accessed,
+     * expired entries are skipped
+     */
     @Override
     public Map<K, V> snapshot() {
-        throw new UnsupportedOperationException();
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            return mCache.snapshot();
+        }
+        synchronized (mLock) {
+            final Map<K, V> map = mCache.snapshot();
+            final long now = System.currentTimeMillis();
+            final Iterator<K> it = map.keySet().iterator();
+            while (it.hasNext()) {
+                final long deadline = wheel.getDeadline(it.next());
+                if (deadline > 0 && deadline <= now) {
+                    it.remove();
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * evictions are counted by {@link LruCacheCompat}
+     */
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot(mCache.evictionCount());
+    }
+
+    /**
+     * @return count of keys in the timer wheel, for tests
+     */
+    int scheduledCount() {
+        final TimerWheel<K> wheel = mWheel;
+        if (wheel == null) {
+            return 0;
+        }
+        synchronized (mLock) {
+            return wheel.size();
+        }
+    }
+
+    private void recordRead(final V value) {
+        if (value == null) {
+            mStats.recordMiss();
+        } else {
+            mStats.recordHit();
+        }
     }
 }
@@ -1,6 +1,7 @@
 package com.mcxiaoke.next.cache;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -8,9 +9,11 @@ import java.util.Map;
  * Date: 15/6/16
  * Time: 13:35
  */
-class MapCacheImpl<K, V> implements IMemoryCache<K, V> {
+class MapCacheImpl<K, V> implements BackingCache<K, V> {
 
     private Map<K, V> mCache;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>(mStats);
 
     public MapCacheImpl() {
         mCache = new HashMap<K, V>();
@@ -18,14 +21,59 @@ class MapCacheImpl<K, V> implements IMemoryCache<K, V> {
 
     @Override
     public V get(final K key) {
+        final V value = mCache.get(key);
+        if (value == null) {
+            mStats.recordMiss();
+        } else {
+            mStats.recordHit();
+        }
+        return value;
+    }
+
+    @Override
+    public V peek(final K key) {
         return mCache.get(key);
     }
 
+    @Override
+    public boolean containsKey(final K key) {
+        return mCache.containsKey(key);
+    }
+
+    /**
+     * never evicts
+     */
+    @Override
+    public void setEvictionListener(final EvictionListener<K> listener) {
+    }
+
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    @Override
+    public Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        for (K key : keys) {
+            final V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
     @Override
     public V put(final K key, final V value) {
         return mCache.put(key, value);
     }
 
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> map) {
+        mCache.putAll(map);
+    }
+
     @Override
     public V put(final K key, final V value, final long expires) {
         throw new UnsupportedOperationException();
@@ -36,6 +84,13 @@ class MapCacheImpl<K, V> implements IMemoryCache<K, V> {
         return mCache.remove(key);
     }
 
+    @Override
+    public void removeAll(final Iterable<? extends K> keys) {
+        for (K key : keys) {
+            mCache.remove(key);
+        }
+    }
+
     @Override
     public void clear() {
         mCache.clear();
@@ -53,6 +108,12 @@ class MapCacheImpl<K, V> implements IMemoryCache<K, V> {
 
     @Override
     public Map<K, V> snapshot() {
-        throw new UnsupportedOperationException();
+        // no access order, in hash order
+        return new LinkedHashMap<K, V>(mCache);
+    }
+
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot();
     }
 }
@@ -14,6 +14,89 @@ public final class MemoryCache {
         return new MemoryCacheImpl<K, V>(new LruCacheImpl<K, MemoryCacheImpl.Entry<V>>(maxSize));
     }
 
+    /**
+     * lru cache evicts by total weight of entries, see {@link Weighers}
+     *
+     * @param maxSize max total weight, eg. bytes for {@link Weighers#bitmap()}
+     * @param weigher entry weigher
+     */
+    public static <K, V> IMemoryCache<K, V> lruCache(int maxSize, Weigher<? super K, ? super V> weigher) {
+        return new MemoryCacheImpl<K, V>(new LruCacheImpl<K, MemoryCacheImpl.Entry<V>>(
+                maxSize, MemoryCacheImpl.<K, V>entryWeigher()), weigher);
+    }
+
+    /**
+     * lock striped lru cache, for caches shared by many threads
+     */
+    public static <K, V> IMemoryCache<K, V> concurrentLruCache(int maxSize) {
+        return new MemoryCacheImpl<K, V>(new ConcurrentLruCacheImpl<K, MemoryCacheImpl.Entry<V>>(maxSize));
+    }
+
+    public static <K, V> IMemoryCache<K, V> concurrentLruCache(int maxSize, int concurrencyLevel) {
+        return new MemoryCacheImpl<K, V>(
+                new ConcurrentLruCacheImpl<K, MemoryCacheImpl.Entry<V>>(maxSize, concurrencyLevel));
+    }
+
+    public static <K, V> IMemoryCache<K, V> concurrentLruCache(int maxSize, int concurrencyLevel,
+                                                               Weigher<? super K, ? super V> weigher) {
+        return new MemoryCacheImpl<K, V>(new ConcurrentLruCacheImpl<K, MemoryCacheImpl.Entry<V>>(
+                maxSize, concurrencyLevel, MemoryCacheImpl.<K, V>entryWeigher()), weigher);
+    }
+
+    /**
+     * frequency aware cache (W-TinyLFU), keeps popular entries when scanning
+     */
+    public static <K, V> IMemoryCache<K, V> tinyLfuCache(int maxSize) {
+        return new MemoryCacheImpl<K, V>(new TinyLfuCacheImpl<K, MemoryCacheImpl.Entry<V>>(maxSize));
+    }
+
+    /**
+     * values are held by soft references, kept until memory is low,
+     * expiration is not supported
+     */
+    public static <K, V> IMemoryCache<K, V> softValues() {
+        return new ReferenceCacheImpl<K, V>(ReferenceCacheImpl.SOFT);
+    }
+
+    /**
+     * lru cache, evicted values are held by soft references until memory is low,
+     * and moved back to the lru when read again
+     *
+     * @param maxSize max total weight of the lru
+     * @param weigher entry weigher
+     */
+    public static <K, V> IMemoryCache<K, V> softValues(int maxSize, Weigher<? super K, ? super V> weigher) {
+        return new ReferenceCacheImpl<K, V>(ReferenceCacheImpl.SOFT, maxSize, weigher);
+    }
+
+    /**
+     * values are held by weak references, kept while used elsewhere,
+     * expiration is not supported
+     */
+    public static <K, V> IMemoryCache<K, V> weakValues() {
+        return new ReferenceCacheImpl<K, V>(ReferenceCacheImpl.WEAK);
+    }
+
+    /**
+     * lru cache, evicted values are held by weak references while used elsewhere,
+     * and moved back to the lru when read again
+     *
+     * @param maxSize max total weight of the lru
+     * @param weigher entry weigher
+     */
+    public static <K, V> IMemoryCache<K, V> weakValues(int maxSize, Weigher<? super K, ? super V> weigher) {
+        return new ReferenceCacheImpl<K, V>(ReferenceCacheImpl.WEAK, maxSize, weigher);
+    }
+
+    /**
+     * byte array cache stored in direct memory outside of the java heap
+     *
+     * @param maxSize max bytes of direct memory
+     */
+    public static SlabCache slabCache(int maxSize) {
+        return new SlabCache(maxSize);
+    }
+
     public static <K, V> IMemoryCache<K, V> mapCache() {
         return new MemoryCacheImpl<K, V>(new MapCacheImpl<K, MemoryCacheImpl.Entry<V>>());
     }
@@ -0,0 +1,197 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Builder for {@link IMemoryCache}, supports eviction policy, weigher and expiration.
+ * <pre>
+ *     IMemoryCache&lt;String, Bitmap&gt; cache = MemoryCacheBuilder.&lt;String, Bitmap&gt;create()
+ *             .maxSize(8 * 1024 * 1024)
+ *             .weigher(Weighers.&lt;String&gt;bitmap())
+ *             .expireAfterAccess(10 * 60 * 1000L)
+ *             .build();
+ * </pre>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 18:40
+ */
+public final class MemoryCacheBuilder<K, V> {
+
+    public static final int POLICY_LRU = 0;
+    public static final int POLICY_CONCURRENT_LRU = 1;
+    public static final int POLICY_TINY_LFU = 2;
+
+    private static final int MAX_SIZE_DEFAULT = 100;
+    private static final int STRENGTH_STRONG = -1;
+    private static Executor sRefreshExecutor;
+
+    private int mPolicy = POLICY_LRU;
+    private int mMaxSize = MAX_SIZE_DEFAULT;
+    private int mConcurrencyLevel = ConcurrentLruCacheImpl.DEFAULT_CONCURRENCY_LEVEL;
+    private Weigher<? super K, ? super V> mWeigher;
+    private long mExpireAfterWrite;
+    private long mExpireAfterAccess;
+    private long mRefreshAfterWrite;
+    private Executor mRefreshExecutor;
+    private int mValueStrength = STRENGTH_STRONG;
+
+    public static <K, V> MemoryCacheBuilder<K, V> create() {
+        return new MemoryCacheBuilder<K, V>();
+    }
+
+    private MemoryCacheBuilder() {
+    }
+
+    /**
+     * max number of entries, or max total weight if weigher is set
+     */
+    public MemoryCacheBuilder<K, V> maxSize(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * @param policy one of {@link #POLICY_LRU}, {@link #POLICY_CONCURRENT_LRU},
+     *               {@link #POLICY_TINY_LFU}
+     */
+    public MemoryCacheBuilder<K, V> policy(final int policy) {
+        if (policy < POLICY_LRU || policy > POLICY_TINY_LFU) {
+            throw new IllegalArgumentException("invalid policy: " + policy);
+        }
+        mPolicy = policy;
+        return this;
+    }
+
+    /**
+     * segment count for {@link #POLICY_CONCURRENT_LRU}
+     */
+    public MemoryCacheBuilder<K, V> concurrencyLevel(final int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+        }
+        mConcurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    public MemoryCacheBuilder<K, V> weigher(final Weigher<? super K, ? super V> weigher) {
+        mWeigher = weigher;
+        return this;
+    }
+
+    /**
+     * entries evicted from the lru are held by soft references until memory is low,
+     * only for {@link #POLICY_LRU} without expiration
+     */
+    public MemoryCacheBuilder<K, V> softValues() {
+        mValueStrength = ReferenceCacheImpl.SOFT;
+        return this;
+    }
+
+    /**
+     * entries evicted from the lru are held by weak references while used elsewhere,
+     * only for {@link #POLICY_LRU} without expiration
+     */
+    public MemoryCacheBuilder<K, V> weakValues() {
+        mValueStrength = ReferenceCacheImpl.WEAK;
+        return this;
+    }
+
+    /**
+     * entries expire after the given millis since put, 0 means never
+     */
+    public MemoryCacheBuilder<K, V> expireAfterWrite(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("expireAfterWrite < 0");
+        }
+        mExpireAfterWrite = millis;
+        return this;
+    }
+
+    /**
+     * entries expire after the given millis since last read or put, 0 means never
+     */
+    public MemoryCacheBuilder<K, V> expireAfterAccess(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("expireAfterAccess < 0");
+        }
+        mExpireAfterAccess = millis;
+        return this;
+    }
+
+    /**
+     * entries older than the given millis since put are still returned by
+     * {@link IMemoryCache#get(Object, CacheLoader)}, and reloaded in background,
+     * 0 means never
+     */
+    public MemoryCacheBuilder<K, V> refreshAfterWrite(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("refreshAfterWrite < 0");
+        }
+        mRefreshAfterWrite = millis;
+        return this;
+    }
+
+    /**
+     * executor for background reloads, a shared cached thread pool by default
+     */
+    public MemoryCacheBuilder<K, V> refreshExecutor(final Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        mRefreshExecutor = executor;
+        return this;
+    }
+
+    public IMemoryCache<K, V> build() {
+        Weigher<? super K, ? super V> weigher = mWeigher;
+        if (weigher == null) {
+            weigher = Weighers.singleton();
+        }
+        if (mValueStrength != STRENGTH_STRONG) {
+            // references must point to the values, not to expiration entries
+            if (mPolicy != POLICY_LRU) {
+                throw new IllegalStateException("soft or weak values require POLICY_LRU");
+            }
+            if (mExpireAfterWrite > 0 || mExpireAfterAccess > 0 || mRefreshAfterWrite > 0) {
+                throw new IllegalStateException("expiration is not supported with soft or weak values");
+            }
+            return new ReferenceCacheImpl<K, V>(mValueStrength, mMaxSize, weigher);
+        }
+        final BackingCache<K, MemoryCacheImpl.Entry<V>> cache;
+        switch (mPolicy) {
+            case POLICY_CONCURRENT_LRU:
+                cache = new ConcurrentLruCacheImpl<K, MemoryCacheImpl.Entry<V>>(mMaxSize,
+                        mConcurrencyLevel, MemoryCacheImpl.<K, V>entryWeigher());
+                break;
+            case POLICY_TINY_LFU:
+                if (mWeigher != null) {
+                    throw new IllegalStateException("weigher is not supported by POLICY_TINY_LFU");
+                }
+                cache = new TinyLfuCacheImpl<K, MemoryCacheImpl.Entry<V>>(mMaxSize);
+                break;
+            case POLICY_LRU:
+            default:
+                cache = new LruCacheImpl<K, MemoryCacheImpl.Entry<V>>(mMaxSize,
+                        MemoryCacheImpl.<K, V>entryWeigher());
+                break;
+        }
+        Executor executor = mRefreshExecutor;
+        if (executor == null && mRefreshAfterWrite > 0) {
+            executor = getRefreshExecutor();
+        }
+        return new MemoryCacheImpl<K, V>(cache, weigher, mExpireAfterWrite, mExpireAfterAccess,
+                mRefreshAfterWrite, executor);
+    }
+
+    private static synchronized Executor getRefreshExecutor() {
+        if (sRefreshExecutor == null) {
+            sRefreshExecutor = ThreadUtils.newCachedThreadPool("cache-refresh");
+        }
+        return sRefreshExecutor;
+    }
+}
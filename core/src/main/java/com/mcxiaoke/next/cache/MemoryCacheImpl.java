@@ -1,7 +1,12 @@
 package com.mcxiaoke.next.cache;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * User: mcxiaoke
@@ -13,7 +18,18 @@ class MemoryCacheImpl<K, V> implements IMemoryCache<K, V> {
     static class Entry<T> {
         public T data;
         public int size;
+        /**
+         * write deadline in millis, 0 means never expires
+         */
         public long expire;
+        /**
+         * access deadline in millis, extended on each read, 0 means never expires
+         */
+        public volatile long accessExpire;
+        /**
+         * put time in millis, set only if refresh after write is enabled
+         */
+        public long writeTime;
 
         public Entry() {
 
@@ -29,50 +45,447 @@ class MemoryCacheImpl<K, V> implements IMemoryCache<K, V> {
         }
 
         public boolean isExpired() {
-            return expire > 0 && expire < System.currentTimeMillis();
+            return isExpired(System.currentTimeMillis());
         }
+
+        public boolean isExpired(final long now) {
+            return (expire > 0 && expire <= now)
+                    || (accessExpire > 0 && accessExpire <= now);
+        }
+
+        /**
+         * @return the earliest deadline, or 0 if never expires
+         */
+        public long deadline() {
+            final long access = accessExpire;
+            if (expire > 0 && access > 0) {
+                return Math.min(expire, access);
+            }
+            return expire > 0 ? expire : access;
+        }
+    }
+
+    /**
+     * weighs entries by {@link Entry#size}, used by the underlying cache
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> Weigher<K, Entry<V>> entryWeigher() {
+        return (Weigher<K, Entry<V>>) (Weigher<?, ?>) EntryWeigher.INSTANCE;
     }
 
+    enum EntryWeigher implements Weigher<Object, Entry<Object>> {
+        INSTANCE;
+
+        @Override
+        public int weigh(final Object key, final Entry<Object> value) {
+            return value.size;
+        }
+    }
+
+    /**
+     * run cache maintenance every 64 reads
+     */
+    private static final int READ_CLEANUP_MASK = 0x3f;
+
     private final Object mLock = new Object();
-    private IMemoryCache<K, Entry<V>> cache;
+    private BackingCache<K, Entry<V>> cache;
+    private Weigher<? super K, ? super V> weigher;
+    private final long expireAfterWrite;
+    private final long expireAfterAccess;
+    private final long refreshAfterWrite;
+    private final Executor refreshExecutor;
+    /**
+     * entries being refreshed, at most one refresh per key
+     */
+    private final ConcurrentHashMap<K, Entry<V>> refreshing = new ConcurrentHashMap<K, Entry<V>>();
+    private volatile TimerWheel<K> wheel;
+    /**
+     * keys evicted by size, descheduled from the wheel under mLock
+     */
+    private final ConcurrentLinkedQueue<K> evicted = new ConcurrentLinkedQueue<K>();
+    private int readCount;
+    private final StatsCounter stats = new StatsCounter();
+    private final SingleFlight<K, V> loads = new SingleFlight<K, V>(stats);
+
+    private final TimerWheel.Listener<K> expirer = new TimerWheel.Listener<K>() {
+        @Override
+        public long onExpired(final K key, final long now) {
+            // called with mLock held, a sweep is not an access
+            final Entry<V> entry = cache.peek(key);
+            if (entry == null) {
+                return 0;
+            }
+            if (entry.isExpired(now)) {
+                cache.remove(key);
+                stats.recordExpired();
+                return 0;
+            }
+            // deadline extended by access, or replaced by entry without expiration
+            return entry.deadline();
+        }
+    };
+
+    private final BackingCache.EvictionListener<K> evictionListener =
+            new BackingCache.EvictionListener<K>() {
+                @Override
+                public void onEvicted(final K key) {
+                    // may be called with the lock of the cache held, mLock is taken later
+                    if (wheel != null) {
+                        evicted.offer(key);
+                    }
+                }
+            };
 
-    public MemoryCacheImpl(IMemoryCache<K, Entry<V>> cache) {
+    public MemoryCacheImpl(BackingCache<K, Entry<V>> cache) {
+        this(cache, Weighers.singleton());
+    }
+
+    public MemoryCacheImpl(BackingCache<K, Entry<V>> cache, Weigher<? super K, ? super V> weigher) {
+        this(cache, weigher, 0, 0);
+    }
+
+    /**
+     * @param expireAfterWrite  entries expire in millis after put, 0 means never
+     * @param expireAfterAccess entries expire in millis after last read or put, 0 means never
+     */
+    public MemoryCacheImpl(BackingCache<K, Entry<V>> cache, Weigher<? super K, ? super V> weigher,
+                           long expireAfterWrite, long expireAfterAccess) {
+        this(cache, weigher, expireAfterWrite, expireAfterAccess, 0, null);
+    }
+
+    /**
+     * @param refreshAfterWrite entries older than this in millis are reloaded in background
+     *                          by {@link #get(Object, CacheLoader)}, 0 means never
+     * @param refreshExecutor   executor for reloads, required if refreshAfterWrite is set
+     */
+    public MemoryCacheImpl(BackingCache<K, Entry<V>> cache, Weigher<? super K, ? super V> weigher,
+                           long expireAfterWrite, long expireAfterAccess,
+                           long refreshAfterWrite, Executor refreshExecutor) {
+        if (expireAfterWrite < 0 || expireAfterAccess < 0 || refreshAfterWrite < 0) {
+            throw new IllegalArgumentException("expire time < 0");
+        }
+        if (refreshAfterWrite > 0 && refreshExecutor == null) {
+            throw new NullPointerException("refreshExecutor == null");
+        }
         this.cache = cache;
+        this.weigher = weigher;
+        this.expireAfterWrite = expireAfterWrite;
+        this.expireAfterAccess = expireAfterAccess;
+        this.refreshAfterWrite = refreshAfterWrite;
+        this.refreshExecutor = refreshExecutor;
+        cache.setEvictionListener(evictionListener);
+        if (refreshAfterWrite > 0) {
+            // with a wheel all writes and removes take mLock, refresh replaces under it
+            wheel = new TimerWheel<K>(expirer, System.currentTimeMillis());
+        }
     }
 
     @Override
     public V get(K key) {
         final Entry<V> entry = cache.get(key);
-        if (entry == null || entry.isExpired()) {
-            remove(key);
+        if (entry == null) {
+            stats.recordMiss();
+            afterRead();
             return null;
         }
+        if (entry.expire > 0 || entry.accessExpire > 0) {
+            final long now = System.currentTimeMillis();
+            if (entry.isExpired(now)) {
+                stats.recordMiss();
+                removeExpired(key, entry);
+                return null;
+            }
+            if (entry.accessExpire > 0) {
+                // no reschedule here, the wheel checks the deadline again when due
+                entry.accessExpire = now + expireAfterAccess;
+            }
+        }
+        stats.recordHit();
+        afterRead();
         return entry.data;
     }
 
+    /**
+     * if refresh after write is set, an entry older than it is returned as is
+     * and reloaded in background, the new value replaces it when loaded
+     */
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        if (refreshAfterWrite > 0) {
+            // the access is recorded by get below
+            final Entry<V> entry = cache.peek(key);
+            if (entry != null) {
+                final long now = System.currentTimeMillis();
+                if (!entry.isExpired(now) && now - entry.writeTime >= refreshAfterWrite) {
+                    refresh(key, entry, loader);
+                }
+            }
+        }
+        return loads.get(this, key, loader);
+    }
+
+    @Override
+    public Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final Map<K, Entry<V>> entries = cache.getAll(keys);
+        final Map<K, V> result = new LinkedHashMap<K, V>(entries.size());
+        final long now = System.currentTimeMillis();
+        int requests = 0;
+        for (K key : keys) {
+            requests++;
+            final Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.isExpired(now)) {
+                removeExpired(key, entry);
+                continue;
+            }
+            if (entry.accessExpire > 0) {
+                entry.accessExpire = now + expireAfterAccess;
+            }
+            result.put(key, entry.data);
+        }
+        stats.recordHits(result.size());
+        stats.recordMisses(requests - result.size());
+        afterRead();
+        return result;
+    }
+
     @Override
     public V put(K key, V value) {
-        final Entry<V> entry = new Entry<V>(value);
-        final Entry<V> ret = cache.put(key, entry);
-        return ret == null ? null : ret.data;
+        return put(key, value, expireAfterWrite);
     }
 
+    /**
+     * @param expires time to live in millis, 0 means never expires
+     */
     @Override
     public V put(final K key, final V value, final long expires) {
-        final Entry<V> entry = new Entry<V>(value, expires);
-        final Entry<V> ret = cache.put(key, entry);
+        final Entry<V> entry = new Entry<V>(value);
+        entry.size = weigher.weigh(key, value);
+        if (expires > 0 || expireAfterAccess > 0 || refreshAfterWrite > 0) {
+            final long now = System.currentTimeMillis();
+            entry.expire = expires > 0 ? now + expires : 0;
+            entry.accessExpire = expireAfterAccess > 0 ? now + expireAfterAccess : 0;
+            entry.writeTime = now;
+        }
+        final Entry<V> ret = write(key, entry);
         return ret == null ? null : ret.data;
     }
 
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> map) {
+        final Map<K, Entry<V>> entries = new HashMap<K, Entry<V>>(map.size());
+        final long now = System.currentTimeMillis();
+        boolean expires = false;
+        for (Map.Entry<? extends K, ? extends V> e : map.entrySet()) {
+            final Entry<V> entry = new Entry<V>(e.getValue());
+            entry.size = weigher.weigh(e.getKey(), e.getValue());
+            entry.expire = expireAfterWrite > 0 ? now + expireAfterWrite : 0;
+            entry.accessExpire = expireAfterAccess > 0 ? now + expireAfterAccess : 0;
+            entry.writeTime = now;
+            expires |= entry.deadline() > 0;
+            entries.put(e.getKey(), entry);
+        }
+        if (!expires && wheel == null) {
+            cache.putAll(entries);
+            return;
+        }
+        synchronized (mLock) {
+            TimerWheel<K> w = wheel;
+            if (w == null) {
+                w = new TimerWheel<K>(expirer, now);
+                wheel = w;
+            }
+            cache.putAll(entries);
+            for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+                final long deadline = e.getValue().deadline();
+                if (deadline > 0) {
+                    w.schedule(e.getKey(), deadline);
+                } else {
+                    w.deschedule(e.getKey());
+                }
+            }
+            drainEvicted(w);
+            w.advance(System.currentTimeMillis());
+        }
+    }
+
     @Override
     public V remove(K key) {
-        final Entry<V> ret = cache.remove(key);
+        final Entry<V> ret;
+        final TimerWheel<K> w = wheel;
+        if (w == null) {
+            ret = cache.remove(key);
+        } else {
+            synchronized (mLock) {
+                ret = cache.remove(key);
+                w.deschedule(key);
+            }
+        }
         return ret == null ? null : ret.data;
     }
 
+    @Override
+    public void removeAll(final Iterable<? extends K> keys) {
+        final TimerWheel<K> w = wheel;
+        if (w == null) {
+            cache.removeAll(keys);
+            return;
+        }
+        synchronized (mLock) {
+            cache.removeAll(keys);
+            for (K key : keys) {
+                w.deschedule(key);
+            }
+        }
+    }
+
     @Override
     public void clear() {
-        cache.clear();
+        synchronized (mLock) {
+            cache.clear();
+            final TimerWheel<K> w = wheel;
+            if (w != null) {
+                w.clear();
+            }
+            evicted.clear();
+        }
+    }
+
+    /**
+     * reclaim expired entries, advance the timer wheel to now
+     */
+    void cleanUp() {
+        final TimerWheel<K> w = wheel;
+        if (w == null) {
+            return;
+        }
+        synchronized (mLock) {
+            drainEvicted(w);
+            w.advance(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return count of keys in the timer wheel, for tests
+     */
+    int scheduledCount() {
+        final TimerWheel<K> w = wheel;
+        if (w == null) {
+            return 0;
+        }
+        synchronized (mLock) {
+            return w.size();
+        }
+    }
+
+    private Entry<V> write(final K key, final Entry<V> entry) {
+        final long deadline = entry.deadline();
+        if (deadline == 0 && wheel == null) {
+            // expiration never used, no lock needed
+            return cache.put(key, entry);
+        }
+        synchronized (mLock) {
+            final long now = System.currentTimeMillis();
+            TimerWheel<K> w = wheel;
+            if (w == null) {
+                w = new TimerWheel<K>(expirer, now);
+                wheel = w;
+            }
+            final Entry<V> ret = cache.put(key, entry);
+            if (deadline > 0) {
+                w.schedule(key, deadline);
+            } else {
+                w.deschedule(key);
+            }
+            drainEvicted(w);
+            w.advance(now);
+            return ret;
+        }
+    }
+
+    private void refresh(final K key, final Entry<V> entry,
+                         final CacheLoader<? super K, ? extends V> loader) {
+        if (refreshing.putIfAbsent(key, entry) != null) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reload(key, entry, loader);
+                    } finally {
+                        refreshing.remove(key, entry);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key, entry);
+        }
+    }
+
+    /**
+     * load failure keeps the stale entry, it is refreshed again on next get
+     */
+    private void reload(final K key, final Entry<V> entry,
+                        final CacheLoader<? super K, ? extends V> loader) {
+        final long start = System.nanoTime();
+        V value = null;
+        try {
+            value = loader.load(key);
+        } catch (Exception ignored) {
+        } finally {
+            final long time = System.nanoTime() - start;
+            if (value != null) {
+                stats.recordLoadSuccess(time);
+            } else {
+                stats.recordLoadFailure(time);
+            }
+        }
+        if (value == null) {
+            return;
+        }
+        synchronized (mLock) {
+            // skip if removed or replaced while loading
+            if (cache.peek(key) == entry) {
+                put(key, value);
+            }
+        }
+    }
+
+    private void removeExpired(final K key, final Entry<V> entry) {
+        synchronized (mLock) {
+            // may be replaced by another thread
+            if (cache.peek(key) == entry) {
+                cache.remove(key);
+                stats.recordExpired();
+                final TimerWheel<K> w = wheel;
+                if (w != null) {
+                    w.deschedule(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * called with mLock held
+     */
+    private void drainEvicted(final TimerWheel<K> w) {
+        K key;
+        while ((key = evicted.poll()) != null) {
+            // may be put again after eviction
+            if (!cache.containsKey(key)) {
+                w.deschedule(key);
+            }
+        }
+    }
+
+    private void afterRead() {
+        if (wheel != null && (++readCount & READ_CLEANUP_MASK) == 0) {
+            cleanUp();
+        }
     }
 
     @Override
@@ -80,17 +493,30 @@ class MemoryCacheImpl<K, V> implements IMemoryCache<K, V> {
         return cache.size();
     }
 
+    /**
+     * hits, misses, loads and expirations are counted here,
+     * evictions by size are counted by the underlying cache
+     */
+    @Override
+    public CacheStats stats() {
+        return stats.snapshot(cache.stats().evictionCount());
+    }
+
     @Override
     public int maxSize() {
         return cache.maxSize();
     }
 
+    /**
+     * in the order of the underlying cache, expired entries are skipped
+     */
     @Override
     public Map<K, V> snapshot() {
-        final Map<K, V> map = new HashMap<K, V>();
+        final Map<K, V> map = new LinkedHashMap<K, V>();
+        final long now = System.currentTimeMillis();
         for (final Map.Entry<K, Entry<V>> entry : cache.snapshot().entrySet()) {
             final Entry<V> c = entry.getValue();
-            if (c == null || c.isExpired()) {
+            if (c == null || c.isExpired(now)) {
                 continue;
             }
             map.put(entry.getKey(), c.data);
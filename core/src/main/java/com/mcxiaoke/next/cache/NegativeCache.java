@@ -0,0 +1,43 @@
+package com.mcxiaoke.next.cache;
+
+/**
+ * Bounded set of keys known to be missing, entries expire after ttl,
+ * so repeated lookups of missing keys skip file system and network.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 11:15
+ */
+final class NegativeCache<K> {
+
+    private final LruCacheImpl<K, Boolean> mKeys;
+    private final long mTtl;
+
+    /**
+     * @param maxSize max number of keys
+     * @param ttl     time to live in millis
+     */
+    NegativeCache(final int maxSize, final long ttl) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl <= 0");
+        }
+        mKeys = new LruCacheImpl<K, Boolean>(maxSize);
+        mTtl = ttl;
+    }
+
+    boolean contains(final K key) {
+        return mKeys.get(key) != null;
+    }
+
+    void add(final K key) {
+        mKeys.put(key, Boolean.TRUE, mTtl);
+    }
+
+    void remove(final K key) {
+        mKeys.remove(key);
+    }
+
+    void clear() {
+        mKeys.clear();
+    }
+}
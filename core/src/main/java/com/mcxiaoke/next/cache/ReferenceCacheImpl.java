@@ -0,0 +1,402 @@
+package com.mcxiaoke.next.cache;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache holding values through soft or weak references, values are kept
+ * until the garbage collector needs the memory (soft) or until they are no
+ * longer used elsewhere (weak). Collected entries are purged by draining a
+ * reference queue on writes.
+ * <p/>
+ * With a strong size, values are held by a strong lru first, entries evicted
+ * from the lru stay reachable through references (second chance), and are
+ * moved back to the lru when read again.
+ * <p/>
+ * Entries put with expires are scheduled in a {@link TimerWheel}, created when
+ * the first one is put, an entry is removed at its deadline or earlier if its
+ * value is collected.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:20
+ */
+class ReferenceCacheImpl<K, V> implements IMemoryCache<K, V> {
+
+    static final int SOFT = 0;
+    static final int WEAK = 1;
+
+    interface ValueReference<K, V> {
+
+        K getKey();
+
+        V get();
+    }
+
+    static final class SoftValueReference<K, V> extends SoftReference<V>
+            implements ValueReference<K, V> {
+        private final K key;
+
+        SoftValueReference(final K key, final V value, final ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    static final class WeakValueReference<K, V> extends WeakReference<V>
+            implements ValueReference<K, V> {
+        private final K key;
+
+        WeakValueReference(final K key, final V value, final ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+    }
+
+    private final int mStrength;
+    private final LruCacheCompat<K, V> mStrong;
+    private final HashMap<K, ValueReference<K, V>> mReferences;
+    private final ReferenceQueue<V> mQueue;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>(mStats);
+    /**
+     * created when the first entry with expires is put
+     */
+    private TimerWheel<K> mWheel;
+
+    private final TimerWheel.Listener<K> mExpirer = new TimerWheel.Listener<K>() {
+        @Override
+        public long onExpired(final K key, final long now) {
+            // called with the lock of this cache held
+            if (removeEntry(key)) {
+                mStats.recordExpired();
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * @param strength {@link #SOFT} or {@link #WEAK}
+     */
+    public ReferenceCacheImpl(int strength) {
+        this(strength, 0, Weighers.<K, V>singleton());
+    }
+
+    /**
+     * @param strength   {@link #SOFT} or {@link #WEAK}
+     * @param strongSize max size of the strong lru, 0 means no strong lru
+     * @param weigher    weigher of the strong lru
+     */
+    public ReferenceCacheImpl(int strength, int strongSize, final Weigher<? super K, ? super V> weigher) {
+        if (strength != SOFT && strength != WEAK) {
+            throw new IllegalArgumentException("invalid strength: " + strength);
+        }
+        if (strongSize < 0) {
+            throw new IllegalArgumentException("strongSize < 0");
+        }
+        mStrength = strength;
+        mReferences = new HashMap<K, ValueReference<K, V>>();
+        mQueue = new ReferenceQueue<V>();
+        if (strongSize == 0) {
+            mStrong = null;
+        } else {
+            mStrong = new LruCacheCompat<K, V>(strongSize) {
+                @Override
+                protected int sizeOf(final K key, final V value) {
+                    return weigher.weigh(key, value);
+                }
+
+                @Override
+                protected void entryRemoved(final boolean evicted, final K key,
+                                            final V oldValue, final V newValue) {
+                    // called by put and get of this cache, with its lock held
+                    if (evicted) {
+                        mReferences.put(key, newReference(key, oldValue));
+                    }
+                }
+            };
+        }
+    }
+
+    @Override
+    public synchronized V get(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        if (isExpired(key, System.currentTimeMillis())) {
+            remove(key);
+            mStats.recordExpired();
+            mStats.recordMiss();
+            return null;
+        }
+        V value = mStrong == null ? null : mStrong.get(key);
+        if (value == null) {
+            value = getReferenced(key);
+        }
+        if (value == null) {
+            mStats.recordMiss();
+        } else {
+            mStats.recordHit();
+        }
+        return value;
+    }
+
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    @Override
+    public synchronized Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        for (K key : keys) {
+            final V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized V put(final K key, final V value) {
+        final V previous = putEntry(key, value);
+        if (mWheel != null) {
+            mWheel.deschedule(key);
+            mWheel.advance(System.currentTimeMillis());
+        }
+        return previous;
+    }
+
+    /**
+     * @param expires time to live in millis, 0 means never expires
+     */
+    @Override
+    public synchronized V put(final K key, final V value, final long expires) {
+        if (expires <= 0) {
+            return put(key, value);
+        }
+        final long now = System.currentTimeMillis();
+        if (mWheel == null) {
+            mWheel = new TimerWheel<K>(mExpirer, now);
+        }
+        final V previous = putEntry(key, value);
+        mWheel.schedule(key, now + expires);
+        mWheel.advance(now);
+        return previous;
+    }
+
+    private V putEntry(final K key, final V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        drainQueue();
+        final ValueReference<K, V> old;
+        final V previous;
+        if (mStrong == null) {
+            old = mReferences.put(key, newReference(key, value));
+            previous = null;
+        } else {
+            old = mReferences.remove(key);
+            previous = mStrong.put(key, value);
+        }
+        if (previous != null) {
+            return previous;
+        }
+        return old == null ? null : old.get();
+    }
+
+    @Override
+    public synchronized void putAll(final Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized V remove(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        drainQueue();
+        if (mWheel != null) {
+            mWheel.deschedule(key);
+        }
+        final V previous = mStrong == null ? null : mStrong.remove(key);
+        final ValueReference<K, V> old = mReferences.remove(key);
+        if (previous != null) {
+            return previous;
+        }
+        return old == null ? null : old.get();
+    }
+
+    @Override
+    public synchronized void removeAll(final Iterable<? extends K> keys) {
+        for (K key : keys) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (mStrong != null) {
+            // evicted entries are moved to references, cleared below
+            mStrong.evictAll();
+        }
+        mReferences.clear();
+        while (mQueue.poll() != null) {
+            // discard, the map is empty
+        }
+        if (mWheel != null) {
+            mWheel.clear();
+        }
+    }
+
+    /**
+     * @return size of the strong lru plus number of entries held by references,
+     * references cleared by the collector are counted until purged
+     */
+    @Override
+    public synchronized int size() {
+        drainQueue();
+        return (mStrong == null ? 0 : mStrong.size()) + mReferences.size();
+    }
+
+    /**
+     * @return max size of the strong lru, entries held by references are not limited
+     */
+    @Override
+    public int maxSize() {
+        return mStrong == null ? Integer.MAX_VALUE : mStrong.maxSize();
+    }
+
+    /**
+     * entries held by references first, then the strong lru
+     * from least recently accessed to most recently accessed,
+     * expired entries are skipped
+     */
+    @Override
+    public synchronized Map<K, V> snapshot() {
+        final Map<K, V> map = new LinkedHashMap<K, V>();
+        for (Map.Entry<K, ValueReference<K, V>> entry : mReferences.entrySet()) {
+            final V value = entry.getValue().get();
+            if (value != null) {
+                map.put(entry.getKey(), value);
+            }
+        }
+        if (mStrong != null) {
+            map.putAll(mStrong.snapshot());
+        }
+        if (mWheel != null) {
+            final long now = System.currentTimeMillis();
+            final Iterator<K> it = map.keySet().iterator();
+            while (it.hasNext()) {
+                if (isExpired(it.next(), now)) {
+                    it.remove();
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * entries cleared by the garbage collector are counted as evictions
+     */
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot();
+    }
+
+    /**
+     * @return count of keys in the timer wheel, for tests
+     */
+    synchronized int scheduledCount() {
+        return mWheel == null ? 0 : mWheel.size();
+    }
+
+    private boolean isExpired(final K key, final long now) {
+        if (mWheel == null) {
+            return false;
+        }
+        final long deadline = mWheel.getDeadline(key);
+        return deadline > 0 && deadline <= now;
+    }
+
+    /**
+     * the key is not descheduled
+     *
+     * @return true if an entry was removed
+     */
+    private boolean removeEntry(final K key) {
+        final V previous = mStrong == null ? null : mStrong.remove(key);
+        final ValueReference<K, V> old = mReferences.remove(key);
+        return previous != null || old != null;
+    }
+
+    /**
+     * value held by reference, moved back to the strong lru if present
+     */
+    private V getReferenced(final K key) {
+        final ValueReference<K, V> ref = mReferences.get(key);
+        if (ref == null) {
+            return null;
+        }
+        final V value = ref.get();
+        if (value == null) {
+            // cleared, not enqueued yet
+            mReferences.remove(key);
+            if (mWheel != null) {
+                mWheel.deschedule(key);
+            }
+            mStats.recordEviction();
+            return null;
+        }
+        if (mStrong != null) {
+            mReferences.remove(key);
+            mStrong.put(key, value);
+        }
+        return value;
+    }
+
+    private ValueReference<K, V> newReference(final K key, final V value) {
+        if (mStrength == WEAK) {
+            return new WeakValueReference<K, V>(key, value, mQueue);
+        }
+        return new SoftValueReference<K, V>(key, value, mQueue);
+    }
+
+    /**
+     * purge entries whose values were collected
+     */
+    @SuppressWarnings("unchecked")
+    private void drainQueue() {
+        Reference<? extends V> ref;
+        while ((ref = mQueue.poll()) != null) {
+            final K key = ((ValueReference<K, V>) ref).getKey();
+            // may be replaced by a new value or removed already
+            if (mReferences.get(key) == ref) {
+                mReferences.remove(key);
+                if (mWheel != null) {
+                    mWheel.deschedule(key);
+                }
+                mStats.recordEviction();
+            }
+        }
+    }
+}
@@ -0,0 +1,954 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.Charsets;
+import com.mcxiaoke.next.utils.IOUtils;
+import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Disc cache for many small entries, values up to maxValueSize are appended to
+ * large segment files and located by an in-memory index, no file is opened or
+ * created per entry. Larger values, and values of keys longer than
+ * {@link #MAX_KEY_LENGTH} bytes in the index, are stored by a {@link DiscCache},
+ * one file per key.
+ * <p/>
+ * Segment record: keyLength, valueLength (-1 for removal), crc32, key, value.
+ * The index is saved to a file when a new segment is started, after compaction
+ * and on {@link #flush()}, records appended later are replayed from the segments on open.
+ * Segments with more than half dead space are compacted in background,
+ * if maxSize is set, oldest segments are dropped when total size exceeds it.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 22:40
+ */
+public class SegmentDiscCache implements IDiscCache {
+    public static final String TAG = SegmentDiscCache.class.getSimpleName();
+
+    public static final int MAX_VALUE_SIZE_DEFAULT = 4 * 1024;
+    public static final long SEGMENT_SIZE_DEFAULT = 4 * 1024 * 1024L;
+    public static final String DIR_SUFFIX = ".segments";
+    /**
+     * max key length in modified UTF-8 bytes, keys are saved in the index by writeUTF
+     */
+    public static final int MAX_KEY_LENGTH = 65535;
+
+    static final String SEGMENT_PREFIX = "seg-";
+    static final String SEGMENT_SUFFIX = ".dat";
+    static final String INDEX_FILE = ".index";
+    static final String INDEX_FILE_TEMP = ".index.tmp";
+    static final int INDEX_MAGIC = 0x4e584953;
+    static final int INDEX_VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int REMOVED = -1;
+    private static final int DEAD_PERCENT_COMPACT = 50;
+
+    private static final ExecutorService sExecutor =
+            ThreadUtils.newSingleThreadExecutor("segment-cache");
+    private static boolean sDebug;
+
+    private static final Comparator<Map.Entry<String, Location>> LOCATION_ORDER =
+            new Comparator<Map.Entry<String, Location>>() {
+                @Override
+                public int compare(Map.Entry<String, Location> lhs, Map.Entry<String, Location> rhs) {
+                    final Location l = lhs.getValue();
+                    final Location r = rhs.getValue();
+                    if (l.segment.id != r.segment.id) {
+                        return l.segment.id < r.segment.id ? -1 : 1;
+                    }
+                    return l.offset < r.offset ? -1 : (l.offset == r.offset ? 0 : 1);
+                }
+            };
+
+    static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long length;
+        long liveBytes;
+
+        Segment(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.length = channel.size();
+        }
+
+        void close() {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int recordLength;
+
+        Location(final Segment segment, final long offset, final int length, final int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private final DiscCache mDiscCache;
+    private final File mDirectory;
+    private final int mMaxValueSize;
+    private final long mSegmentSize;
+    private final long mMaxSize;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private final HashMap<String, Location> mIndex = new HashMap<String, Location>();
+    private final StatsCounter mStats = new StatsCounter();
+    private Segment mActive;
+    private long mSize;
+    private boolean mCompactScheduled;
+    private Charset mCharset = Charsets.UTF_8;
+
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * segments are stored in a sibling dir of disc cache dir, named with {@link #DIR_SUFFIX}
+     */
+    public SegmentDiscCache(DiscCache discCache) {
+        this(discCache, 0);
+    }
+
+    /**
+     * @param maxSize max bytes of segment files, 0 means no limit
+     */
+    public SegmentDiscCache(DiscCache discCache, long maxSize) {
+        this(discCache, new File(discCache.getCacheDir().getParentFile(),
+                discCache.getCacheDir().getName() + DIR_SUFFIX), MAX_VALUE_SIZE_DEFAULT, maxSize);
+    }
+
+    /**
+     * @param discCache    cache for values larger than maxValueSize
+     * @param directory    dir of segment files, must not be inside disc cache dir
+     * @param maxValueSize values up to this size are packed into segments
+     * @param maxSize      max bytes of segment files, 0 means no limit
+     */
+    public SegmentDiscCache(DiscCache discCache, File directory, int maxValueSize, long maxSize) {
+        if (discCache == null || directory == null) {
+            throw new NullPointerException("discCache and directory must not be null.");
+        }
+        if (maxValueSize < 0 || maxSize < 0) {
+            throw new IllegalArgumentException("maxValueSize < 0 || maxSize < 0");
+        }
+        if (sDebug) {
+            LogUtils.v(TAG, "SegmentDiscCache() directory=" + directory
+                    + " maxValueSize=" + maxValueSize + " maxSize=" + maxSize);
+        }
+        mDiscCache = discCache;
+        mDirectory = directory;
+        mMaxValueSize = maxValueSize;
+        mSegmentSize = Math.max(SEGMENT_SIZE_DEFAULT, maxValueSize * 16L);
+        mMaxSize = maxSize;
+        mLock.writeLock().lock();
+        try {
+            open();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+    }
+
+    public void setCharset(Charset charset) {
+        mCharset = Charsets.toCharset(charset);
+    }
+
+    public DiscCache getDiscCache() {
+        return mDiscCache;
+    }
+
+    /**
+     * @return number of entries in segments
+     */
+    public int getSegmentEntryCount() {
+        mLock.readLock().lock();
+        try {
+            return mIndex.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] data) {
+        if (!fitsSegment(key, data.length)) {
+            removeFromSegment(key);
+            mDiscCache.put(key, data);
+        } else {
+            putToSegment(key, data);
+        }
+    }
+
+    /**
+     * stream is buffered up to maxValueSize, longer streams are written to disc cache
+     */
+    @Override
+    public void put(String key, InputStream stream) {
+        try {
+            final byte[] buffer = new byte[mMaxValueSize + 1];
+            int count = 0;
+            int n;
+            while (count < buffer.length
+                    && (n = stream.read(buffer, count, buffer.length - count)) != -1) {
+                count += n;
+            }
+            if (fitsSegment(key, count)) {
+                final byte[] data = new byte[count];
+                System.arraycopy(buffer, 0, data, 0, count);
+                putToSegment(key, data);
+                return;
+            }
+            removeFromSegment(key);
+            final DiscCache.Editor editor = mDiscCache.edit(key);
+            try {
+                final OutputStream output = editor.newOutputStream();
+                output.write(buffer, 0, count);
+                IOUtils.copyLarge(stream, output);
+                editor.commit();
+            } finally {
+                editor.abort();
+            }
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    @Override
+    public void put(String key, String text) {
+        put(key, text.getBytes(mCharset));
+    }
+
+    @Override
+    public String get(String key) {
+        final byte[] data = getBytes(key);
+        return data == null ? null : new String(data, mCharset);
+    }
+
+    /**
+     * @return file of large entry, small entries packed in segments have no file
+     */
+    @Override
+    public File getFile(String key) {
+        return mDiscCache.getFile(key);
+    }
+
+    @Override
+    public byte[] getBytes(String key) {
+        mLock.readLock().lock();
+        try {
+            final Location location = mIndex.get(key);
+            if (location != null) {
+                final byte[] data = read(location);
+                mStats.recordHit();
+                mStats.recordRead(data.length);
+                return data;
+            }
+        } catch (IOException ignored) {
+            mStats.recordMiss();
+            if (sDebug) {
+                LogUtils.e(TAG, "getBytes() key=" + key + " error=" + ignored);
+            }
+            return null;
+        } finally {
+            mLock.readLock().unlock();
+        }
+        return mDiscCache.getBytes(key);
+    }
+
+    /**
+     * segment entries are read under one lock in segment and offset order,
+     * the rest is read by disc cache
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys) {
+        final Map<String, byte[]> found = new HashMap<String, byte[]>();
+        final List<String> misses = new ArrayList<String>();
+        mLock.readLock().lock();
+        try {
+            final List<Map.Entry<String, Location>> locations =
+                    new ArrayList<Map.Entry<String, Location>>();
+            for (String key : keys) {
+                final Location location = mIndex.get(key);
+                if (location == null) {
+                    misses.add(key);
+                } else {
+                    locations.add(new AbstractMap.SimpleImmutableEntry<String, Location>(key, location));
+                }
+            }
+            Collections.sort(locations, LOCATION_ORDER);
+            for (Map.Entry<String, Location> entry : locations) {
+                try {
+                    final byte[] data = read(entry.getValue());
+                    mStats.recordHit();
+                    mStats.recordRead(data.length);
+                    found.put(entry.getKey(), data);
+                } catch (IOException ignored) {
+                    mStats.recordMiss();
+                    if (sDebug) {
+                        LogUtils.e(TAG, "getAll() key=" + entry.getKey() + " error=" + ignored);
+                    }
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        if (!misses.isEmpty()) {
+            found.putAll(mDiscCache.getAll(misses));
+        }
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>(found.size());
+        for (String key : keys) {
+            final byte[] data = found.get(key);
+            if (data != null) {
+                result.put(key, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * small values are appended under one lock, large values are written by disc cache
+     */
+    @Override
+    public void putAll(Map<String, byte[]> values) {
+        final Map<String, byte[]> large = new HashMap<String, byte[]>();
+        final List<String> small = new ArrayList<String>();
+        mLock.writeLock().lock();
+        try {
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                final String key = entry.getKey();
+                final byte[] data = entry.getValue();
+                if (!fitsSegment(key, data.length)) {
+                    large.put(key, data);
+                    if (mIndex.containsKey(key)) {
+                        append(key, null);
+                        onRemove(key);
+                    }
+                } else {
+                    onPut(key, append(key, data));
+                    mStats.recordWrite(data.length);
+                    small.add(key);
+                }
+            }
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "putAll() error=" + ignored);
+            }
+        } finally {
+            trimToSize();
+            scheduleCompactIfNeeded();
+            mLock.writeLock().unlock();
+        }
+        mDiscCache.removeAll(small);
+        mDiscCache.putAll(large);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        final boolean removed = removeFromSegment(key);
+        return mDiscCache.remove(key) || removed;
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+        mLock.writeLock().lock();
+        try {
+            for (String key : keys) {
+                if (mIndex.containsKey(key)) {
+                    append(key, null);
+                    onRemove(key);
+                }
+            }
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "removeAll() error=" + ignored);
+            }
+        } finally {
+            scheduleCompactIfNeeded();
+            mLock.writeLock().unlock();
+        }
+        mDiscCache.removeAll(keys);
+    }
+
+    @Override
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            closeSegments();
+            IOUtils.delete(mDirectory);
+            open();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mDiscCache.clear();
+    }
+
+    /**
+     * filter is applied to files of large entries only
+     */
+    @Override
+    public int delete(FileFilter filter) {
+        return mDiscCache.delete(filter);
+    }
+
+    @Override
+    public File getCacheDir() {
+        return mDiscCache.getCacheDir();
+    }
+
+    /**
+     * @return size of segment files and disc cache files
+     */
+    @Override
+    public long getCacheSize() {
+        mLock.readLock().lock();
+        try {
+            return mSize + mDiscCache.getCacheSize();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * segment hits and bytes are counted here, misses fall through
+     * to disc cache and are counted there
+     */
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot().plus(mDiscCache.stats());
+    }
+
+    /**
+     * save the index, makes next open faster
+     */
+    public void flush() {
+        mLock.writeLock().lock();
+        try {
+            writeIndex();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private boolean fitsSegment(String key, int valueLength) {
+        return valueLength <= mMaxValueSize && !isKeyTooLong(key);
+    }
+
+    /**
+     * @return true if modified UTF-8 length of key is over {@link #MAX_KEY_LENGTH}
+     */
+    static boolean isKeyTooLong(String key) {
+        final int length = key.length();
+        if (length <= MAX_KEY_LENGTH / 3) {
+            return false;
+        }
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = key.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                utfLength++;
+            } else if (c > 0x07ff) {
+                utfLength += 3;
+            } else {
+                utfLength += 2;
+            }
+        }
+        return utfLength > MAX_KEY_LENGTH;
+    }
+
+    private void putToSegment(String key, byte[] data) {
+        mLock.writeLock().lock();
+        try {
+            final Location location = append(key, data);
+            onPut(key, location);
+            mStats.recordWrite(data.length);
+            trimToSize();
+            scheduleCompactIfNeeded();
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "put() key=" + key + " error=" + ignored);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        // stale large entry would be visible after this one is evicted
+        mDiscCache.remove(key);
+    }
+
+    private boolean removeFromSegment(String key) {
+        mLock.writeLock().lock();
+        try {
+            if (!mIndex.containsKey(key)) {
+                return false;
+            }
+            append(key, null);
+            onRemove(key);
+            scheduleCompactIfNeeded();
+            return true;
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "remove() key=" + key + " error=" + ignored);
+            }
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void onPut(String key, Location location) {
+        final Location old = mIndex.put(key, location);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordLength;
+        }
+        location.segment.liveBytes += location.recordLength;
+    }
+
+    private void onRemove(String key) {
+        final Location old = mIndex.remove(key);
+        if (old != null) {
+            old.segment.liveBytes -= old.recordLength;
+        }
+    }
+
+    private static byte[] read(Location location) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(location.segment.channel, buffer, location.offset);
+        return buffer.array();
+    }
+
+    /**
+     * append a record to the active segment, caller must hold write lock
+     *
+     * @param value value, or null to record a removal
+     * @return location of value, or null for removal
+     */
+    private Location append(String key, byte[] value) throws IOException {
+        if (mActive == null || mActive.length >= mSegmentSize) {
+            rotate();
+        }
+        final byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+        final int valueLength = value == null ? REMOVED : value.length;
+        final int recordLength = HEADER_SIZE + keyBytes.length + Math.max(0, valueLength);
+        final CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        if (value != null) {
+            crc.update(value);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+        buffer.putInt(keyBytes.length).putInt(valueLength).putInt((int) crc.getValue());
+        buffer.put(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+        }
+        buffer.flip();
+        final Segment segment = mActive;
+        final long position = segment.length;
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, position + buffer.position());
+        }
+        segment.length += recordLength;
+        mSize += recordLength;
+        if (value == null) {
+            return null;
+        }
+        return new Location(segment, position + HEADER_SIZE + keyBytes.length,
+                valueLength, recordLength);
+    }
+
+    /**
+     * start a new active segment, save index so that it covers the new segment
+     */
+    private void rotate() throws IOException {
+        final int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        final Segment segment = new Segment(id, new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+        mSegments.put(id, segment);
+        mActive = segment;
+        writeIndex();
+    }
+
+    /**
+     * drop oldest segments until size is under max size
+     */
+    private void trimToSize() {
+        while (mMaxSize > 0 && mSize > mMaxSize && mSegments.size() > 1) {
+            final Segment oldest = mSegments.firstEntry().getValue();
+            if (oldest == mActive) {
+                break;
+            }
+            if (sDebug) {
+                LogUtils.v(TAG, "trimToSize() drop segment=" + oldest.file);
+            }
+            final Iterator<Location> it = mIndex.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().segment == oldest) {
+                    it.remove();
+                    mStats.recordEviction();
+                }
+            }
+            mSegments.remove(oldest.id);
+            writeIndex();
+            dropSegment(oldest);
+        }
+    }
+
+    private void dropSegment(Segment segment) {
+        mSegments.remove(segment.id);
+        mSize -= segment.length;
+        segment.close();
+        segment.file.delete();
+    }
+
+    private void scheduleCompactIfNeeded() {
+        if (mCompactScheduled || findCompactCandidate() == null) {
+            return;
+        }
+        mCompactScheduled = true;
+        sExecutor.execute(mCompactTask);
+    }
+
+    private Segment findCompactCandidate() {
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActive && segment.length > 0
+                    && segment.liveBytes * 100 < segment.length * (100 - DEAD_PERCENT_COMPACT)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * copy live records of sparse segments to the active segment, then delete them,
+     * each record is moved under the write lock so readers are blocked only briefly
+     */
+    private void compact() {
+        while (true) {
+            final Segment segment;
+            final List<String> keys = new ArrayList<String>();
+            mLock.writeLock().lock();
+            try {
+                mCompactScheduled = false;
+                segment = findCompactCandidate();
+                if (segment == null || !mSegments.containsKey(segment.id)) {
+                    return;
+                }
+                for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                    if (entry.getValue().segment == segment) {
+                        keys.add(entry.getKey());
+                    }
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+            if (sDebug) {
+                LogUtils.v(TAG, "compact() segment=" + segment.file + " live=" + keys.size());
+            }
+            for (String key : keys) {
+                mLock.writeLock().lock();
+                try {
+                    final Location location = mIndex.get(key);
+                    if (location != null && location.segment == segment) {
+                        onPut(key, append(key, read(location)));
+                    }
+                } catch (IOException ignored) {
+                    if (sDebug) {
+                        LogUtils.e(TAG, "compact() key=" + key + " error=" + ignored);
+                    }
+                    onRemove(key);
+                } finally {
+                    mLock.writeLock().unlock();
+                }
+            }
+            mLock.writeLock().lock();
+            try {
+                if (mSegments.get(segment.id) == segment) {
+                    final Iterator<Location> it = mIndex.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().segment == segment) {
+                            it.remove();
+                        }
+                    }
+                    // index must not refer to the segment once it is deleted
+                    mSegments.remove(segment.id);
+                    writeIndex();
+                    dropSegment(segment);
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * open segments, load index and replay records appended after it was saved,
+     * caller must hold write lock
+     */
+    private void open() {
+        mIndex.clear();
+        mSegments.clear();
+        mActive = null;
+        mSize = 0;
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    final int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                    final Segment segment = new Segment(id, file);
+                    mSegments.put(id, segment);
+                    mSize += segment.length;
+                } catch (NumberFormatException ignored) {
+                    file.delete();
+                } catch (IOException ignored) {
+                    if (sDebug) {
+                        LogUtils.e(TAG, "open() segment=" + file + " error=" + ignored);
+                    }
+                }
+            }
+        }
+        Map<Integer, Long> covered = null;
+        if (!mSegments.isEmpty()) {
+            try {
+                covered = readIndex();
+            } catch (IOException e) {
+                if (sDebug) {
+                    LogUtils.w(TAG, "open() index is corrupt, dropping segments: " + e);
+                }
+            }
+            if (covered == null) {
+                // removals may live in compacted segments, a full replay could resurrect them
+                closeSegments();
+                IOUtils.delete(mDirectory);
+                mDirectory.mkdirs();
+                mIndex.clear();
+                mSize = 0;
+            }
+        }
+        for (Segment segment : new ArrayList<Segment>(mSegments.values())) {
+            final Long from = covered == null ? null : covered.get(segment.id);
+            replay(segment, from == null ? 0 : from);
+        }
+        if (!mSegments.isEmpty()) {
+            mActive = mSegments.lastEntry().getValue();
+        }
+        if (sDebug) {
+            LogUtils.v(TAG, "open() segments=" + mSegments.size()
+                    + " entries=" + mIndex.size() + " size=" + mSize);
+        }
+    }
+
+    /**
+     * replay records from position, truncate the segment at a torn or corrupt record
+     */
+    private void replay(Segment segment, long from) {
+        long position = from;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            while (position + HEADER_SIZE <= segment.length) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                header.flip();
+                final int keyLength = header.getInt();
+                final int valueLength = header.getInt();
+                final int checksum = header.getInt();
+                if (keyLength < 0 || valueLength < REMOVED) {
+                    break;
+                }
+                // lengths of a corrupt header may be anything, check before allocating
+                final long bodyLength = (long) keyLength + Math.max(0, valueLength);
+                if (bodyLength > segment.length - position - HEADER_SIZE
+                        || bodyLength > Integer.MAX_VALUE - HEADER_SIZE) {
+                    break;
+                }
+                final int recordLength = (int) bodyLength + HEADER_SIZE;
+                final ByteBuffer body = ByteBuffer.allocate((int) bodyLength);
+                readFully(segment.channel, body, position + HEADER_SIZE);
+                final CRC32 crc = new CRC32();
+                crc.update(body.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                final String key = new String(body.array(), 0, keyLength, Charsets.UTF_8);
+                if (valueLength == REMOVED) {
+                    onRemove(key);
+                } else {
+                    onPut(key, new Location(segment, position + HEADER_SIZE + keyLength,
+                            valueLength, recordLength));
+                }
+                position += recordLength;
+            }
+            if (position < segment.length) {
+                if (sDebug) {
+                    LogUtils.w(TAG, "replay() truncate segment=" + segment.file + " at " + position);
+                }
+                mSize -= segment.length - position;
+                segment.channel.truncate(position);
+                segment.length = position;
+            }
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "replay() segment=" + segment.file + " error=" + ignored);
+            }
+        }
+    }
+
+    /**
+     * @return covered length of each segment, or null if there is no index
+     */
+    private Map<Integer, Long> readIndex() throws IOException {
+        final File file = new File(mDirectory, INDEX_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                throw new IOException("unexpected index header");
+            }
+            final Map<Integer, Long> covered = new HashMap<Integer, Long>();
+            final int segmentCount = input.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                final int id = input.readInt();
+                final long length = input.readLong();
+                final Segment segment = mSegments.get(id);
+                if (segment == null || segment.length < length) {
+                    throw new IOException("segment " + id + " is missing or truncated");
+                }
+                covered.put(id, length);
+            }
+            final int entryCount = input.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                final String key = input.readUTF();
+                final Segment segment = mSegments.get(input.readInt());
+                final long offset = input.readLong();
+                final int length = input.readInt();
+                final int recordLength = input.readInt();
+                if (segment == null || !covered.containsKey(segment.id)) {
+                    throw new IOException("unexpected index entry: " + key);
+                }
+                onPut(key, new Location(segment, offset, length, recordLength));
+            }
+            return covered;
+        } catch (EOFException e) {
+            throw new IOException("index is truncated");
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * save index to temp file and rename it, caller must hold write lock
+     */
+    private void writeIndex() {
+        final File temp = new File(mDirectory, INDEX_FILE_TEMP);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            output.writeInt(mSegments.size());
+            for (Segment segment : mSegments.values()) {
+                output.writeInt(segment.id);
+                output.writeLong(segment.length);
+            }
+            output.writeInt(mIndex.size());
+            for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                final Location location = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeInt(location.segment.id);
+                output.writeLong(location.offset);
+                output.writeInt(location.length);
+                output.writeInt(location.recordLength);
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(new File(mDirectory, INDEX_FILE))) {
+                throw new IOException("rename index failed");
+            }
+        } catch (IOException ignored) {
+            if (sDebug) {
+                LogUtils.e(TAG, "writeIndex() error=" + ignored);
+            }
+            // a stale index would hide later removals, drop it
+            new File(mDirectory, INDEX_FILE).delete();
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment : mSegments.values()) {
+            segment.close();
+        }
+        mSegments.clear();
+        mActive = null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position + buffer.position());
+            if (n == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+}
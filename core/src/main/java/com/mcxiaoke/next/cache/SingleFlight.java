@@ -0,0 +1,125 @@
+package com.mcxiaoke.next.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key into one call, other callers
+ * wait for the in-flight result. Loads of different keys run independently.
+ * A loader loading its own key again, directly or through other keys, would
+ * wait for itself, it fails with {@link IllegalStateException} instead.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 21:30
+ */
+final class SingleFlight<K, V> {
+
+    /**
+     * load task, run by the thread created it
+     */
+    static final class Flight<V> extends FutureTask<V> {
+        final Thread owner = Thread.currentThread();
+
+        Flight(final Callable<V> callable) {
+            super(callable);
+        }
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> mCalls =
+            new ConcurrentHashMap<K, Flight<V>>();
+    private final StatsCounter mStats;
+    /**
+     * number of finished loads, incremented before a load leaves mCalls
+     */
+    private final AtomicLong mFinished = new AtomicLong();
+
+    SingleFlight(final StatsCounter stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @return cached value, or value loaded by this or another caller
+     * @throws Exception exception thrown by the loader
+     * @throws IllegalStateException if called by the loader of key on the same thread
+     */
+    V get(final IMemoryCache<K, V> cache, final K key,
+          final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        final long finished = mFinished.get();
+        final V cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Flight<V> task = new Flight<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                V value = null;
+                if (mFinished.get() != finished) {
+                    // a load may complete between get and putIfAbsent, check again
+                    value = cache.get(key);
+                }
+                if (value == null) {
+                    value = load(key, loader);
+                    if (value != null) {
+                        cache.put(key, value);
+                    }
+                }
+                return value;
+            }
+        });
+        Flight<V> call = mCalls.putIfAbsent(key, task);
+        if (call != null && call.owner == Thread.currentThread()) {
+            throw new IllegalStateException("recursive load of key: " + key);
+        }
+        if (call == null) {
+            call = task;
+            try {
+                task.run();
+            } finally {
+                mFinished.incrementAndGet();
+                mCalls.remove(key, task);
+            }
+        }
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * a null value counts as load failure
+     */
+    private V load(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        final long start = System.nanoTime();
+        V value = null;
+        try {
+            value = loader.load(key);
+            return value;
+        } finally {
+            final long time = System.nanoTime() - start;
+            if (value != null) {
+                mStats.recordLoadSuccess(time);
+            } else {
+                mStats.recordLoadFailure(time);
+            }
+        }
+    }
+
+    /**
+     * @return number of loads in progress
+     */
+    int size() {
+        return mCalls.size();
+    }
+}
@@ -0,0 +1,542 @@
+package com.mcxiaoke.next.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory cache for byte arrays stored outside of the java heap, values are
+ * copied into direct {@link ByteBuffer} slabs, only a small index lives on the heap,
+ * so large caches add little garbage collection work.
+ * <p/>
+ * Slabs are split into chunks of a size class (64 bytes, growing by 1.25 up to the
+ * slab size), a value takes one chunk of the smallest class it fits. Each class has
+ * its own lru, when a class is full its least recently used entry is evicted, a class
+ * without any slab takes over a slab of the class holding the most slabs.
+ * Values larger than the slab size are not cached, maxSize should allow several
+ * slabs for each size class in use, or classes keep taking slabs from each other.
+ * <p/>
+ * {@link #get(String)} copies the value to the heap, {@link #getBuffer(String)} returns
+ * a read-only view without copying.
+ * <p/>
+ * Entries put with expires are scheduled in a {@link TimerWheel}, created when the
+ * first one is put, their chunks are freed at the deadline, or when read after it.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:55
+ */
+public class SlabCache implements IMemoryCache<String, byte[]> {
+
+    public static final int SLAB_SIZE_DEFAULT = 1024 * 1024;
+    static final int MIN_CHUNK_SIZE = 64;
+    static final float GROWTH_FACTOR = 1.25f;
+
+    static final class Slab {
+        final ByteBuffer buffer;
+        SizeClass owner;
+        int[] free;
+        int freeCount;
+
+        Slab(final int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        void assign(final SizeClass sizeClass) {
+            owner = sizeClass;
+            final int count = buffer.capacity() / sizeClass.chunkSize;
+            free = new int[count];
+            for (int i = 0; i < count; i++) {
+                // lowest offsets are used first
+                free[i] = (count - 1 - i) * sizeClass.chunkSize;
+            }
+            freeCount = count;
+        }
+    }
+
+    static final class Item {
+        final String key;
+        final Slab slab;
+        final int offset;
+        final int length;
+        Item prev;
+        Item next;
+
+        Item(final String key, final Slab slab, final int offset, final int length) {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final class SizeClass {
+        final int chunkSize;
+        final List<Slab> slabs = new ArrayList<Slab>();
+        /**
+         * lru list sentinel, head.next is least recently used
+         */
+        final Item head = new Item(null, null, 0, 0);
+
+        SizeClass(final int chunkSize) {
+            this.chunkSize = chunkSize;
+            head.prev = head;
+            head.next = head;
+        }
+
+        void addLast(final Item item) {
+            item.prev = head.prev;
+            item.next = head;
+            head.prev.next = item;
+            head.prev = item;
+        }
+
+        void unlink(final Item item) {
+            item.prev.next = item.next;
+            item.next.prev = item.prev;
+            item.prev = null;
+            item.next = null;
+        }
+
+        Item first() {
+            return head.next == head ? null : head.next;
+        }
+    }
+
+    private final int mMaxSize;
+    private final int mSlabSize;
+    private final int mMaxSlabs;
+    private final SizeClass[] mClasses;
+    private final HashMap<String, Item> mIndex = new HashMap<String, Item>();
+    /**
+     * allocated slabs not owned by any class, direct buffers are reused, never released
+     */
+    private final List<Slab> mFreeSlabs = new ArrayList<Slab>();
+    private int mSlabCount;
+    private int mSize;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<String, byte[]> mLoads = new SingleFlight<String, byte[]>(mStats);
+    /**
+     * created when the first entry with expires is put
+     */
+    private TimerWheel<String> mWheel;
+
+    private final TimerWheel.Listener<String> mExpirer = new TimerWheel.Listener<String>() {
+        @Override
+        public long onExpired(final String key, final long now) {
+            // called with the lock of this cache held
+            final Item item = mIndex.get(key);
+            if (item != null) {
+                release(item);
+                mStats.recordExpired();
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * @param maxSize max bytes of direct memory used by slabs
+     */
+    public SlabCache(int maxSize) {
+        this(maxSize, SLAB_SIZE_DEFAULT);
+    }
+
+    /**
+     * @param maxSize  max bytes of direct memory used by slabs
+     * @param slabSize bytes of one slab, also the max size of a cached value
+     */
+    public SlabCache(int maxSize, int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("slabSize < " + MIN_CHUNK_SIZE);
+        }
+        if (maxSize < slabSize) {
+            throw new IllegalArgumentException("maxSize < slabSize");
+        }
+        mMaxSize = maxSize;
+        mSlabSize = slabSize;
+        mMaxSlabs = maxSize / slabSize;
+        final List<SizeClass> classes = new ArrayList<SizeClass>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < slabSize) {
+            classes.add(new SizeClass(chunkSize));
+            // align to 8 bytes
+            chunkSize = ((int) (chunkSize * GROWTH_FACTOR) + 7) & ~7;
+        }
+        classes.add(new SizeClass(slabSize));
+        mClasses = classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    /**
+     * @return a copy of the value on the heap
+     */
+    @Override
+    public synchronized byte[] get(final String key) {
+        final Item item = getItem(key);
+        if (item == null) {
+            return null;
+        }
+        mStats.recordRead(item.length);
+        return copyOf(item);
+    }
+
+    /**
+     * the returned view shares memory with the cache, it is valid until the entry
+     * is replaced, removed or evicted, its chunk may be reused by other entries later,
+     * copy the content if it must be kept longer
+     *
+     * @return read-only view of the value, null if not found
+     */
+    public synchronized ByteBuffer getBuffer(final String key) {
+        final Item item = getItem(key);
+        if (item == null) {
+            return null;
+        }
+        final ByteBuffer buffer = item.slab.buffer.duplicate();
+        buffer.limit(item.offset + item.length);
+        buffer.position(item.offset);
+        mStats.recordRead(item.length);
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] get(final String key, final CacheLoader<? super String, ? extends byte[]> loader)
+            throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> getAll(final Iterable<? extends String> keys) {
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (String key : keys) {
+            final byte[] value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * value is copied into a slab chunk, values larger than slab size are not cached,
+     * the chunk of the previous value is freed without copying it to the heap
+     *
+     * @return always null, use {@link #getAndPut(String, byte[])} for the previous value
+     */
+    @Override
+    public synchronized byte[] put(final String key, final byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final Item old = mIndex.get(key);
+        if (old != null) {
+            release(old);
+        }
+        putItem(key, value);
+        if (mWheel != null) {
+            mWheel.advance(System.currentTimeMillis());
+        }
+        return null;
+    }
+
+    /**
+     * same as {@link #put(String, byte[])}, but copies the previous value to the heap
+     *
+     * @return a copy of the previous value, null if not found
+     */
+    public synchronized byte[] getAndPut(final String key, final byte[] value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final byte[] previous = remove(key);
+        putItem(key, value);
+        if (mWheel != null) {
+            mWheel.advance(System.currentTimeMillis());
+        }
+        return previous;
+    }
+
+    private void putItem(final String key, final byte[] value) {
+        final SizeClass sizeClass = classFor(value.length);
+        if (sizeClass == null) {
+            return;
+        }
+        final Slab slab = allocate(sizeClass);
+        if (slab == null) {
+            return;
+        }
+        final int offset = slab.free[--slab.freeCount];
+        final ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(value);
+        final Item item = new Item(key, slab, offset, value.length);
+        mIndex.put(key, item);
+        sizeClass.addLast(item);
+        mSize += value.length;
+        mStats.recordWrite(value.length);
+    }
+
+    @Override
+    public synchronized void putAll(final Map<? extends String, ? extends byte[]> map) {
+        for (Map.Entry<? extends String, ? extends byte[]> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * same as {@link #put(String, byte[])}, the entry is removed after expires
+     *
+     * @param expires time to live in millis, 0 means never expires
+     * @return always null
+     */
+    @Override
+    public synchronized byte[] put(final String key, final byte[] value, final long expires) {
+        if (expires <= 0) {
+            return put(key, value);
+        }
+        put(key, value);
+        final long now = System.currentTimeMillis();
+        if (mWheel == null) {
+            mWheel = new TimerWheel<String>(mExpirer, now);
+        }
+        // values larger than slab size are not cached
+        if (mIndex.containsKey(key)) {
+            mWheel.schedule(key, now + expires);
+        }
+        mWheel.advance(now);
+        return null;
+    }
+
+    /**
+     * @return a copy of the removed value
+     */
+    @Override
+    public synchronized byte[] remove(final String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Item item = mIndex.get(key);
+        if (item == null) {
+            return null;
+        }
+        final byte[] value = copyOf(item);
+        release(item);
+        return value;
+    }
+
+    @Override
+    public synchronized void removeAll(final Iterable<? extends String> keys) {
+        for (String key : keys) {
+            final Item item = mIndex.get(key);
+            if (item != null) {
+                release(item);
+            }
+        }
+    }
+
+    /**
+     * slabs are kept for reuse, direct memory is released when the cache is collected
+     */
+    @Override
+    public synchronized void clear() {
+        mIndex.clear();
+        for (SizeClass sizeClass : mClasses) {
+            for (Slab slab : sizeClass.slabs) {
+                slab.owner = null;
+                slab.free = null;
+                mFreeSlabs.add(slab);
+            }
+            sizeClass.slabs.clear();
+            sizeClass.head.prev = sizeClass.head;
+            sizeClass.head.next = sizeClass.head;
+        }
+        mSize = 0;
+        if (mWheel != null) {
+            mWheel.clear();
+        }
+    }
+
+    /**
+     * @return total bytes of cached values
+     */
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return max bytes of direct memory used by slabs
+     */
+    @Override
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return number of cached entries
+     */
+    public synchronized int count() {
+        return mIndex.size();
+    }
+
+    /**
+     * all values are copied to the heap, ordered by size class,
+     * then from least recently accessed to most recently accessed,
+     * expired entries are skipped
+     */
+    @Override
+    public synchronized Map<String, byte[]> snapshot() {
+        final Map<String, byte[]> map = new LinkedHashMap<String, byte[]>(mIndex.size());
+        final long now = System.currentTimeMillis();
+        for (SizeClass sizeClass : mClasses) {
+            for (Item item = sizeClass.head.next; item != sizeClass.head; item = item.next) {
+                if (!isExpired(item.key, now)) {
+                    map.put(item.key, copyOf(item));
+                }
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot();
+    }
+
+    private Item getItem(final String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Item item = mIndex.get(key);
+        if (item == null) {
+            mStats.recordMiss();
+            return null;
+        }
+        if (isExpired(key, System.currentTimeMillis())) {
+            release(item);
+            mStats.recordExpired();
+            mStats.recordMiss();
+            return null;
+        }
+        mStats.recordHit();
+        final SizeClass sizeClass = item.slab.owner;
+        sizeClass.unlink(item);
+        sizeClass.addLast(item);
+        return item;
+    }
+
+    /**
+     * @return count of keys in the timer wheel, for tests
+     */
+    synchronized int scheduledCount() {
+        return mWheel == null ? 0 : mWheel.size();
+    }
+
+    private boolean isExpired(final String key, final long now) {
+        if (mWheel == null) {
+            return false;
+        }
+        final long deadline = mWheel.getDeadline(key);
+        return deadline > 0 && deadline <= now;
+    }
+
+    private static byte[] copyOf(final Item item) {
+        final byte[] value = new byte[item.length];
+        final ByteBuffer buffer = item.slab.buffer.duplicate();
+        buffer.position(item.offset);
+        buffer.get(value);
+        return value;
+    }
+
+    private SizeClass classFor(final int length) {
+        int low = 0;
+        int high = mClasses.length - 1;
+        if (length > mClasses[high].chunkSize) {
+            return null;
+        }
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mClasses[mid].chunkSize < length) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return mClasses[low];
+    }
+
+    /**
+     * @return a slab of the class with at least one free chunk
+     */
+    private Slab allocate(final SizeClass sizeClass) {
+        while (true) {
+            for (Slab slab : sizeClass.slabs) {
+                if (slab.freeCount > 0) {
+                    return slab;
+                }
+            }
+            Slab slab = null;
+            if (!mFreeSlabs.isEmpty()) {
+                slab = mFreeSlabs.remove(mFreeSlabs.size() - 1);
+            } else if (mSlabCount < mMaxSlabs) {
+                slab = new Slab(mSlabSize);
+                mSlabCount++;
+            } else if (sizeClass.first() != null) {
+                evict(sizeClass.first());
+                continue;
+            } else {
+                slab = takeSlab();
+            }
+            if (slab == null) {
+                return null;
+            }
+            slab.assign(sizeClass);
+            sizeClass.slabs.add(slab);
+        }
+    }
+
+    /**
+     * take over a slab of the class holding the most slabs, entries in it are evicted
+     */
+    private Slab takeSlab() {
+        SizeClass victim = null;
+        for (SizeClass sizeClass : mClasses) {
+            if (victim == null || sizeClass.slabs.size() > victim.slabs.size()) {
+                victim = sizeClass;
+            }
+        }
+        if (victim == null || victim.slabs.isEmpty()) {
+            return null;
+        }
+        final Slab slab = victim.slabs.get(0);
+        Item item = victim.head.next;
+        while (item != victim.head) {
+            final Item next = item.next;
+            if (item.slab == slab) {
+                evict(item);
+            }
+            item = next;
+        }
+        victim.slabs.remove(0);
+        slab.owner = null;
+        slab.free = null;
+        return slab;
+    }
+
+    private void evict(final Item item) {
+        release(item);
+        mStats.recordEviction();
+    }
+
+    private void release(final Item item) {
+        mIndex.remove(item.key);
+        if (mWheel != null) {
+            mWheel.deschedule(item.key);
+        }
+        item.slab.owner.unlink(item);
+        item.slab.free[item.slab.freeCount++] = item.offset;
+        mSize -= item.length;
+    }
+}
@@ -0,0 +1,79 @@
+package com.mcxiaoke.next.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe accumulator behind {@link CacheStats}.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 23:25
+ */
+final class StatsCounter {
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mLoadSuccessCount = new AtomicLong();
+    private final AtomicLong mLoadFailureCount = new AtomicLong();
+    private final AtomicLong mTotalLoadTime = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    void recordHit() {
+        mHitCount.incrementAndGet();
+    }
+
+    void recordMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    void recordHits(int count) {
+        mHitCount.addAndGet(count);
+    }
+
+    void recordMisses(int count) {
+        mMissCount.addAndGet(count);
+    }
+
+    void recordLoadSuccess(long loadTime) {
+        mLoadSuccessCount.incrementAndGet();
+        mTotalLoadTime.addAndGet(loadTime);
+    }
+
+    void recordLoadFailure(long loadTime) {
+        mLoadFailureCount.incrementAndGet();
+        mTotalLoadTime.addAndGet(loadTime);
+    }
+
+    void recordEviction() {
+        mEvictionCount.incrementAndGet();
+    }
+
+    void recordExpired() {
+        mExpiredCount.incrementAndGet();
+    }
+
+    void recordRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+    }
+
+    void recordWrite(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    CacheStats snapshot() {
+        return snapshot(mEvictionCount.get());
+    }
+
+    /**
+     * @param evictionCount evictions counted by the underlying cache
+     */
+    CacheStats snapshot(long evictionCount) {
+        return new CacheStats(mHitCount.get(), mMissCount.get(),
+                mLoadSuccessCount.get(), mLoadFailureCount.get(), mTotalLoadTime.get(),
+                evictionCount, mExpiredCount.get(),
+                mBytesRead.get(), mBytesWritten.get());
+    }
+}
@@ -0,0 +1,482 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.Charsets;
+import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-tier cache, reads check memory first, then disc, then the loader,
+ * disc hits and loaded values are promoted into memory.
+ * Writes go to memory synchronously and to disc asynchronously (write-behind).
+ * Removes are also applied to disc asynchronously, until then reads skip the
+ * disc copy of removed keys, so a removed value is never read back from disc.
+ * If refresh after write is set, memory and disc hits older than it are returned
+ * at once and reloaded by the loader in background (stale-while-revalidate),
+ * the write time is saved in a small header before each value on disc, and kept
+ * in a small lru beside the memory cache for values in memory.
+ * If negative cache is set, keys found neither on disc nor by the loader are
+ * remembered for a while, reads of them return null without disc or loader access.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 20:25
+ */
+public class TieredCache<V> {
+    public static final String TAG = TieredCache.class.getSimpleName();
+
+    /**
+     * converts values to bytes for disc cache
+     */
+    public interface Converter<V> {
+
+        byte[] encode(V value) throws IOException;
+
+        V decode(byte[] data) throws IOException;
+    }
+
+    public static final Converter<byte[]> BYTES = new Converter<byte[]>() {
+        @Override
+        public byte[] encode(final byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(final byte[] data) {
+            return data;
+        }
+    };
+
+    public static final Converter<String> STRING = string(Charsets.UTF_8);
+
+    public static Converter<String> string(final Charset charset) {
+        return new Converter<String>() {
+            @Override
+            public byte[] encode(final String value) {
+                return value.getBytes(charset);
+            }
+
+            @Override
+            public String decode(final byte[] data) {
+                return new String(data, charset);
+            }
+        };
+    }
+
+    /**
+     * disc header: magic, write time in millis, followed by the converted value
+     */
+    static final int DISC_MAGIC = 0x4e585457;
+    static final int DISC_HEADER_SIZE = 12;
+
+    private static final Executor sExecutor = ThreadUtils.newSingleThreadExecutor("tiered-cache");
+    /**
+     * pending write of a removed key, disc copy is deleted later
+     */
+    private static final Object REMOVED = new Object();
+    private static boolean sDebug;
+
+    private final IMemoryCache<String, V> mMemoryCache;
+    private final IDiscCache mDiscCache;
+    private final Converter<V> mConverter;
+    private final CacheLoader<String, V> mLoader;
+    private final Executor mExecutor;
+    /**
+     * values waiting for write-behind, visible to reads until written,
+     * or {@link #REMOVED} for keys waiting for disc remove
+     */
+    private final ConcurrentHashMap<String, Object> mPendingWrites;
+    /**
+     * disc clears queued and finished, disc is not read while they differ
+     */
+    private final AtomicInteger mClearsQueued = new AtomicInteger();
+    private final AtomicInteger mClearsDone = new AtomicInteger();
+    /**
+     * keys being refreshed, at most one refresh per key
+     */
+    private final ConcurrentHashMap<String, Boolean> mRefreshing;
+    private volatile long mRefreshAfterWrite;
+    private volatile Executor mRefreshExecutor;
+    /**
+     * write times of values put or promoted into memory while refresh is set,
+     * a memory hit without write time is reloaded once
+     */
+    private volatile LruCacheCompat<String, Long> mWriteTimes;
+    private volatile NegativeCache<String> mMissing;
+
+    public TieredCache(final IMemoryCache<String, V> memoryCache,
+                       final IDiscCache discCache,
+                       final Converter<V> converter) {
+        this(memoryCache, discCache, converter, null);
+    }
+
+    public TieredCache(final IMemoryCache<String, V> memoryCache,
+                       final IDiscCache discCache,
+                       final Converter<V> converter,
+                       final CacheLoader<String, V> loader) {
+        this(memoryCache, discCache, converter, loader, sExecutor);
+    }
+
+    /**
+     * @param executor executor for disc writes, must run tasks in order
+     */
+    public TieredCache(final IMemoryCache<String, V> memoryCache,
+                       final IDiscCache discCache,
+                       final Converter<V> converter,
+                       final CacheLoader<String, V> loader,
+                       final Executor executor) {
+        if (memoryCache == null || discCache == null || converter == null || executor == null) {
+            throw new NullPointerException("memoryCache, discCache, converter and executor must not be null.");
+        }
+        mMemoryCache = memoryCache;
+        mDiscCache = discCache;
+        mConverter = converter;
+        mLoader = loader;
+        mExecutor = executor;
+        mPendingWrites = new ConcurrentHashMap<String, Object>();
+        mRefreshing = new ConcurrentHashMap<String, Boolean>();
+    }
+
+    public static void setDebug(final boolean debug) {
+        sDebug = debug;
+    }
+
+    /**
+     * entries older than millis are reloaded in background when read from memory
+     * or disc, age is the write time saved with the entry, entries written without
+     * it by older versions, or put into the memory cache directly, are reloaded on
+     * first read
+     *
+     * @param millis   refresh interval, 0 means never
+     * @param executor executor for reloads
+     */
+    public void setRefreshAfterWrite(final long millis, final Executor executor) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("refreshAfterWrite < 0");
+        }
+        if (millis > 0 && executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        mRefreshExecutor = executor;
+        if (millis > 0 && mWriteTimes == null) {
+            mWriteTimes = new LruCacheCompat<String, Long>(Math.max(1, mMemoryCache.maxSize()));
+        }
+        mRefreshAfterWrite = millis;
+    }
+
+    /**
+     * remember missing keys, loader should return null for values that do not exist,
+     * exceptions thrown by the loader are treated as transient and not remembered
+     *
+     * @param maxSize max number of missing keys, 0 to disable
+     * @param ttl     time to live of missing keys in millis
+     */
+    public void setNegativeCache(final int maxSize, final long ttl) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMissing = maxSize == 0 ? null : new NegativeCache<String>(maxSize, ttl);
+    }
+
+    public IMemoryCache<String, V> getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    public IDiscCache getDiscCache() {
+        return mDiscCache;
+    }
+
+    public Converter<V> getConverter() {
+        return mConverter;
+    }
+
+    /**
+     * @return converter of disc values, with the write time header
+     */
+    Converter<V> getDiscConverter() {
+        return new Converter<V>() {
+            @Override
+            public byte[] encode(final V value) throws IOException {
+                return frame(mConverter.encode(value), System.currentTimeMillis());
+            }
+
+            @Override
+            public V decode(final byte[] data) throws IOException {
+                return mConverter.decode(payloadOf(data));
+            }
+        };
+    }
+
+    /**
+     * @return value from memory, disc or loader, null if not found or load failed
+     */
+    public V get(final String key) {
+        V value = mMemoryCache.get(key);
+        if (value != null) {
+            if (mRefreshAfterWrite > 0) {
+                final Long writeTime = mWriteTimes.get(key);
+                refreshIfNeeded(key, writeTime == null ? 0 : writeTime);
+            }
+            return value;
+        }
+        final Object pending = mPendingWrites.get(key);
+        final NegativeCache<String> missing = mMissing;
+        if (pending == null) {
+            if (missing != null && missing.contains(key)) {
+                return null;
+            }
+            value = getFromDisc(key);
+        } else if (pending != REMOVED) {
+            // written by put, its write time is kept
+            value = cast(pending);
+        }
+        if (value != null) {
+            // promote disc hit into memory
+            mMemoryCache.put(key, value);
+            return value;
+        }
+        if (mLoader == null) {
+            onMissing(missing, key);
+            return null;
+        }
+        try {
+            value = mLoader.load(key);
+        } catch (Exception e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "load() key=" + key + " error=" + e);
+            }
+            return null;
+        }
+        if (value != null) {
+            put(key, value);
+        } else {
+            onMissing(missing, key);
+        }
+        return value;
+    }
+
+    /**
+     * put into memory now, write to disc later
+     */
+    public void put(final String key, final V value) {
+        final long writeTime = System.currentTimeMillis();
+        mMemoryCache.put(key, value);
+        putWriteTime(key, writeTime);
+        mPendingWrites.put(key, value);
+        final NegativeCache<String> missing = mMissing;
+        if (missing != null) {
+            missing.remove(key);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeToDisc(key, value, writeTime);
+            }
+        });
+    }
+
+    /**
+     * remove from memory now, from disc later, reads do not see the disc copy
+     */
+    public void remove(final String key) {
+        mPendingWrites.put(key, REMOVED);
+        mMemoryCache.remove(key);
+        final LruCacheCompat<String, Long> writeTimes = mWriteTimes;
+        if (writeTimes != null) {
+            writeTimes.remove(key);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDiscCache.remove(key);
+                } finally {
+                    // tasks run in order, a later put or remove has its own task
+                    mPendingWrites.remove(key, REMOVED);
+                }
+            }
+        });
+    }
+
+    /**
+     * clear memory now, disc later, reads do not see disc until it is cleared
+     */
+    public void clear() {
+        mClearsQueued.incrementAndGet();
+        mMemoryCache.clear();
+        final LruCacheCompat<String, Long> writeTimes = mWriteTimes;
+        if (writeTimes != null) {
+            writeTimes.evictAll();
+        }
+        mPendingWrites.clear();
+        final NegativeCache<String> missing = mMissing;
+        if (missing != null) {
+            missing.clear();
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDiscCache.clear();
+                } finally {
+                    mClearsDone.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void onMissing(final NegativeCache<String> missing, final String key) {
+        if (missing == null) {
+            return;
+        }
+        missing.add(key);
+        // a concurrent put may have finished before the add
+        final Object pending = mPendingWrites.get(key);
+        if (pending != null && pending != REMOVED) {
+            missing.remove(key);
+        }
+    }
+
+    /**
+     * @return null if not found, or if the disc copy is removed or cleared
+     * before or while reading
+     */
+    private V getFromDisc(final String key) {
+        final int clears = mClearsQueued.get();
+        if (clears != mClearsDone.get()) {
+            return null;
+        }
+        final byte[] data = mDiscCache.getBytes(key);
+        if (data == null || clears != mClearsQueued.get()
+                || mPendingWrites.get(key) == REMOVED) {
+            return null;
+        }
+        final V value;
+        try {
+            value = mConverter.decode(payloadOf(data));
+        } catch (IOException e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "getFromDisc() key=" + key + " error=" + e);
+            }
+            return null;
+        }
+        if (value != null) {
+            final long writeTime = writeTimeOf(data);
+            // promoted into memory by caller
+            putWriteTime(key, writeTime);
+            refreshIfNeeded(key, writeTime);
+        }
+        return value;
+    }
+
+    /**
+     * @param writeTime 0 if unknown, the value is reloaded on next memory hit
+     */
+    private void putWriteTime(final String key, final long writeTime) {
+        final LruCacheCompat<String, Long> writeTimes = mWriteTimes;
+        if (writeTimes == null || mRefreshAfterWrite <= 0) {
+            return;
+        }
+        if (writeTime > 0) {
+            writeTimes.put(key, writeTime);
+        } else {
+            writeTimes.remove(key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V cast(final Object pending) {
+        return (V) pending;
+    }
+
+    /**
+     * @param writeTime write time saved with the disc value, 0 if unknown
+     */
+    private void refreshIfNeeded(final String key, final long writeTime) {
+        final long refreshAfterWrite = mRefreshAfterWrite;
+        if (refreshAfterWrite <= 0 || mLoader == null) {
+            return;
+        }
+        if (writeTime > 0 && System.currentTimeMillis() - writeTime < refreshAfterWrite) {
+            return;
+        }
+        if (mRefreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            mRefreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final V value = load(key);
+                        // stale value is kept if load failed
+                        if (value != null) {
+                            put(key, value);
+                        }
+                    } finally {
+                        mRefreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRefreshing.remove(key);
+        }
+    }
+
+    private void writeToDisc(final String key, final V value, final long writeTime) {
+        // skip if removed or replaced by a newer put
+        if (mPendingWrites.get(key) != value) {
+            return;
+        }
+        try {
+            mDiscCache.put(key, frame(mConverter.encode(value), writeTime));
+        } catch (IOException e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "writeToDisc() key=" + key + " error=" + e);
+            }
+        } finally {
+            // only if not replaced while writing
+            mPendingWrites.remove(key, value);
+        }
+    }
+
+    private V load(final String key) {
+        try {
+            return mLoader.load(key);
+        } catch (Exception e) {
+            if (sDebug) {
+                LogUtils.e(TAG, "load() key=" + key + " error=" + e);
+            }
+            return null;
+        }
+    }
+
+    static byte[] frame(final byte[] data, final long writeTime) {
+        final ByteBuffer buffer = ByteBuffer.allocate(DISC_HEADER_SIZE + data.length);
+        buffer.putInt(DISC_MAGIC).putLong(writeTime).put(data);
+        return buffer.array();
+    }
+
+    /**
+     * @return write time of disc value, or 0 if written without header
+     */
+    static long writeTimeOf(final byte[] data) {
+        return hasHeader(data) ? ByteBuffer.wrap(data).getLong(4) : 0;
+    }
+
+    static byte[] payloadOf(final byte[] data) {
+        return hasHeader(data) ? Arrays.copyOfRange(data, DISC_HEADER_SIZE, data.length) : data;
+    }
+
+    private static boolean hasHeader(final byte[] data) {
+        return data.length >= DISC_HEADER_SIZE && ByteBuffer.wrap(data).getInt() == DISC_MAGIC;
+    }
+}
@@ -0,0 +1,197 @@
+package com.mcxiaoke.next.cache;
+
+import java.util.HashMap;
+
+/**
+ * Hierarchical timer wheel for cache entry expiration, schedule, deschedule
+ * and expire are O(1), entries in coarse wheels are cascaded down to finer
+ * wheels when time advances. Not thread safe, callers must synchronize.
+ * <p/>
+ * Wheel spans in milliseconds: ~1s, ~1m, ~1h, ~18h, ~12d
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 17:30
+ */
+final class TimerWheel<K> {
+
+    interface Listener<K> {
+        /**
+         * Called when the deadline of key is reached.
+         *
+         * @return a new deadline later than now to keep the key scheduled,
+         * or 0 to drop it
+         */
+        long onExpired(K key, long now);
+    }
+
+    private static final int[] BUCKETS = {64, 64, 32, 4, 1};
+    private static final int[] SHIFT = {10, 16, 22, 26, 30};
+    private static final long[] SPANS = {
+            1L << SHIFT[0], 1L << SHIFT[1], 1L << SHIFT[2],
+            1L << SHIFT[3], 1L << SHIFT[4], 1L << SHIFT[4]};
+
+    static final class Node<K> {
+        final K key;
+        long deadline;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(final K key) {
+            this.key = key;
+        }
+    }
+
+    private final Node<K>[][] mWheel;
+    private final HashMap<K, Node<K>> mNodes;
+    private final Listener<K> mListener;
+    private long mTime;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(final Listener<K> listener, final long now) {
+        mListener = listener;
+        mNodes = new HashMap<K, Node<K>>();
+        mWheel = (Node<K>[][]) new Node<?>[BUCKETS.length][];
+        for (int i = 0; i < mWheel.length; i++) {
+            mWheel[i] = (Node<K>[]) new Node<?>[BUCKETS[i]];
+            for (int j = 0; j < mWheel[i].length; j++) {
+                final Node<K> sentinel = new Node<K>(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                mWheel[i][j] = sentinel;
+            }
+        }
+        mTime = now;
+    }
+
+    /**
+     * schedule or reschedule key at the deadline
+     */
+    void schedule(final K key, final long deadline) {
+        Node<K> node = mNodes.get(key);
+        if (node == null) {
+            node = new Node<K>(key);
+            mNodes.put(key, node);
+        } else {
+            unlink(node);
+        }
+        node.deadline = deadline;
+        link(findBucket(deadline), node);
+    }
+
+    void deschedule(final K key) {
+        final Node<K> node = mNodes.remove(key);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * @return deadline of key, or 0 if not scheduled
+     */
+    long getDeadline(final K key) {
+        final Node<K> node = mNodes.get(key);
+        return node == null ? 0 : node.deadline;
+    }
+
+    int size() {
+        return mNodes.size();
+    }
+
+    void clear() {
+        for (Node<K>[] wheel : mWheel) {
+            for (Node<K> sentinel : wheel) {
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+            }
+        }
+        mNodes.clear();
+    }
+
+    /**
+     * advance the wheel to now, expire due keys and cascade the others
+     */
+    void advance(final long now) {
+        final long previous = mTime;
+        if (now <= previous) {
+            return;
+        }
+        mTime = now;
+        for (int i = 0; i < SHIFT.length; i++) {
+            final long previousTicks = previous >>> SHIFT[i];
+            final long currentTicks = now >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, now);
+        }
+    }
+
+    private void expire(final int index, final long previousTicks,
+                        final long delta, final long now) {
+        final Node<K>[] wheel = mWheel[index];
+        final int mask = wheel.length - 1;
+        final int steps = (int) Math.min(1 + delta, wheel.length);
+        final int start = (int) (previousTicks & mask);
+        final int end = start + steps;
+        for (int i = start; i < end; i++) {
+            final Node<K> sentinel = wheel[i & mask];
+            Node<K> node = sentinel.next;
+            // detach the whole bucket, due nodes expire, others are rescheduled
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            while (node != sentinel) {
+                final Node<K> next = node.next;
+                node.prev = null;
+                node.next = null;
+                if (node.deadline <= now) {
+                    final long deadline = mListener.onExpired(node.key, now);
+                    if (deadline > now && mNodes.get(node.key) == node) {
+                        node.deadline = deadline;
+                        link(findBucket(deadline), node);
+                    } else if (mNodes.get(node.key) == node) {
+                        mNodes.remove(node.key);
+                    }
+                } else {
+                    link(findBucket(node.deadline), node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private Node<K> findBucket(final long deadline) {
+        final long duration = deadline - mTime;
+        if (duration <= 0) {
+            // already due, the bucket of the deadline may be passed, use the current one,
+            // it is expired on next tick
+            final long ticks = mTime >>> SHIFT[0];
+            return mWheel[0][(int) (ticks & (mWheel[0].length - 1))];
+        }
+        final int length = mWheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                final long ticks = deadline >>> SHIFT[i];
+                final int index = (int) (ticks & (mWheel[i].length - 1));
+                return mWheel[i][index];
+            }
+        }
+        return mWheel[length][0];
+    }
+
+    private static <K> void link(final Node<K> sentinel, final Node<K> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static <K> void unlink(final Node<K> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+}
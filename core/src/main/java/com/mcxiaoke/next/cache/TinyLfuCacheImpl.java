@@ -0,0 +1,439 @@
+package com.mcxiaoke.next.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU cache, new entries go to a small lru window, entries leaving the
+ * window are admitted to the main segmented lru region only if they are
+ * accessed more often than the main region's eviction victim, so one-off
+ * scans can not flush popular entries out of the cache.
+ * <p/>
+ * Main region is split into probation and protected queues,
+ * an entry hit in probation is promoted to protected.
+ * <p/>
+ * Entries put with expires are scheduled in a {@link TimerWheel}, created when
+ * the first one is put, expired entries are removed on writes and skipped on reads.
+ * <p/>
+ * The policy follows the W-TinyLFU design of Einziger, Friedman and Manes,
+ * "TinyLFU: A Highly Efficient Cache Admission Policy", as used by Caffeine.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 14:45
+ */
+class TinyLfuCacheImpl<K, V> implements BackingCache<K, V> {
+
+    static final int WINDOW_PERCENT = 1;
+    static final int PROTECTED_PERCENT = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    static final class Node<K, V> {
+        final K key;
+        V value;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(final K key, final V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * doubly linked access queue, head is least recently used
+     */
+    static final class AccessQueue<K, V> {
+        final Node<K, V> head = new Node<K, V>(null, null);
+        int size;
+
+        AccessQueue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void addLast(final Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            size++;
+        }
+
+        void unlink(final Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        void moveToLast(final Node<K, V> node) {
+            unlink(node);
+            addLast(node);
+        }
+
+        Node<K, V> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void clear() {
+            head.prev = head;
+            head.next = head;
+            size = 0;
+        }
+    }
+
+    private final HashMap<K, Node<K, V>> mData;
+    private final FrequencySketch<K> mSketch;
+    private final AccessQueue<K, V> mWindow;
+    private final AccessQueue<K, V> mProbation;
+    private final AccessQueue<K, V> mProtected;
+    private final int mMaxSize;
+    private final int mMaxWindow;
+    private final int mMaxMain;
+    private final int mMaxProtected;
+    private final StatsCounter mStats = new StatsCounter();
+    private final SingleFlight<K, V> mLoads = new SingleFlight<K, V>(mStats);
+    private volatile EvictionListener<K> mEvictionListener;
+    /**
+     * created when the first entry with expires is put
+     */
+    private TimerWheel<K> mWheel;
+
+    private final TimerWheel.Listener<K> mExpirer = new TimerWheel.Listener<K>() {
+        @Override
+        public long onExpired(final K key, final long now) {
+            // called with the lock of this cache held
+            if (removeNode(key) != null) {
+                mStats.recordExpired();
+            }
+            return 0;
+        }
+    };
+
+    public TinyLfuCacheImpl(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mMaxWindow = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+        mMaxMain = maxSize - mMaxWindow;
+        mMaxProtected = mMaxMain * PROTECTED_PERCENT / 100;
+        mData = new HashMap<K, Node<K, V>>();
+        mSketch = new FrequencySketch<K>(maxSize);
+        mWindow = new AccessQueue<K, V>();
+        mProbation = new AccessQueue<K, V>();
+        mProtected = new AccessQueue<K, V>();
+    }
+
+    @Override
+    public synchronized V get(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        mSketch.increment(key);
+        final Node<K, V> node = mData.get(key);
+        if (node == null) {
+            mStats.recordMiss();
+            return null;
+        }
+        if (isExpired(key, System.currentTimeMillis())) {
+            remove(key);
+            mStats.recordExpired();
+            mStats.recordMiss();
+            return null;
+        }
+        mStats.recordHit();
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * no sketch increment, the key is not moved in its queue
+     */
+    @Override
+    public synchronized V peek(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Node<K, V> node = mData.get(key);
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public synchronized boolean containsKey(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return mData.containsKey(key);
+    }
+
+    /**
+     * the listener is called with the lock of this cache held
+     */
+    @Override
+    public void setEvictionListener(final EvictionListener<K> listener) {
+        mEvictionListener = listener;
+    }
+
+    @Override
+    public V get(final K key, final CacheLoader<? super K, ? extends V> loader) throws Exception {
+        return mLoads.get(this, key, loader);
+    }
+
+    @Override
+    public synchronized Map<K, V> getAll(final Iterable<? extends K> keys) {
+        final Map<K, V> result = new LinkedHashMap<K, V>();
+        for (K key : keys) {
+            final V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void putAll(final Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized V put(final K key, final V value) {
+        final V previous = putNode(key, value);
+        if (mWheel != null) {
+            mWheel.deschedule(key);
+            mWheel.advance(System.currentTimeMillis());
+        }
+        return previous;
+    }
+
+    /**
+     * @param expires time to live in millis, 0 means never expires
+     */
+    @Override
+    public synchronized V put(final K key, final V value, final long expires) {
+        if (expires <= 0) {
+            return put(key, value);
+        }
+        final long now = System.currentTimeMillis();
+        if (mWheel == null) {
+            mWheel = new TimerWheel<K>(mExpirer, now);
+        }
+        final V previous = putNode(key, value);
+        // the new entry may be rejected by admission at once
+        if (mData.containsKey(key)) {
+            mWheel.schedule(key, now + expires);
+        }
+        mWheel.advance(now);
+        return previous;
+    }
+
+    private V putNode(final K key, final V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        mSketch.increment(key);
+        final Node<K, V> old = mData.get(key);
+        if (old != null) {
+            final V previous = old.value;
+            old.value = value;
+            onAccess(old);
+            return previous;
+        }
+        final Node<K, V> node = new Node<K, V>(key, value);
+        node.queue = WINDOW;
+        mData.put(key, node);
+        mWindow.addLast(node);
+        evictFromWindow();
+        return null;
+    }
+
+    @Override
+    public synchronized V remove(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        if (mWheel != null) {
+            mWheel.deschedule(key);
+        }
+        return removeNode(key);
+    }
+
+    @Override
+    public synchronized void removeAll(final Iterable<? extends K> keys) {
+        for (K key : keys) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mData.clear();
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mSketch.clear();
+        if (mWheel != null) {
+            mWheel.clear();
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return mData.size();
+    }
+
+    @Override
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * ordered by region: probation, protected, window,
+     * from least recently accessed to most recently accessed in each region,
+     * expired entries are skipped
+     */
+    @Override
+    public synchronized Map<K, V> snapshot() {
+        final Map<K, V> map = new LinkedHashMap<K, V>(mData.size());
+        final long now = System.currentTimeMillis();
+        copyTo(mProbation, map, now);
+        copyTo(mProtected, map, now);
+        copyTo(mWindow, map, now);
+        return map;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return mStats.snapshot();
+    }
+
+    /**
+     * @return count of keys in the timer wheel, for tests
+     */
+    synchronized int scheduledCount() {
+        return mWheel == null ? 0 : mWheel.size();
+    }
+
+    private boolean isExpired(final K key, final long now) {
+        if (mWheel == null) {
+            return false;
+        }
+        final long deadline = mWheel.getDeadline(key);
+        return deadline > 0 && deadline <= now;
+    }
+
+    /**
+     * the key is not descheduled
+     */
+    private V removeNode(final K key) {
+        final Node<K, V> node = mData.remove(key);
+        if (node == null) {
+            return null;
+        }
+        queueOf(node).unlink(node);
+        return node.value;
+    }
+
+    private void onAccess(final Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                mWindow.moveToLast(node);
+                break;
+            case PROBATION:
+                // promote to protected, demote protected lru if full
+                mProbation.unlink(node);
+                node.queue = PROTECTED;
+                mProtected.addLast(node);
+                if (mProtected.size > mMaxProtected) {
+                    final Node<K, V> demoted = mProtected.first();
+                    mProtected.unlink(demoted);
+                    demoted.queue = PROBATION;
+                    mProbation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                mProtected.moveToLast(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * move window overflow to main region, the window candidate
+     * competes with main region victim by access frequency
+     */
+    private void evictFromWindow() {
+        while (mWindow.size > mMaxWindow) {
+            final Node<K, V> candidate = mWindow.first();
+            mWindow.unlink(candidate);
+            if (mProbation.size + mProtected.size < mMaxMain) {
+                candidate.queue = PROBATION;
+                mProbation.addLast(candidate);
+                continue;
+            }
+            Node<K, V> victim = mProbation.first();
+            if (victim == null) {
+                victim = mProtected.first();
+            }
+            if (victim == null) {
+                // no main region, maxSize is too small
+                evict(candidate);
+                continue;
+            }
+            if (mSketch.frequency(candidate.key) > mSketch.frequency(victim.key)) {
+                queueOf(victim).unlink(victim);
+                evict(victim);
+                candidate.queue = PROBATION;
+                mProbation.addLast(candidate);
+            } else {
+                evict(candidate);
+            }
+        }
+    }
+
+    /**
+     * node is already unlinked from its queue
+     */
+    private void evict(final Node<K, V> node) {
+        mData.remove(node.key);
+        if (mWheel != null) {
+            mWheel.deschedule(node.key);
+        }
+        mStats.recordEviction();
+        final EvictionListener<K> listener = mEvictionListener;
+        if (listener != null) {
+            listener.onEvicted(node.key);
+        }
+    }
+
+    private AccessQueue<K, V> queueOf(final Node<K, V> node) {
+        switch (node.queue) {
+            case PROBATION:
+                return mProbation;
+            case PROTECTED:
+                return mProtected;
+            case WINDOW:
+            default:
+                return mWindow;
+        }
+    }
+
+    private void copyTo(final AccessQueue<K, V> queue, final Map<K, V> map, final long now) {
+        for (Node<K, V> n = queue.head.next; n != queue.head; n = n.next) {
+            if (!isExpired(n.key, now)) {
+                map.put(n.key, n.value);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.mcxiaoke.next.cache;
+
+/**
+ * Calculates the weight of a cache entry, the memory cache evicts entries
+ * when the total weight exceeds maxSize. See {@link Weighers} for built-in weighers.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 16:02
+ */
+public interface Weigher<K, V> {
+
+    /**
+     * Returns the weight of the entry, must not be negative,
+     * and must not change while the entry is in the cache.
+     */
+    int weigh(K key, V value);
+}
@@ -0,0 +1,64 @@
+package com.mcxiaoke.next.cache;
+
+import android.graphics.Bitmap;
+
+/**
+ * Built-in {@link Weigher}s, bitmap, byte array and string weighers
+ * return the approximate memory size in bytes.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 26/10/18
+ * Time: 16:05
+ */
+public final class Weighers {
+
+    private Weighers() {
+    }
+
+    /**
+     * every entry weighs 1, maxSize is the max number of entries
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> Weigher<K, V> singleton() {
+        return (Weigher<K, V>) SingletonWeigher.INSTANCE;
+    }
+
+    public static <K> Weigher<K, Bitmap> bitmap() {
+        return new Weigher<K, Bitmap>() {
+            @Override
+            public int weigh(final K key, final Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    public static <K> Weigher<K, byte[]> byteArray() {
+        return new Weigher<K, byte[]>() {
+            @Override
+            public int weigh(final K key, final byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * java chars are two bytes each
+     */
+    public static <K> Weigher<K, String> string() {
+        return new Weigher<K, String>() {
+            @Override
+            public int weigh(final K key, final String value) {
+                return value.length() * 2;
+            }
+        };
+    }
+
+    enum SingletonWeigher implements Weigher<Object, Object> {
+        INSTANCE;
+
+        @Override
+        public int weigh(final Object key, final Object value) {
+            return 1;
+        }
+    }
+}
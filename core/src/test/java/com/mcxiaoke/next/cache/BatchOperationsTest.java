@@ -0,0 +1,97 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 13:35
+ */
+public class BatchOperationsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void checkMemoryBatch(final IMemoryCache<String, Integer> cache) {
+        final Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 10; i++) {
+            values.put("key" + i, i);
+        }
+        cache.putAll(values);
+        final Map<String, Integer> result = cache.getAll(Arrays.asList("key5", "missing", "key1", "key9"));
+        Assert.assertEquals(Arrays.asList("key5", "key1", "key9"), new ArrayList<String>(result.keySet()));
+        Assert.assertEquals(Integer.valueOf(5), result.get("key5"));
+        cache.removeAll(Arrays.asList("key1", "key2", "missing"));
+        Assert.assertNull(cache.get("key1"));
+        Assert.assertNull(cache.get("key2"));
+        Assert.assertEquals(8, cache.size());
+        Assert.assertTrue(cache.getAll(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testMemoryCaches() {
+        checkMemoryBatch(MemoryCache.<String, Integer>mapCache());
+        checkMemoryBatch(MemoryCache.<String, Integer>lruCache(100));
+        checkMemoryBatch(MemoryCache.<String, Integer>concurrentLruCache(100, 4));
+        checkMemoryBatch(MemoryCache.<String, Integer>tinyLfuCache(100));
+    }
+
+    @Test
+    public void testGetAllSkipsExpired() throws InterruptedException {
+        final IMemoryCache<String, Integer> cache = MemoryCache.lruCache(100);
+        cache.put("live", 1);
+        cache.put("expiring", 2, 1);
+        Thread.sleep(20);
+        final Map<String, Integer> result = cache.getAll(Arrays.asList("live", "expiring"));
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(Integer.valueOf(1), result.get("live"));
+    }
+
+    @Test
+    public void testDiscCacheParallelRead() {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "batch", DiscCache.MODE_INTERNAL);
+        final Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            values.put("key" + i, ("value" + i).getBytes());
+            keys.add("key" + i);
+        }
+        cache.putAll(values);
+        Collections.reverse(keys);
+        keys.add(100, "missing");
+        final Map<String, byte[]> result = cache.getAll(keys);
+        Assert.assertEquals(200, result.size());
+        int index = 199;
+        for (Map.Entry<String, byte[]> entry : result.entrySet()) {
+            Assert.assertEquals("key" + index, entry.getKey());
+            Assert.assertArrayEquals(("value" + index).getBytes(), entry.getValue());
+            index--;
+        }
+        cache.removeAll(keys.subList(0, 50));
+        Assert.assertEquals(150, cache.getAll(keys).size());
+    }
+
+    @Test
+    public void testDiscCacheSkipsMissingKeys() {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "batch", DiscCache.MODE_INTERNAL);
+        cache.setNegativeCache(10, 60 * 1000L);
+        Assert.assertNull(cache.getBytes("a"));
+        cache.put("b", "b");
+        final Map<String, byte[]> result = cache.getAll(Arrays.asList("a", "b"));
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(2, cache.stats().missCount());
+    }
+}
@@ -0,0 +1,203 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 12:15
+ */
+public class CacheCodecsTest {
+
+    private static final int HEADER_SIZE = 13;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiscCache newCache() {
+        return new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()), "codec", DiscCache.MODE_INTERNAL);
+    }
+
+    private static byte[] json(final int size) {
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < size) {
+            builder.append("{\"id\":").append(builder.length()).append(",\"name\":\"item\"},");
+        }
+        return builder.substring(0, size).getBytes();
+    }
+
+    private static byte[] header(final File file) throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        final DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(header);
+        } finally {
+            input.close();
+        }
+        return header;
+    }
+
+    @Test
+    public void testHeaderOfEncodedEntry() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setCodec(CacheCodecs.DEFLATE);
+        final byte[] data = json(8 * 1024);
+        cache.put("large", data);
+        final File file = cache.getFile("large");
+        final byte[] header = header(file);
+        Assert.assertArrayEquals(new byte[]{0, 'N', 'X', 'C'}, Arrays.copyOf(header, 4));
+        Assert.assertEquals(CacheCodecs.ID_DEFLATE, header[4]);
+        Assert.assertEquals(data.length, ByteBuffer.wrap(header, 5, 8).getLong());
+        Assert.assertTrue(file.length() < data.length / 2);
+        Assert.assertArrayEquals(data, cache.getBytes("large"));
+    }
+
+    @Test
+    public void testSmallEntryIsNotCompressed() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setCodec(CacheCodecs.GZIP, 1024);
+        final byte[] data = json(100);
+        cache.put("small", data);
+        final File file = cache.getFile("small");
+        Assert.assertEquals(CacheCodecs.ID_NONE, header(file)[4]);
+        Assert.assertEquals(HEADER_SIZE + data.length, file.length());
+        Assert.assertArrayEquals(data, cache.getBytes("small"));
+    }
+
+    @Test
+    public void testPlainEntriesStayReadable() {
+        final DiscCache cache = newCache();
+        final byte[] data = json(4096);
+        cache.put("plain", data);
+        Assert.assertEquals(data.length, cache.getFile("plain").length());
+        cache.setCodec(CacheCodecs.GZIP);
+        Assert.assertArrayEquals(data, cache.getBytes("plain"));
+        cache.put("gzip", data);
+        // stop compressing, encoded entries stay readable
+        cache.setCodec(CacheCodecs.NONE);
+        Assert.assertArrayEquals(data, cache.getBytes("gzip"));
+        cache.put("none", data);
+        Assert.assertArrayEquals(data, cache.getBytes("none"));
+    }
+
+    @Test
+    public void testHeaderIsIgnoredWithoutCodec() throws IOException {
+        final DiscCache cache = newCache();
+        // plain data that starts like an encoded entry
+        final byte[] data = new byte[64];
+        data[1] = 'N';
+        data[2] = 'X';
+        data[3] = 'C';
+        data[4] = 99;
+        cache.put("plain", data);
+        Assert.assertArrayEquals(data, cache.getBytes("plain"));
+        final DiscCache.Snapshot snapshot = cache.snapshot("plain");
+        Assert.assertNotNull(snapshot);
+        try {
+            Assert.assertFalse(snapshot.isEncoded());
+            Assert.assertEquals(data.length, snapshot.getLength());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotDecodesStream() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setCodec(CacheCodecs.GZIP);
+        final byte[] data = json(16 * 1024);
+        cache.put("stream", data);
+        final DiscCache.Snapshot snapshot = cache.snapshot("stream");
+        Assert.assertNotNull(snapshot);
+        try {
+            Assert.assertTrue(snapshot.isEncoded());
+            Assert.assertEquals(data.length, snapshot.getLength());
+            Assert.assertArrayEquals(data, readAll(snapshot.getInputStream()));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testCustomCodecAndUnknownId() throws IOException {
+        final CacheCodec reversed = new CacheCodec() {
+            @Override
+            public int id() {
+                return CacheCodecs.ID_RESERVED_MAX + 1;
+            }
+
+            @Override
+            public OutputStream encode(final OutputStream out) {
+                return new ByteArrayOutputStream() {
+                    @Override
+                    public void close() throws IOException {
+                        final byte[] bytes = toByteArray();
+                        for (int i = bytes.length - 1; i >= 0; i--) {
+                            out.write(bytes[i]);
+                        }
+                        out.close();
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decode(final InputStream in) throws IOException {
+                final byte[] bytes = readAll(in);
+                final byte[] reversed = new byte[bytes.length];
+                for (int i = 0; i < bytes.length; i++) {
+                    reversed[i] = bytes[bytes.length - 1 - i];
+                }
+                return new ByteArrayInputStream(reversed);
+            }
+        };
+        final DiscCache cache = newCache();
+        cache.setCodec(reversed, 0);
+        final byte[] data = json(2048);
+        cache.put("custom", data);
+        Assert.assertEquals(CacheCodecs.ID_RESERVED_MAX + 1, header(cache.getFile("custom"))[4]);
+        Assert.assertArrayEquals(data, cache.getBytes("custom"));
+        // codec of the entry is no longer known
+        cache.setCodec(CacheCodecs.DEFLATE);
+        Assert.assertNull(cache.getBytes("custom"));
+    }
+
+    @Test
+    public void testCorruptLengthIsRejected() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setCodec(CacheCodecs.DEFLATE);
+        cache.put("corrupt", json(4096));
+        final RandomAccessFile file = new RandomAccessFile(cache.getFile("corrupt"), "rw");
+        try {
+            file.seek(5);
+            file.writeLong(-1L);
+        } finally {
+            file.close();
+        }
+        Assert.assertNull(cache.getBytes("corrupt"));
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,109 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 13:20
+ */
+public class CacheStatsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testRatesAndArithmetic() {
+        final CacheStats stats = new CacheStats(3, 1, 2, 1, 3000, 4, 5, 100, 200);
+        Assert.assertEquals(4, stats.requestCount());
+        Assert.assertEquals(0.75, stats.hitRate(), 0.0001);
+        Assert.assertEquals(0.25, stats.missRate(), 0.0001);
+        Assert.assertEquals(3, stats.loadCount());
+        Assert.assertEquals(1000.0, stats.averageLoadPenalty(), 0.0001);
+        Assert.assertEquals(1.0, CacheStats.EMPTY.hitRate(), 0.0001);
+        Assert.assertEquals(0.0, CacheStats.EMPTY.averageLoadPenalty(), 0.0001);
+        final CacheStats doubled = stats.plus(stats);
+        Assert.assertEquals(6, doubled.hitCount());
+        Assert.assertEquals(400, doubled.bytesWritten());
+        Assert.assertEquals(stats, doubled.minus(stats));
+        Assert.assertEquals(CacheStats.EMPTY, stats.minus(doubled));
+    }
+
+    @Test
+    public void testMemoryCacheStats() throws Exception {
+        final IMemoryCache<String, String> cache = MemoryCache.lruCache(2);
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c", new CacheLoader<String, String>() {
+            @Override
+            public String load(final String key) {
+                return "3";
+            }
+        });
+        try {
+            cache.get("d", new CacheLoader<String, String>() {
+                @Override
+                public String load(final String key) throws Exception {
+                    throw new Exception("failed");
+                }
+            });
+            Assert.fail("load failure is thrown");
+        } catch (Exception expected) {
+        }
+        cache.put("e", "5");
+        final CacheStats stats = cache.stats();
+        Assert.assertEquals(1, stats.hitCount());
+        Assert.assertEquals(3, stats.missCount());
+        Assert.assertEquals(1, stats.loadSuccessCount());
+        Assert.assertEquals(1, stats.loadFailureCount());
+        Assert.assertEquals(1, stats.evictionCount());
+    }
+
+    @Test
+    public void testDiscCacheStats() {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "stats", DiscCache.MODE_INTERNAL);
+        cache.put("a", new byte[100]);
+        cache.getBytes("a");
+        cache.getBytes("b");
+        final CacheStats stats = cache.stats();
+        Assert.assertEquals(1, stats.hitCount());
+        Assert.assertEquals(1, stats.missCount());
+        Assert.assertEquals(100, stats.bytesRead());
+        Assert.assertEquals(100, stats.bytesWritten());
+    }
+
+    @Test
+    public void testReporterReportsIntervals() {
+        final IMemoryCache<String, String> cache = MemoryCache.lruCache(10);
+        final List<CacheStats> totals = new ArrayList<CacheStats>();
+        final List<CacheStats> intervals = new ArrayList<CacheStats>();
+        final CacheStatsReporter reporter = new CacheStatsReporter(new CacheStatsReporter.Listener() {
+            @Override
+            public void onReport(final String name, final CacheStats total, final CacheStats interval) {
+                Assert.assertEquals("memory", name);
+                totals.add(total);
+                intervals.add(interval);
+            }
+        }).add("memory", cache);
+        cache.get("a");
+        reporter.report();
+        cache.get("a");
+        cache.get("b");
+        reporter.report();
+        Assert.assertEquals(2, totals.size());
+        Assert.assertEquals(1, intervals.get(0).missCount());
+        Assert.assertEquals(3, totals.get(1).missCount());
+        Assert.assertEquals(2, intervals.get(1).missCount());
+        reporter.remove("memory");
+        reporter.report();
+        Assert.assertEquals(2, totals.size());
+    }
+}
@@ -0,0 +1,105 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 14:05
+ */
+public class CacheWarmerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiscCache mDiscCache;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mDiscCache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()), "warm", DiscCache.MODE_INTERNAL);
+        mFile = new File(mFolder.getRoot(), "warm.hotkeys");
+    }
+
+    private CacheWarmer<String> newWarmer(final IMemoryCache<String, String> memoryCache) {
+        return new CacheWarmer<String>(memoryCache, mDiscCache, TieredCache.STRING, mFile);
+    }
+
+    @Test
+    public void testSaveMostRecentFirst() throws IOException {
+        final IMemoryCache<String, String> memoryCache = MemoryCache.lruCache(10);
+        for (int i = 0; i < 5; i++) {
+            memoryCache.put("key" + i, "value" + i);
+        }
+        memoryCache.get("key0");
+        final CacheWarmer<String> warmer = newWarmer(memoryCache);
+        warmer.setMaxKeys(3);
+        Assert.assertEquals(3, warmer.save());
+        final DataInputStream input = new DataInputStream(new FileInputStream(mFile));
+        try {
+            Assert.assertEquals(0x4e58484b, input.readInt());
+            Assert.assertEquals(1, input.readInt());
+            Assert.assertEquals(3, input.readInt());
+            Assert.assertEquals("key0", input.readUTF());
+            Assert.assertEquals("key4", input.readUTF());
+            Assert.assertEquals("key3", input.readUTF());
+        } finally {
+            input.close();
+        }
+        Assert.assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testLoadAfterRestart() {
+        final IMemoryCache<String, String> before = MemoryCache.lruCache(10);
+        for (int i = 0; i < 5; i++) {
+            before.put("key" + i, "value" + i);
+            mDiscCache.put("key" + i, "value" + i);
+        }
+        newWarmer(before).save();
+        final IMemoryCache<String, String> after = MemoryCache.lruCache(10);
+        after.put("key4", "fresh");
+        Assert.assertEquals(4, newWarmer(after).load(0, 0));
+        Assert.assertEquals("fresh", after.get("key4"));
+        Assert.assertEquals("value0", after.get("key0"));
+        Assert.assertEquals(5, after.size());
+    }
+
+    @Test
+    public void testLoadIsBoundedByBytes() {
+        final IMemoryCache<String, String> before = MemoryCache.lruCache(10);
+        for (int i = 0; i < 5; i++) {
+            before.put("key" + i, "value" + i);
+            mDiscCache.put("key" + i, "value" + i);
+        }
+        newWarmer(before).save();
+        final IMemoryCache<String, String> after = MemoryCache.lruCache(10);
+        // each value is 6 bytes, loading stops once the budget is used
+        Assert.assertEquals(2, newWarmer(after).load(0, 12));
+        Assert.assertEquals("value4", after.get("key4"));
+        Assert.assertEquals("value3", after.get("key3"));
+        Assert.assertNull(after.get("key0"));
+    }
+
+    @Test
+    public void testInvalidFileLoadsNothing() throws IOException {
+        final FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        } finally {
+            output.close();
+        }
+        mDiscCache.put("key", "value");
+        Assert.assertEquals(0, newWarmer(MemoryCache.<String, String>lruCache(10)).load(0, 0));
+    }
+}
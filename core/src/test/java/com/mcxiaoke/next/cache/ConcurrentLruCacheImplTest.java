@@ -0,0 +1,150 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 20:50
+ */
+public class ConcurrentLruCacheImplTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final ConcurrentLruCacheImpl<String, String> cache =
+                new ConcurrentLruCacheImpl<String, String>(100);
+        Assert.assertNull(cache.put("a", "1"));
+        Assert.assertEquals("1", cache.put("a", "2"));
+        Assert.assertEquals("2", cache.get("a"));
+        Assert.assertEquals("2", cache.remove("a"));
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testGetMovesKeyContainsKeyDoesNot() {
+        final ConcurrentLruCacheImpl<Integer, Integer> cache =
+                new ConcurrentLruCacheImpl<Integer, Integer>(2, 1);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        Assert.assertTrue(cache.containsKey(1));
+        cache.put(3, 3);
+        // 1 was eldest, containsKey is not an access
+        Assert.assertFalse(cache.containsKey(1));
+        Assert.assertEquals(Integer.valueOf(2), cache.get(2));
+        cache.put(4, 4);
+        // 2 was moved by get, 3 is evicted
+        Assert.assertTrue(cache.containsKey(2));
+        Assert.assertFalse(cache.containsKey(3));
+        Assert.assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        final ConcurrentLruCacheImpl<Integer, Integer> cache =
+                new ConcurrentLruCacheImpl<Integer, Integer>(64, 4);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertTrue(cache.size() <= 64);
+        Assert.assertEquals(64, cache.maxSize());
+        Assert.assertEquals(1000 - cache.size(), cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testBatchOperations() {
+        final ConcurrentLruCacheImpl<String, String> cache =
+                new ConcurrentLruCacheImpl<String, String>(100, 8);
+        final Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            map.put("k" + i, "v" + i);
+        }
+        cache.putAll(map);
+        final Map<String, String> found = cache.getAll(Arrays.asList("k1", "k5", "none"));
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals("v5", found.get("k5"));
+        cache.removeAll(Arrays.asList("k1", "k2"));
+        Assert.assertEquals(18, cache.size());
+        Assert.assertEquals(18, cache.snapshot().size());
+    }
+
+    @Test
+    public void testEntryHeavierThanSegmentIsNotCached() {
+        // 4 segments of 25 bytes each
+        final ConcurrentLruCacheImpl<String, byte[]> cache =
+                new ConcurrentLruCacheImpl<String, byte[]>(100, 4,
+                        Weighers.<String>byteArray());
+        for (int i = 0; i < 8; i++) {
+            cache.put("small" + i, new byte[2]);
+        }
+        cache.put("big", new byte[2]);
+        final int size = cache.size();
+        Assert.assertNotNull(cache.put("big", new byte[50]));
+        Assert.assertNull(cache.get("big"));
+        // size is the total weight, only the old value of big is removed
+        Assert.assertEquals(size - 2, cache.size());
+        Assert.assertEquals(0, cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentLruCacheImpl<Integer, Integer> cache =
+                new ConcurrentLruCacheImpl<Integer, Integer>(256, 16);
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 20000; i++) {
+                            final int key = (i * 31 + seed) % 1024;
+                            final Integer value = cache.get(key);
+                            if (value != null && value != key) {
+                                throw new AssertionError("key=" + key + " value=" + value);
+                            }
+                            cache.put(key, key);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        Assert.assertNull(error.get());
+        Assert.assertTrue(cache.size() <= 256);
+    }
+
+    @Test
+    public void testPutWithExpires() throws InterruptedException {
+        final ConcurrentLruCacheImpl<String, String> cache =
+                new ConcurrentLruCacheImpl<String, String>(100, 4);
+        cache.put("live", "1");
+        cache.put("expiring", "2", 1);
+        cache.put("replaced", "3", 1);
+        cache.put("replaced", "4");
+        Assert.assertEquals(1, cache.scheduledCount());
+        Thread.sleep(20);
+        Assert.assertNull(cache.get("expiring"));
+        Assert.assertEquals("1", cache.get("live"));
+        Assert.assertEquals("4", cache.get("replaced"));
+        Assert.assertFalse(cache.snapshot().containsKey("expiring"));
+        Assert.assertEquals(0, cache.scheduledCount());
+        Assert.assertEquals(1, cache.stats().expiredCount());
+    }
+}
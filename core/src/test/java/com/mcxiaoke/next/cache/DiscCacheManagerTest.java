@@ -0,0 +1,86 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 00:20
+ */
+public class DiscCacheManagerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiscCache newCache(final String name) {
+        return new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()), name,
+                DiscCache.MODE_INTERNAL);
+    }
+
+    private static long sum(final Map<String, Long> usage) {
+        long total = 0;
+        for (long size : usage.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    @Test
+    public void testRunningTotal() {
+        final DiscCache images = newCache("images");
+        images.put("existing", new byte[100]);
+        final DiscCache api = newCache("api");
+        final DiscCacheManager manager = new DiscCacheManager(1024 * 1024L);
+        manager.add("images", images, 0, DiscCacheManager.PRIORITY_LOW)
+                .add("api", api, 0, DiscCacheManager.PRIORITY_HIGH);
+        Assert.assertEquals(100, manager.getCacheSize());
+        images.put("a", new byte[1000]);
+        api.put("b", new byte[200]);
+        Assert.assertEquals(1300, manager.getCacheSize());
+        // replace counts the new size only
+        api.put("b", new byte[50]);
+        Assert.assertEquals(1150, manager.getCacheSize());
+        images.remove("a");
+        Assert.assertEquals(150, manager.getCacheSize());
+        Assert.assertEquals(manager.getCacheSize(), sum(manager.usage()));
+        images.clear();
+        Assert.assertEquals(50, manager.getCacheSize());
+        manager.remove("api");
+        Assert.assertEquals(0, manager.getCacheSize());
+        // not managed any more
+        api.put("c", new byte[10]);
+        Assert.assertEquals(0, manager.getCacheSize());
+    }
+
+    @Test
+    public void testLowPriorityIsTrimmedFirst() throws InterruptedException {
+        final DiscCache images = newCache("images");
+        final DiscCache api = newCache("api");
+        final DiscCacheManager manager = new DiscCacheManager(10 * 1024L);
+        manager.add("images", images, 0, DiscCacheManager.PRIORITY_LOW)
+                .add("api", api, 0, DiscCacheManager.PRIORITY_HIGH);
+        for (int i = 0; i < 6; i++) {
+            api.put("api" + i, new byte[1024]);
+        }
+        for (int i = 0; i < 6; i++) {
+            images.put("image" + i, new byte[1024]);
+        }
+        // trim runs in background
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getCacheSize() > manager.getMaxSize()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(manager.getCacheSize() <= manager.getMaxSize());
+        Assert.assertEquals(6 * 1024L, api.getCacheSize());
+        Assert.assertEquals(4 * 1024L, images.getCacheSize());
+        Assert.assertNull(images.getBytes("image0"));
+        Assert.assertNotNull(images.getBytes("image5"));
+        Assert.assertEquals(manager.getCacheSize(), sum(manager.usage()));
+    }
+}
@@ -0,0 +1,168 @@
+package com.mcxiaoke.next.cache;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import com.mcxiaoke.next.io.HashedNameGenerator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 20:10
+ */
+public class DiscCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static Context newContext(final File cacheDir) {
+        return new ContextWrapper(null) {
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+    }
+
+    private DiscCache newCache() throws IOException {
+        return new DiscCache(newContext(mFolder.getRoot()), "disc", DiscCache.MODE_INTERNAL);
+    }
+
+    @Test
+    public void testEditorCommit() throws IOException {
+        final DiscCache cache = newCache();
+        final DiscCache.Editor editor = cache.edit("key");
+        final OutputStream output = editor.newOutputStream();
+        output.write("hello".getBytes("UTF-8"));
+        Assert.assertNull(cache.get("key"));
+        editor.commit();
+        Assert.assertEquals("hello", cache.get("key"));
+    }
+
+    @Test
+    public void testEditorAbortKeepsOldValue() throws IOException {
+        final DiscCache cache = newCache();
+        cache.put("key", "old");
+        final DiscCache.Editor editor = cache.edit("key");
+        editor.newOutputStream().write("new".getBytes("UTF-8"));
+        editor.abort();
+        Assert.assertEquals("old", cache.get("key"));
+        Assert.assertEquals(0, countTempFiles(cache.getCacheDir()));
+    }
+
+    @Test
+    public void testSnapshotSurvivesReplace() throws IOException {
+        final DiscCache cache = newCache();
+        cache.put("key", "old");
+        final DiscCache.Snapshot snapshot = cache.snapshot("key");
+        cache.put("key", "new");
+        final byte[] buffer = new byte[3];
+        Assert.assertEquals(3, snapshot.getInputStream().read(buffer));
+        snapshot.close();
+        Assert.assertEquals("old", new String(buffer, "UTF-8"));
+        Assert.assertEquals("new", cache.get("key"));
+    }
+
+    @Test
+    public void testJournalOpenKeepsLiveEditorTempFile() throws IOException {
+        final DiscCache cache = newCache();
+        final DiscCache.Editor editor = cache.edit("key");
+        editor.newOutputStream().write("hello".getBytes("UTF-8"));
+        // no journal yet, opened lazily by the trim, which scans the cache dir
+        cache.trimToSize(Long.MAX_VALUE);
+        editor.commit();
+        Assert.assertEquals("hello", cache.get("key"));
+    }
+
+    @Test
+    public void testJournalOpenDeletesStaleTempFile() throws IOException {
+        final DiscCache cache = newCache();
+        final File stale = new File(cache.getCacheDir(),
+                DiscJournal.EDIT_FILE_PREFIX + "stale" + DiscJournal.EDIT_FILE_SUFFIX);
+        Assert.assertTrue(stale.createNewFile());
+        cache.setMaxSize(1024 * 1024);
+        Assert.assertFalse(stale.exists());
+    }
+
+    @Test
+    public void testShardedLayout() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setFileNameGenerator(new HashedNameGenerator());
+        cache.setShardedLayout(true);
+        for (int i = 0; i < 100; i++) {
+            cache.put("https://example.com/item/" + i, "value" + i);
+        }
+        final File file = cache.getFile("https://example.com/item/7");
+        Assert.assertTrue(file.getName().matches("[0-9a-f]{32}"));
+        final File second = file.getParentFile();
+        final File first = second.getParentFile();
+        Assert.assertTrue(second.getName().matches("[0-9a-f]{2}"));
+        Assert.assertTrue(first.getName().matches("[0-9a-f]"));
+        Assert.assertEquals(cache.getCacheDir(), first.getParentFile());
+        Assert.assertEquals("value7", cache.get("https://example.com/item/7"));
+        final Map<String, byte[]> values = cache.getAll(Arrays.asList(
+                "https://example.com/item/1", "https://example.com/item/2", "missing"));
+        Assert.assertEquals(2, values.size());
+        Assert.assertTrue(cache.remove("https://example.com/item/7"));
+        Assert.assertNull(cache.get("https://example.com/item/7"));
+        cache.clear();
+        Assert.assertNull(cache.get("https://example.com/item/8"));
+        Assert.assertEquals(0, countFiles(cache.getCacheDir()));
+    }
+
+    @Test
+    public void testShardedLayoutWithJournal() throws IOException {
+        final DiscCache cache = newCache();
+        cache.setFileNameGenerator(new HashedNameGenerator());
+        cache.setShardedLayout(true);
+        cache.setMaxSize(1024 * 1024);
+        final byte[] data = new byte[1000];
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, data);
+        }
+        Assert.assertEquals(50 * 1000L, cache.getCacheSize());
+        cache.trimToSize(10 * 1000L);
+        Assert.assertEquals(10 * 1000L, cache.getCacheSize());
+        Assert.assertNull(cache.getBytes("key0"));
+        Assert.assertArrayEquals(data, cache.getBytes("key49"));
+    }
+
+    private static int countFiles(final File dir) {
+        int count = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    count += countFiles(file);
+                } else if (!DiscJournal.isJournalFile(file)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int countTempFiles(final File dir) {
+        int count = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    count += countTempFiles(file);
+                } else if (DiscJournal.isTempFile(file)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,227 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.utils.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 20:30
+ */
+public class DiscJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("disc");
+    }
+
+    private DiscJournal open(final long maxSize) {
+        final DiscJournal journal = new DiscJournal(mDir, maxSize,
+                new StatsCounter(), new HashSet<File>());
+        journal.open();
+        return journal;
+    }
+
+    private File write(final String name, final int size) throws IOException {
+        final File file = new File(mDir, name);
+        final FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[size]);
+        output.close();
+        return file;
+    }
+
+    @Test
+    public void testTrimEvictsLeastRecentlyUsed() throws IOException {
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        journal.put(write("b", 10).getName(), 10);
+        journal.put(write("c", 10).getName(), 10);
+        journal.read("a");
+        Assert.assertEquals(30, journal.size());
+        Assert.assertEquals(1, journal.trimToSize(20));
+        Assert.assertFalse(new File(mDir, "b").exists());
+        Assert.assertTrue(journal.contains("a"));
+        Assert.assertTrue(journal.contains("c"));
+        Assert.assertEquals(20, journal.size());
+    }
+
+    @Test
+    public void testReopenRestoresEntriesAndOrder() throws IOException {
+        DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        journal.put(write("b", 20).getName(), 20);
+        journal.put(write("c", 30).getName(), 30);
+        journal.read("a");
+        journal.remove("c");
+        journal.close();
+
+        journal = open(Long.MAX_VALUE);
+        Assert.assertEquals(2, journal.count());
+        Assert.assertEquals(30, journal.size());
+        Assert.assertFalse(journal.contains("c"));
+        // b is least recently used, a was read after it
+        Assert.assertEquals(1, journal.trimToSize(10));
+        Assert.assertTrue(journal.contains("a"));
+    }
+
+    @Test
+    public void testJournalHeader() throws IOException {
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        journal.close();
+        final List<String> lines = IOUtils.readStringList(
+                new File(mDir, DiscJournal.JOURNAL_FILE), "UTF-8");
+        Assert.assertEquals(DiscJournal.MAGIC, lines.get(0));
+        Assert.assertEquals(DiscJournal.VERSION, lines.get(1));
+        Assert.assertEquals("", lines.get(2));
+        final String last = lines.get(lines.size() - 1);
+        Assert.assertTrue(last.startsWith("PUT 10 "));
+        Assert.assertTrue(last.endsWith(" a"));
+    }
+
+    @Test
+    public void testCorruptJournalIsRebuiltFromDir() throws IOException {
+        write("a", 10);
+        write("b", 20);
+        IOUtils.writeString(new File(mDir, DiscJournal.JOURNAL_FILE),
+                DiscJournal.MAGIC + "\n" + DiscJournal.VERSION + "\n\nPUT x\n");
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        Assert.assertEquals(2, journal.count());
+        Assert.assertEquals(30, journal.size());
+    }
+
+    @Test
+    public void testOldVersionIsRebuiltFromDir() throws IOException {
+        write("a", 10);
+        IOUtils.writeString(new File(mDir, DiscJournal.JOURNAL_FILE),
+                DiscJournal.MAGIC + "\n1\n\nPUT 99 a\n");
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        Assert.assertEquals(1, journal.count());
+        Assert.assertEquals(10, journal.size());
+    }
+
+    @Test
+    public void testTrimOlderThan() throws IOException {
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        journal.put(write("b", 10).getName(), 10);
+        final long cutoff = System.currentTimeMillis() + 1;
+        Assert.assertTrue(journal.hasOlderThan(cutoff));
+        Assert.assertEquals(2, journal.trimOlderThan(cutoff, Long.MAX_VALUE));
+        Assert.assertEquals(0, journal.count());
+        Assert.assertFalse(new File(mDir, "a").exists());
+        Assert.assertFalse(journal.hasOlderThan(cutoff));
+    }
+
+    @Test
+    public void testSizeBoundedDiscCache() throws IOException {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "bounded", DiscCache.MODE_INTERNAL, 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, new byte[20]);
+        }
+        cache.trimToSize(cache.getMaxSize());
+        Assert.assertTrue(cache.getCacheSize() <= 100);
+        Assert.assertNotNull(cache.getBytes("key9"));
+        Assert.assertNull(cache.getBytes("key0"));
+    }
+
+    @Test
+    public void testFailedCompactKeepsJournal() throws Exception {
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        // the temp journal can not be written, deleted by the failed compact
+        final File temp = new File(mDir, DiscJournal.JOURNAL_FILE_TEMP);
+        Assert.assertTrue(temp.mkdir());
+        for (int i = 0; i < 2000; i++) {
+            journal.read("a");
+        }
+        journal.put(write("b", 10).getName(), 10);
+        for (int i = 0; i < 100 && temp.exists(); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse(temp.exists());
+        // written to the old journal, then compacted by the next cleanup
+        journal.put(write("c", 10).getName(), 10);
+        final File file = new File(mDir, DiscJournal.JOURNAL_FILE);
+        for (int i = 0; i < 100 && file.length() > 1024; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(file.length() <= 1024);
+        journal.close();
+        final DiscJournal reopened = open(Long.MAX_VALUE);
+        Assert.assertEquals(3, reopened.count());
+        Assert.assertTrue(reopened.contains("c"));
+        reopened.close();
+    }
+
+    @Test
+    public void testTrimOlderThanStopsAtDeadline() throws IOException {
+        final DiscJournal journal = open(Long.MAX_VALUE);
+        journal.put(write("a", 10).getName(), 10);
+        final long cutoff = System.currentTimeMillis() + 1;
+        Assert.assertEquals(0, journal.trimOlderThan(cutoff, System.nanoTime() - 1));
+        Assert.assertEquals(1, journal.count());
+        Assert.assertTrue(journal.hasOlderThan(cutoff));
+    }
+
+    @Test
+    public void testTrimToAgeKeepsRecentlyRead() throws Exception {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "age", DiscCache.MODE_INTERNAL, 1024 * 1024);
+        cache.put("old", "old");
+        cache.put("read", "read");
+        Thread.sleep(100);
+        Assert.assertEquals("read", cache.get("read"));
+        Assert.assertEquals(1, cache.trimToAge(50));
+        Assert.assertNull(cache.get("old"));
+        Assert.assertEquals("read", cache.get("read"));
+        Assert.assertEquals(0, cache.trimToAge(50));
+    }
+
+    @Test
+    public void testTrimToAgeAsync() throws Exception {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "age-async", DiscCache.MODE_INTERNAL);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        Thread.sleep(20);
+        cache.trimToAgeAsync(10);
+        for (int i = 0; i < 100 && cache.getCacheSize() > 0; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(0, cache.getCacheSize());
+        Assert.assertNull(cache.get("key0"));
+    }
+
+    @Test
+    public void testTrimToSizeKeepsRecentlyRead() throws IOException {
+        final DiscCache cache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "size", DiscCache.MODE_INTERNAL, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            cache.put("key" + i, new byte[10]);
+        }
+        Assert.assertNotNull(cache.getBytes("key0"));
+        Assert.assertEquals(3, cache.trimToSize(20));
+        Assert.assertEquals(20, cache.getCacheSize());
+        Assert.assertNotNull(cache.getBytes("key0"));
+        Assert.assertNotNull(cache.getBytes("key4"));
+        Assert.assertNull(cache.getBytes("key1"));
+    }
+}
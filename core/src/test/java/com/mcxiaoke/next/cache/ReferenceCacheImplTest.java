@@ -0,0 +1,90 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 13:50
+ */
+public class ReferenceCacheImplTest {
+
+    private static boolean collect(final IMemoryCache<String, Object> cache, final String key)
+            throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            System.gc();
+            if (cache.get(key) == null) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test
+    public void testSoftValues() {
+        final IMemoryCache<String, Object> cache = MemoryCache.softValues();
+        final Object value = new Object();
+        cache.put("a", value);
+        Assert.assertSame(value, cache.get("a"));
+        Assert.assertSame(value, cache.remove("a"));
+        Assert.assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testWeakValueIsCollected() throws InterruptedException {
+        final IMemoryCache<String, Object> cache = MemoryCache.weakValues();
+        Object value = new Object();
+        cache.put("a", value);
+        Assert.assertSame(value, cache.get("a"));
+        value = null;
+        Assert.assertTrue(collect(cache, "a"));
+        // collected entries are purged on writes
+        cache.put("b", new byte[1]);
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEvictedFromStrongLruGetsSecondChance() throws InterruptedException {
+        final IMemoryCache<String, Object> cache = MemoryCache.weakValues(1, Weighers.<String, Object>singleton());
+        final Object a = new Object();
+        cache.put("a", a);
+        cache.put("b", new Object());
+        // a is out of the strong lru, still reachable by its weak reference
+        Assert.assertSame(a, cache.get("a"));
+        // read again, a is strong now, b is only weakly reachable
+        Assert.assertTrue(collect(cache, "b"));
+        Assert.assertSame(a, cache.get("a"));
+    }
+
+    @Test
+    public void testBuilderWeakValues() {
+        final IMemoryCache<String, Object> cache = MemoryCacheBuilder.<String, Object>create()
+                .maxSize(4)
+                .weakValues()
+                .build();
+        final Object value = new Object();
+        cache.put("a", value);
+        Assert.assertSame(value, cache.get("a"));
+    }
+
+    @Test
+    public void testPutWithExpires() throws InterruptedException {
+        final ReferenceCacheImpl<String, Object> cache = new ReferenceCacheImpl<String, Object>(
+                ReferenceCacheImpl.SOFT, 1, Weighers.<String, Object>singleton());
+        final Object live = new Object();
+        final Object expiring = new Object();
+        cache.put("live", live);
+        // evicted from the strong lru, still expires when held by reference
+        cache.put("expiring", expiring, 1);
+        cache.put("other", new Object());
+        Assert.assertEquals(1, cache.scheduledCount());
+        Thread.sleep(20);
+        Assert.assertFalse(cache.snapshot().containsKey("expiring"));
+        Assert.assertNull(cache.get("expiring"));
+        Assert.assertSame(live, cache.get("live"));
+        Assert.assertEquals(0, cache.scheduledCount());
+        Assert.assertEquals(1, cache.stats().expiredCount());
+    }
+}
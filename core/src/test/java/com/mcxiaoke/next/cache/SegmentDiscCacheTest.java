@@ -0,0 +1,156 @@
+package com.mcxiaoke.next.cache;
+
+import com.mcxiaoke.next.io.HashedNameGenerator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 23:20
+ */
+public class SegmentDiscCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiscCache mDiscCache;
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDiscCache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "disc", DiscCache.MODE_INTERNAL);
+        mDiscCache.setFileNameGenerator(new HashedNameGenerator());
+        mDirectory = new File(mFolder.getRoot(), "segments");
+    }
+
+    private SegmentDiscCache open() {
+        return new SegmentDiscCache(mDiscCache, mDirectory, 64, 0);
+    }
+
+    private File segmentFile() {
+        return new File(mDirectory, SegmentDiscCache.SEGMENT_PREFIX + 0
+                + SegmentDiscCache.SEGMENT_SUFFIX);
+    }
+
+    @Test
+    public void testSmallAndLargeValues() {
+        final SegmentDiscCache cache = open();
+        cache.put("small", "tiny");
+        final byte[] large = new byte[1000];
+        Arrays.fill(large, (byte) 7);
+        cache.put("large", large);
+        Assert.assertEquals(1, cache.getSegmentEntryCount());
+        Assert.assertEquals("tiny", cache.get("small"));
+        Assert.assertArrayEquals(large, cache.getBytes("large"));
+        Assert.assertNotNull(mDiscCache.getBytes("large"));
+        Assert.assertNull(mDiscCache.getBytes("small"));
+        Assert.assertTrue(cache.remove("small"));
+        Assert.assertNull(cache.get("small"));
+    }
+
+    @Test
+    public void testReplayAfterReopen() {
+        final SegmentDiscCache cache = open();
+        cache.put("a", "1");
+        cache.flush();
+        // appended after the index was saved
+        cache.put("b", "2");
+        cache.put("a", "3");
+        cache.remove("b");
+        final SegmentDiscCache reopened = open();
+        Assert.assertEquals("3", reopened.get("a"));
+        Assert.assertNull(reopened.get("b"));
+        Assert.assertEquals(1, reopened.getSegmentEntryCount());
+    }
+
+    @Test
+    public void testTornRecordIsTruncated() throws IOException {
+        final SegmentDiscCache cache = open();
+        cache.put("a", "1");
+        cache.put("b", "2");
+        final long length = segmentFile().length();
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(), "rw");
+        try {
+            file.setLength(length - 1);
+        } finally {
+            file.close();
+        }
+        final SegmentDiscCache reopened = open();
+        Assert.assertEquals("1", reopened.get("a"));
+        Assert.assertNull(reopened.get("b"));
+        reopened.put("c", "3");
+        Assert.assertEquals("3", open().get("c"));
+    }
+
+    @Test
+    public void testCorruptLengthsAreTruncated() throws IOException {
+        assertCorruptHeaderIsTruncated(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertCorruptHeaderIsTruncated(Integer.MAX_VALUE - 4, 8);
+        assertCorruptHeaderIsTruncated(4, Integer.MAX_VALUE);
+        assertCorruptHeaderIsTruncated(-5, 1);
+        assertCorruptHeaderIsTruncated(1, -7);
+    }
+
+    private void assertCorruptHeaderIsTruncated(final int keyLength, final int valueLength)
+            throws IOException {
+        final SegmentDiscCache cache = open();
+        cache.clear();
+        cache.put("a", "1");
+        final long valid = segmentFile().length();
+        cache.put("b", "2");
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(), "rw");
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(keyLength).putInt(valueLength);
+            file.seek(valid);
+            file.write(header.array());
+        } finally {
+            file.close();
+        }
+        final SegmentDiscCache reopened = open();
+        Assert.assertEquals("1", reopened.get("a"));
+        Assert.assertNull(reopened.get("b"));
+        Assert.assertEquals(valid, segmentFile().length());
+    }
+
+    @Test
+    public void testLongKeyDoesNotBreakIndex() {
+        final SegmentDiscCache cache = open();
+        cache.put("a", "1");
+        final char[] chars = new char[SegmentDiscCache.MAX_KEY_LENGTH / 2 + 1];
+        // two bytes each in modified UTF-8
+        Arrays.fill(chars, 'é');
+        final String longKey = new String(chars);
+        Assert.assertTrue(SegmentDiscCache.isKeyTooLong(longKey));
+        cache.put(longKey, "2");
+        Assert.assertEquals(1, cache.getSegmentEntryCount());
+        Assert.assertEquals("2", cache.get(longKey));
+        cache.flush();
+        Assert.assertTrue(new File(mDirectory, SegmentDiscCache.INDEX_FILE).exists());
+        Assert.assertEquals("1", open().get("a"));
+    }
+
+    @Test
+    public void testKeyLength() {
+        final char[] chars = new char[SegmentDiscCache.MAX_KEY_LENGTH];
+        Arrays.fill(chars, 'a');
+        Assert.assertFalse(SegmentDiscCache.isKeyTooLong(new String(chars)));
+        chars[0] = '中';
+        Assert.assertTrue(SegmentDiscCache.isKeyTooLong(new String(chars)));
+        chars[0] = 'a';
+        // NUL takes two bytes in modified UTF-8
+        chars[1] = '\u0000';
+        Assert.assertTrue(SegmentDiscCache.isKeyTooLong(new String(chars)));
+    }
+}
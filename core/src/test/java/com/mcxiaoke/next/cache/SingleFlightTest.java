@@ -0,0 +1,132 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 23:00
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentLoadsShareOneCall() throws Exception {
+        final IMemoryCache<String, String> cache = new LruCacheImpl<String, String>(10);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+            @Override
+            public String load(final String key) throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "value";
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<String> first = executor.submit(new Get(cache, "key", loader));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(new Get(cache, "key", loader));
+            final Future<String> third = executor.submit(new Get(cache, "key", loader));
+            // let the waiters reach the in-flight call
+            Thread.sleep(100);
+            release.countDown();
+            Assert.assertEquals("value", first.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("value", second.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals("value", third.get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(1, cache.stats().loadSuccessCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoaderExceptionIsThrownToCaller() throws Exception {
+        final IMemoryCache<String, String> cache = new LruCacheImpl<String, String>(10);
+        try {
+            cache.get("key", new CacheLoader<String, String>() {
+                @Override
+                public String load(final String key) throws Exception {
+                    throw new IOException("boom");
+                }
+            });
+            Assert.fail("no exception");
+        } catch (IOException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertEquals(1, cache.stats().loadFailureCount());
+        // failed load is not cached, next get loads again
+        Assert.assertEquals("ok", cache.get("key", new CacheLoader<String, String>() {
+            @Override
+            public String load(final String key) {
+                return "ok";
+            }
+        }));
+    }
+
+    @Test(timeout = 5000)
+    public void testRecursiveLoadFails() throws Exception {
+        final IMemoryCache<String, String> cache = new LruCacheImpl<String, String>(10);
+        final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+            @Override
+            public String load(final String key) throws Exception {
+                return cache.get(key, this) + "!";
+            }
+        };
+        try {
+            cache.get("key", loader);
+            Assert.fail("no exception");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("key"));
+        }
+        Assert.assertNull(cache.get("key"));
+    }
+
+    @Test(timeout = 5000)
+    public void testNestedLoadOfOtherKey() throws Exception {
+        final IMemoryCache<String, String> cache = new LruCacheImpl<String, String>(10);
+        final CacheLoader<String, String> loader = new CacheLoader<String, String>() {
+            @Override
+            public String load(final String key) throws Exception {
+                if (key.length() > 1) {
+                    return cache.get(key.substring(1), this) + key.charAt(0);
+                }
+                return key;
+            }
+        };
+        Assert.assertEquals("cba", cache.get("abc", loader));
+        Assert.assertEquals("c", cache.get("c"));
+        Assert.assertEquals("cb", cache.get("bc"));
+    }
+
+    static class Get implements Callable<String> {
+        final IMemoryCache<String, String> cache;
+        final String key;
+        final CacheLoader<String, String> loader;
+
+        Get(final IMemoryCache<String, String> cache, final String key,
+            final CacheLoader<String, String> loader) {
+            this.cache = cache;
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public String call() throws Exception {
+            return cache.get(key, loader);
+        }
+    }
+}
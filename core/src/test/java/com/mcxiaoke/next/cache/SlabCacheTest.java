@@ -0,0 +1,113 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 23:50
+ */
+public class SlabCacheTest {
+
+    private static byte[] bytes(final int length, final int fill) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    @Test
+    public void testPutAndGet() {
+        final SlabCache cache = new SlabCache(64 * 1024, 4096);
+        cache.put("a", bytes(100, 1));
+        cache.put("b", bytes(1000, 2));
+        Assert.assertArrayEquals(bytes(100, 1), cache.get("a"));
+        Assert.assertArrayEquals(bytes(1000, 2), cache.get("b"));
+        Assert.assertEquals(1100, cache.size());
+        Assert.assertEquals(2, cache.count());
+        final ByteBuffer view = cache.getBuffer("b");
+        Assert.assertEquals(1000, view.remaining());
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(2, view.get(999));
+    }
+
+    @Test
+    public void testPutFreesOldChunkWithoutCopy() {
+        final SlabCache cache = new SlabCache(4096, 4096);
+        // one slab of the 4096 class, one chunk
+        Assert.assertNull(cache.put("a", bytes(4000, 1)));
+        Assert.assertNull(cache.put("a", bytes(4000, 2)));
+        Assert.assertArrayEquals(bytes(4000, 2), cache.get("a"));
+        Assert.assertEquals(1, cache.count());
+        Assert.assertEquals(4000, cache.size());
+        // replacing is not an eviction
+        Assert.assertEquals(0, cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testGetAndPutReturnsPrevious() {
+        final SlabCache cache = new SlabCache(64 * 1024, 4096);
+        Assert.assertNull(cache.getAndPut("a", bytes(10, 1)));
+        Assert.assertArrayEquals(bytes(10, 1), cache.getAndPut("a", bytes(20, 2)));
+        Assert.assertArrayEquals(bytes(20, 2), cache.get("a"));
+        Assert.assertEquals(20, cache.size());
+    }
+
+    @Test
+    public void testLruInSizeClass() {
+        final SlabCache cache = new SlabCache(4096, 4096);
+        // 64 chunks of 64 bytes in the only slab
+        for (int i = 0; i < 64; i++) {
+            cache.put("k" + i, bytes(64, i));
+        }
+        Assert.assertNotNull(cache.get("k0"));
+        cache.put("k64", bytes(64, 64));
+        Assert.assertNotNull(cache.get("k0"));
+        Assert.assertNull(cache.get("k1"));
+        Assert.assertEquals(64, cache.count());
+        Assert.assertEquals(1, cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testTooLargeIsNotCached() {
+        final SlabCache cache = new SlabCache(8192, 4096);
+        cache.put("a", bytes(10, 1));
+        cache.put("a", bytes(5000, 1));
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        final SlabCache cache = new SlabCache(64 * 1024, 4096);
+        cache.put("a", bytes(10, 1));
+        cache.put("b", bytes(10, 2));
+        Assert.assertArrayEquals(bytes(10, 1), cache.remove("a"));
+        Assert.assertNull(cache.remove("a"));
+        cache.clear();
+        Assert.assertEquals(0, cache.count());
+        Assert.assertEquals(0, cache.size());
+        cache.put("c", bytes(10, 3));
+        Assert.assertArrayEquals(bytes(10, 3), cache.get("c"));
+    }
+
+    @Test
+    public void testPutWithExpires() throws InterruptedException {
+        final SlabCache cache = new SlabCache(64 * 1024, 4096);
+        cache.put("live", bytes(100, 1));
+        cache.put("expiring", bytes(100, 2), 1);
+        // not cached, not scheduled
+        cache.put("large", bytes(5000, 3), 1);
+        Assert.assertEquals(1, cache.scheduledCount());
+        Thread.sleep(20);
+        Assert.assertFalse(cache.snapshot().containsKey("expiring"));
+        Assert.assertNull(cache.getBuffer("expiring"));
+        Assert.assertArrayEquals(bytes(100, 1), cache.get("live"));
+        Assert.assertEquals(0, cache.scheduledCount());
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(1, cache.stats().expiredCount());
+    }
+}
@@ -0,0 +1,224 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 22:40
+ */
+public class TieredCacheTest {
+
+    /**
+     * queues disc tasks until run
+     */
+    static class QueueExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(final Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiscCache mDiscCache;
+    private QueueExecutor mExecutor;
+    private TieredCache<String> mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDiscCache = new DiscCache(DiscCacheTest.newContext(mFolder.getRoot()),
+                "tiered", DiscCache.MODE_INTERNAL);
+        mExecutor = new QueueExecutor();
+        mCache = new TieredCache<String>(MemoryCache.<String, String>lruCache(10),
+                mDiscCache, TieredCache.STRING, null, mExecutor);
+    }
+
+    /**
+     * @return disc value without the write time header
+     */
+    private String discValue(final String key) {
+        final byte[] data = mDiscCache.getBytes(key);
+        return data == null ? null : new String(TieredCache.payloadOf(data));
+    }
+
+    @Test
+    public void testWriteBehind() {
+        mCache.put("key", "value");
+        Assert.assertNull(discValue("key"));
+        mCache.getMemoryCache().clear();
+        // pending write is visible before it reaches disc
+        Assert.assertEquals("value", mCache.get("key"));
+        mExecutor.runAll();
+        Assert.assertEquals("value", discValue("key"));
+        mCache.getMemoryCache().clear();
+        Assert.assertEquals("value", mCache.get("key"));
+    }
+
+    @Test
+    public void testRemoveIsNotReadBackFromDisc() {
+        mCache.put("key", "value");
+        mExecutor.runAll();
+        mCache.remove("key");
+        // disc remove is still queued
+        Assert.assertEquals("value", discValue("key"));
+        Assert.assertNull(mCache.get("key"));
+        Assert.assertNull(mCache.getMemoryCache().get("key"));
+        mExecutor.runAll();
+        Assert.assertNull(discValue("key"));
+        Assert.assertNull(mCache.get("key"));
+    }
+
+    @Test
+    public void testPutAfterRemove() {
+        mCache.put("key", "old");
+        mExecutor.runAll();
+        mCache.remove("key");
+        mCache.put("key", "new");
+        mCache.getMemoryCache().clear();
+        Assert.assertEquals("new", mCache.get("key"));
+        mExecutor.runAll();
+        Assert.assertEquals("new", discValue("key"));
+    }
+
+    @Test
+    public void testRemoveBeforeWriteBehind() {
+        mCache.put("key", "value");
+        mCache.remove("key");
+        mExecutor.runAll();
+        Assert.assertNull(discValue("key"));
+        Assert.assertNull(mCache.get("key"));
+    }
+
+    @Test
+    public void testClearIsNotReadBackFromDisc() {
+        mCache.put("a", "1");
+        mCache.put("b", "2");
+        mExecutor.runAll();
+        mCache.clear();
+        mCache.put("c", "3");
+        Assert.assertEquals("1", discValue("a"));
+        Assert.assertNull(mCache.get("a"));
+        Assert.assertNull(mCache.get("b"));
+        Assert.assertEquals("3", mCache.get("c"));
+        mExecutor.runAll();
+        Assert.assertNull(discValue("a"));
+        Assert.assertEquals("3", discValue("c"));
+        mCache.getMemoryCache().clear();
+        Assert.assertEquals("3", mCache.get("c"));
+    }
+
+    @Test
+    public void testRemovedKeyIsLoadedAgain() {
+        final int[] loads = new int[1];
+        final TieredCache<String> cache = new TieredCache<String>(
+                MemoryCache.<String, String>lruCache(10), mDiscCache, TieredCache.STRING,
+                new CacheLoader<String, String>() {
+                    @Override
+                    public String load(final String key) {
+                        loads[0]++;
+                        return key + loads[0];
+                    }
+                }, mExecutor);
+        Assert.assertEquals("key1", cache.get("key"));
+        mExecutor.runAll();
+        cache.remove("key");
+        Assert.assertEquals("key2", cache.get("key"));
+        mExecutor.runAll();
+        Assert.assertEquals("key2", discValue("key"));
+    }
+
+    @Test
+    public void testWriteTimeIsSavedOnDisc() throws IOException {
+        final long before = System.currentTimeMillis();
+        mCache.put("key", "value");
+        mExecutor.runAll();
+        final byte[] data = mDiscCache.getBytes("key");
+        Assert.assertTrue(TieredCache.writeTimeOf(data) >= before);
+        Assert.assertEquals("value", new String(TieredCache.payloadOf(data)));
+        Assert.assertEquals("value", mCache.getDiscConverter().decode(data));
+    }
+
+    @Test
+    public void testRefreshByWriteTime() {
+        final List<String> loaded = new ArrayList<String>();
+        final TieredCache<String> cache = new TieredCache<String>(
+                MemoryCache.<String, String>lruCache(10), mDiscCache, TieredCache.STRING,
+                new CacheLoader<String, String>() {
+                    @Override
+                    public String load(final String key) {
+                        loaded.add(key);
+                        return "new";
+                    }
+                }, mExecutor);
+        final QueueExecutor refresher = new QueueExecutor();
+        cache.setRefreshAfterWrite(60 * 1000L, refresher);
+        final long now = System.currentTimeMillis();
+        mDiscCache.put("fresh", TieredCache.frame("fresh".getBytes(), now - 1000));
+        mDiscCache.put("stale", TieredCache.frame("stale".getBytes(), now - 120 * 1000L));
+        // written without header, age is unknown
+        mDiscCache.put("legacy", "legacy");
+        Assert.assertEquals("fresh", cache.get("fresh"));
+        Assert.assertEquals("stale", cache.get("stale"));
+        Assert.assertEquals("legacy", cache.get("legacy"));
+        Assert.assertEquals(2, refresher.tasks.size());
+        refresher.runAll();
+        Assert.assertEquals(Arrays.asList("stale", "legacy"), loaded);
+        Assert.assertEquals("new", cache.get("stale"));
+        mExecutor.runAll();
+        Assert.assertTrue(TieredCache.writeTimeOf(mDiscCache.getBytes("stale")) >= now);
+    }
+
+    @Test
+    public void testRefreshMemoryHit() throws InterruptedException {
+        final List<String> loaded = new ArrayList<String>();
+        final TieredCache<String> cache = new TieredCache<String>(
+                MemoryCache.<String, String>lruCache(10), mDiscCache, TieredCache.STRING,
+                new CacheLoader<String, String>() {
+                    @Override
+                    public String load(final String key) {
+                        loaded.add(key);
+                        return "new";
+                    }
+                }, mExecutor);
+        final QueueExecutor refresher = new QueueExecutor();
+        cache.setRefreshAfterWrite(50, refresher);
+        cache.put("a", "old");
+        Assert.assertEquals("old", cache.get("a"));
+        Assert.assertTrue(refresher.tasks.isEmpty());
+        Thread.sleep(80);
+        // stale in memory, returned at once and reloaded once
+        Assert.assertEquals("old", cache.get("a"));
+        Assert.assertEquals("old", cache.get("a"));
+        Assert.assertEquals(1, refresher.tasks.size());
+        refresher.runAll();
+        Assert.assertEquals("new", cache.get("a"));
+        Assert.assertTrue(refresher.tasks.isEmpty());
+        // put into memory directly, age is unknown
+        cache.getMemoryCache().put("b", "direct");
+        Assert.assertEquals("direct", cache.get("b"));
+        refresher.runAll();
+        Assert.assertEquals("new", cache.get("b"));
+        Assert.assertTrue(refresher.tasks.isEmpty());
+        Assert.assertEquals(Arrays.asList("a", "b"), loaded);
+    }
+}
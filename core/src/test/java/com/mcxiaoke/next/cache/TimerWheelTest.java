@@ -0,0 +1,159 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 22:05
+ */
+public class TimerWheelTest {
+
+    private static final long START = 1540000000000L;
+
+    static class Recorder implements TimerWheel.Listener<String> {
+        final List<String> expired = new ArrayList<String>();
+        final List<Long> times = new ArrayList<Long>();
+        long extend;
+
+        @Override
+        public long onExpired(final String key, final long now) {
+            expired.add(key);
+            times.add(now);
+            final long deadline = extend;
+            extend = 0;
+            return deadline;
+        }
+    }
+
+    @Test
+    public void testExpireInOrderOfTicks() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        wheel.schedule("a", START + 2000);
+        wheel.schedule("b", START + 5000);
+        Assert.assertEquals(2, wheel.size());
+        wheel.advance(START + 1000);
+        Assert.assertTrue(recorder.expired.isEmpty());
+        wheel.advance(START + 3000);
+        Assert.assertEquals(1, recorder.expired.size());
+        Assert.assertEquals("a", recorder.expired.get(0));
+        wheel.advance(START + 6000);
+        Assert.assertEquals(2, recorder.expired.size());
+        Assert.assertEquals("b", recorder.expired.get(1));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCascadeFromCoarseWheels() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        final long hour = 3600 * 1000L;
+        wheel.schedule("hour", START + hour);
+        wheel.schedule("day", START + 24 * hour);
+        wheel.schedule("month", START + 30 * 24 * hour);
+        for (long t = START; t <= START + 31 * 24 * hour; t += 60 * 1000L) {
+            wheel.advance(t);
+        }
+        Assert.assertEquals(3, recorder.expired.size());
+        Assert.assertEquals("hour", recorder.expired.get(0));
+        Assert.assertEquals("day", recorder.expired.get(1));
+        Assert.assertEquals("month", recorder.expired.get(2));
+        // never expired early, at most one advance step late
+        Assert.assertTrue(recorder.times.get(0) >= START + hour);
+        Assert.assertTrue(recorder.times.get(0) < START + hour + 60 * 1000L);
+        Assert.assertTrue(recorder.times.get(2) >= START + 30 * 24 * hour);
+        Assert.assertTrue(recorder.times.get(2) < START + 30 * 24 * hour + 60 * 1000L);
+    }
+
+    @Test
+    public void testPastDeadlineExpiresOnNextTick() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        wheel.advance(START + 10000);
+        // the bucket of this deadline was passed 8 seconds ago
+        wheel.schedule("late", START + 2000);
+        wheel.advance(START + 11500);
+        Assert.assertEquals(1, recorder.expired.size());
+        Assert.assertEquals("late", recorder.expired.get(0));
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDescheduleAndReschedule() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        wheel.schedule("a", START + 2000);
+        wheel.schedule("b", START + 2000);
+        wheel.deschedule("a");
+        wheel.schedule("b", START + 10000);
+        Assert.assertEquals(0, wheel.getDeadline("a"));
+        Assert.assertEquals(START + 10000, wheel.getDeadline("b"));
+        wheel.advance(START + 5000);
+        Assert.assertTrue(recorder.expired.isEmpty());
+        wheel.advance(START + 12000);
+        Assert.assertEquals(1, recorder.expired.size());
+        Assert.assertEquals("b", recorder.expired.get(0));
+    }
+
+    @Test
+    public void testListenerExtendsDeadline() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        wheel.schedule("a", START + 2000);
+        recorder.extend = START + 8000;
+        wheel.advance(START + 3000);
+        Assert.assertEquals(1, recorder.expired.size());
+        Assert.assertEquals(START + 8000, wheel.getDeadline("a"));
+        wheel.advance(START + 9000);
+        Assert.assertEquals(2, recorder.expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testClear() {
+        final Recorder recorder = new Recorder();
+        final TimerWheel<String> wheel = new TimerWheel<String>(recorder, START);
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule("k" + i, START + i * 1000L);
+        }
+        wheel.clear();
+        Assert.assertEquals(0, wheel.size());
+        wheel.advance(START + 200 * 1000L);
+        Assert.assertTrue(recorder.expired.isEmpty());
+    }
+
+    @Test
+    public void testSizeEvictionDeschedules() {
+        final int[] policies = {MemoryCacheBuilder.POLICY_LRU,
+                MemoryCacheBuilder.POLICY_CONCURRENT_LRU, MemoryCacheBuilder.POLICY_TINY_LFU};
+        for (int policy : policies) {
+            final MemoryCacheImpl<Integer, String> cache = (MemoryCacheImpl<Integer, String>)
+                    MemoryCacheBuilder.<Integer, String>create()
+                            .policy(policy)
+                            .maxSize(16)
+                            .expireAfterWrite(3600 * 1000L)
+                            .build();
+            for (int i = 0; i < 1000; i++) {
+                cache.put(i, "v" + i);
+            }
+            Assert.assertEquals("policy=" + policy, cache.size(), cache.scheduledCount());
+            cache.clear();
+            Assert.assertEquals(0, cache.scheduledCount());
+        }
+    }
+
+    @Test
+    public void testLruCacheImplSizeEvictionDeschedules() {
+        final LruCacheImpl<Integer, String> cache = new LruCacheImpl<Integer, String>(16);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i, 3600 * 1000L);
+        }
+        Assert.assertEquals(16, cache.size());
+        Assert.assertEquals(16, cache.scheduledCount());
+    }
+}
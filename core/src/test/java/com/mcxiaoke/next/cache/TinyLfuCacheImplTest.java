@@ -0,0 +1,168 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 21:30
+ */
+public class TinyLfuCacheImplTest {
+
+    /**
+     * 400k accesses, Zipf(0.9) over 20k keys, a scan of 2k new keys
+     * at the start of every 20k accesses
+     */
+    static int[] scanTrace(final long seed) {
+        final Random random = new Random(seed);
+        final int keys = 20000;
+        final double[] cdf = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        final int[] trace = new int[400000];
+        int scanKey = 1000000;
+        for (int i = 0; i < trace.length; i++) {
+            if (i % 20000 < 2000) {
+                trace[i] = scanKey++;
+                continue;
+            }
+            int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            trace[i] = index;
+        }
+        return trace;
+    }
+
+    static double hitRatio(final IMemoryCache<Integer, Integer> cache, final int[] trace) {
+        int hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return 100.0 * hits / trace.length;
+    }
+
+    @Test
+    public void testHitRatioOnScanTrace() {
+        final int[] trace = scanTrace(42);
+        for (int size : new int[]{500, 1000, 2000, 5000}) {
+            final double lru = hitRatio(MemoryCache.<Integer, Integer>lruCache(size), trace);
+            final double tinyLfu = hitRatio(MemoryCache.<Integer, Integer>tinyLfuCache(size), trace);
+            System.out.println(String.format("size=%d lruCache=%.1f%% tinyLfuCache=%.1f%%",
+                    size, lru, tinyLfu));
+            Assert.assertTrue("size=" + size, tinyLfu > lru + 5);
+        }
+    }
+
+    @Test
+    public void testScanDoesNotFlushHotKeys() {
+        final TinyLfuCacheImpl<Integer, Integer> cache = new TinyLfuCacheImpl<Integer, Integer>(100);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, i);
+                }
+            }
+        }
+        for (int i = 1000; i < 2000; i++) {
+            cache.put(i, i);
+        }
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.peek(i) != null) {
+                hot++;
+            }
+        }
+        Assert.assertEquals(50, hot);
+        Assert.assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void testPeekIsNotAnAccess() {
+        final TinyLfuCacheImpl<Integer, Integer> cache = new TinyLfuCacheImpl<Integer, Integer>(100);
+        cache.put(1, 1);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(Integer.valueOf(1), cache.peek(1));
+        }
+        Assert.assertNull(cache.peek(2));
+        final CacheStats stats = cache.stats();
+        Assert.assertEquals(0, stats.hitCount());
+        Assert.assertEquals(0, stats.missCount());
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        final FrequencySketch<Integer> sketch = new FrequencySketch<Integer>(512);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(1);
+        }
+        Assert.assertEquals(5, sketch.frequency(1));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(2);
+        }
+        // 4-bit counters
+        Assert.assertEquals(15, sketch.frequency(2));
+        sketch.clear();
+        Assert.assertEquals(0, sketch.frequency(1));
+    }
+
+    @Test
+    public void testFrequencySketchAging() {
+        final FrequencySketch<Integer> sketch = new FrequencySketch<Integer>(64);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(-1);
+        }
+        // sample size is 10 * 64, counters are halved when reached
+        for (int i = 0; i < 640; i++) {
+            sketch.increment(i);
+        }
+        Assert.assertTrue(sketch.frequency(-1) <= 4);
+    }
+
+    @Test
+    public void testLruContainsKeyKeepsOrder() {
+        final LruCacheCompat<Integer, Integer> cache = new LruCacheCompat<Integer, Integer>(2);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        Assert.assertTrue(cache.containsKey(1));
+        cache.put(3, 3);
+        // 1 is still least recently used
+        Assert.assertFalse(cache.containsKey(1));
+        // peek is an access for lru, but not a hit
+        Assert.assertEquals(Integer.valueOf(2), cache.peek(2));
+        cache.put(4, 4);
+        Assert.assertNull(cache.peek(3));
+        Assert.assertEquals(0, cache.missCount());
+        Assert.assertEquals(0, cache.hitCount());
+    }
+
+    @Test
+    public void testPutWithExpires() throws InterruptedException {
+        final TinyLfuCacheImpl<String, String> cache = new TinyLfuCacheImpl<String, String>(100);
+        cache.put("live", "1");
+        cache.put("expiring", "2", 1);
+        cache.put("replaced", "3", 1);
+        cache.put("replaced", "4");
+        Assert.assertEquals(1, cache.scheduledCount());
+        Thread.sleep(20);
+        Assert.assertFalse(cache.snapshot().containsKey("expiring"));
+        Assert.assertNull(cache.get("expiring"));
+        Assert.assertEquals("1", cache.get("live"));
+        Assert.assertEquals("4", cache.get("replaced"));
+        Assert.assertEquals(0, cache.scheduledCount());
+        Assert.assertEquals(1, cache.stats().expiredCount());
+        Assert.assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,75 @@
+package com.mcxiaoke.next.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 13:05
+ */
+public class WeighersTest {
+
+    @Test
+    public void testBuiltInWeighers() {
+        Assert.assertEquals(1, Weighers.<String, Object>singleton().weigh("key", new Object()));
+        Assert.assertEquals(10, Weighers.<String>byteArray().weigh("key", new byte[10]));
+        Assert.assertEquals(8, Weighers.<String>string().weigh("key", "four"));
+    }
+
+    @Test
+    public void testLruCacheEvictsByWeight() {
+        final IMemoryCache<String, byte[]> cache = MemoryCache.lruCache(100, Weighers.<String>byteArray());
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        Assert.assertEquals(80, cache.size());
+        cache.put("c", new byte[40]);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(80, cache.size());
+        Assert.assertEquals(1, cache.stats().evictionCount());
+    }
+
+    @Test
+    public void testReplacedEntryIsReweighed() {
+        final IMemoryCache<String, byte[]> cache = MemoryCache.lruCache(100, Weighers.<String>byteArray());
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[10]);
+        cache.put("a", new byte[80]);
+        Assert.assertEquals(90, cache.size());
+        cache.remove("a");
+        Assert.assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testHeavierThanMaxSizeIsNotKept() {
+        final IMemoryCache<String, byte[]> cache = MemoryCache.lruCache(100, Weighers.<String>byteArray());
+        cache.put("small", new byte[10]);
+        cache.put("huge", new byte[101]);
+        Assert.assertNull(cache.get("huge"));
+        Assert.assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void testBuilderWithWeigher() {
+        final IMemoryCache<String, String> cache = MemoryCacheBuilder.<String, String>create()
+                .maxSize(20)
+                .weigher(Weighers.<String>string())
+                .build();
+        cache.put("a", "12345");
+        cache.put("b", "12345");
+        Assert.assertEquals(20, cache.size());
+        cache.put("c", "1");
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals("12345", cache.get("b"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTinyLfuRejectsWeigher() {
+        MemoryCacheBuilder.<String, String>create()
+                .policy(MemoryCacheBuilder.POLICY_TINY_LFU)
+                .weigher(Weighers.<String>string())
+                .build();
+    }
+}
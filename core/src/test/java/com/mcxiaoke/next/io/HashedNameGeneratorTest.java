@@ -0,0 +1,81 @@
+package com.mcxiaoke.next.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 12:40
+ */
+public class HashedNameGeneratorTest {
+
+    private static final String PREFIXES = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    /**
+     * digests of each prefix of length 0 to 33, covers every tail length and two blocks
+     */
+    private static final String[] PREFIX_DIGESTS = {
+            "00000000000000000000000000000000",
+            "897859f6655555855a890e51483ab5e6",
+            "2e1bed16ea118b93add4529b01a75ee6",
+            "6778ad3f3f3f96b4522dca264174a23b",
+            "4fcd5646d6b77bb875e87360883e00f2",
+            "b8bb96f491d036208ceccf4ba0eec7c5",
+            "55bfa3acbf867de45c842133990971b0",
+            "99e49ec09f2fcda6b6bb55b13aa23a1c",
+            "028cef37b00a8acca14069eb600d8948",
+            "64793cf1cfc0470533e041b7f53db579",
+            "998c2f770d5bc1b6c91a658cdc854da2",
+            "029d78dfb8d095a871e75a45e2317cbb",
+            "94e17ae6b19bf38e1c62ff7232309e1f",
+            "73fac0a78d2848167fcce70dff7b652e",
+            "e075c3f5a794d09124336ad2276009ee",
+            "fb2f0c895124be8a612a969c2d8c546a",
+            "23b74c22a33ccac41aeb31b395d63343",
+            "57a6bd887f746475e40d11a19d49daec",
+            "508a7f90ec8cf0776bc7005a29a8d471",
+            "886d9ede23bc901574946fb62a4d8aa6",
+            "f1e237f926370b314bd016572af40996",
+            "3cc9ff79e268d5c9fb3c9be9c148ccd7",
+            "56f8abf430e388956da9f4a8741fdb46",
+            "8e234f9dba0a4840ffe9541cebb7be83",
+            "f72cded40f96946408f22153a3cf0f79",
+            "0f96072fa4cbe771dbbd9e398115eeed",
+            "a94a6f517e9d9c7429d5a7b6899cade9",
+            "45e0dd1084dc2d7e36930cb16acf3c45",
+            "617fbbc8064e068ca8a95e410b09410b",
+            "7e94525ef1cfef3110e3945ec984fdfb",
+            "41339bec00196841c9183215ef8622bf",
+            "a85856632862f04b7aeff99060d2dbbe",
+            "e30ae239b527a11668bffea12207cbed",
+            "8860c9808bf1a5ee3a6f9c31c41bbd23"
+    };
+
+    private final HashedNameGenerator mGenerator = new HashedNameGenerator();
+
+    @Test
+    public void testKnownDigests() {
+        Assert.assertEquals("00000000000000000000000000000000", mGenerator.generate(""));
+        Assert.assertEquals("029bbd41b3a7d8cb191dae486a901e5b", mGenerator.generate("hello"));
+        Assert.assertEquals("6c1b07bc7bbc4be347939ac4a93c437a",
+                mGenerator.generate("The quick brown fox jumps over the lazy dog"));
+        // utf-8 bytes of the key
+        Assert.assertEquals("0166e25b75ff1a242dddfe111e0fea56", mGenerator.generate("\u4e2d\u6587key"));
+    }
+
+    @Test
+    public void testEveryTailLength() {
+        for (int i = 0; i < PREFIX_DIGESTS.length; i++) {
+            Assert.assertEquals("length " + i, PREFIX_DIGESTS[i],
+                    mGenerator.generate(PREFIXES.substring(0, i)));
+        }
+    }
+
+    @Test
+    public void testFileNames() {
+        final String name = mGenerator.generate("https://api.douban.com/v2/user/1000001");
+        Assert.assertEquals("76092277c43ca3ebbe9fefd03890fbac", name);
+        Assert.assertTrue(name.matches("[0-9a-f]{32}"));
+    }
+}
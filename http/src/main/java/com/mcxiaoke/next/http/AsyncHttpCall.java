@@ -0,0 +1,220 @@
+package com.mcxiaoke.next.http;
+
+import com.mcxiaoke.next.http.exception.HttpException;
+import com.mcxiaoke.next.http.job.HttpJob;
+import com.mcxiaoke.next.http.processor.HttpProcessor;
+import com.mcxiaoke.next.task.ThreadUtils;
+import com.mcxiaoke.next.utils.LogUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Job of {@link HttpQueue} in async mode, the call is started by {@link Call#enqueue(Callback)}
+ * when the dispatcher grants a slot, no thread of the queue is held while waiting or
+ * during the network round trip. Bodies up to {@link #MAX_BUFFERED_BODY} bytes are read on
+ * the OkHttp callback thread, so the decode executor only runs the transformer and processors,
+ * larger bodies are read by the transformer on the decode executor.
+ * Callbacks run on the callback executor, skipped if cancelled or caller is not active.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 18:20
+ */
+final class AsyncHttpCall<T> implements Runnable, Callback {
+    private static final String TAG = "HttpQueue";
+    private static final AtomicInteger sSequence = new AtomicInteger();
+    static final long MAX_BUFFERED_BODY = 256 * 1024L;
+
+    final HttpJob<T> job;
+    final String name;
+    private final NextClient mClient;
+    private final HttpDispatcher mDispatcher;
+    private final Executor mDecodeExecutor;
+    private final Executor mCallbackExecutor;
+    private final ConcurrentMap<String, AsyncHttpCall<?>> mCalls;
+    private final boolean mDebug;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+    private volatile boolean mCancelled;
+    private volatile Call mCall;
+
+    AsyncHttpCall(final HttpJob<T> job, final NextClient client,
+                  final HttpDispatcher dispatcher, final Executor decodeExecutor,
+                  final Executor callbackExecutor,
+                  final ConcurrentMap<String, AsyncHttpCall<?>> calls,
+                  final boolean debug) {
+        this.job = job;
+        // caller class and hash like task names, prefixed to never clash with them
+        this.name = "async|" + job.caller.getClass().getSimpleName()
+                + "|" + Integer.toHexString(System.identityHashCode(job.caller))
+                + "|" + sSequence.incrementAndGet();
+        mClient = client;
+        mDispatcher = dispatcher;
+        mDecodeExecutor = decodeExecutor;
+        mCallbackExecutor = callbackExecutor;
+        mCalls = calls;
+        mDebug = debug;
+    }
+
+    /**
+     * @return name of the job, for cancel
+     */
+    String start() {
+        mCalls.put(name, this);
+        mDispatcher.acquireAsync(job, this);
+        return name;
+    }
+
+    /**
+     * cancel the job, callbacks are not called after cancel
+     */
+    void cancel() {
+        mCancelled = true;
+        mCalls.remove(name);
+        if (mDispatcher.cancel(job)) {
+            // still waiting, no slot to release
+            return;
+        }
+        final Call call = mCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * slot granted by dispatcher
+     */
+    @Override
+    public void run() {
+        if (mCancelled) {
+            release();
+            return;
+        }
+        final Call call;
+        try {
+            call = mClient.newCall(job.request);
+        } catch (IOException e) {
+            release();
+            deliverFailure(e);
+            return;
+        }
+        mCall = call;
+        if (mCancelled) {
+            // cancelled before the call was visible to cancel()
+            call.cancel();
+        }
+        call.enqueue(this);
+    }
+
+    @Override
+    public void onFailure(final Call call, final IOException e) {
+        release();
+        deliverFailure(e);
+    }
+
+    @Override
+    public void onResponse(final Call call, final Response response) {
+        final NextResponse nextResponse = new NextResponse(response);
+        if (!nextResponse.successful()) {
+            nextResponse.close();
+            release();
+            deliverFailure(new HttpException(nextResponse));
+            return;
+        }
+        final ResponseBody body = response.body();
+        if (body != null && !mCancelled) {
+            try {
+                // buffered bytes stay readable by the transformer
+                body.source().request(MAX_BUFFERED_BODY);
+            } catch (IOException e) {
+                nextResponse.close();
+                release();
+                deliverFailure(e);
+                return;
+            }
+        }
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                decode(nextResponse);
+            }
+        });
+    }
+
+    private void decode(final NextResponse nextResponse) {
+        final T result;
+        try {
+            if (mCancelled) {
+                nextResponse.close();
+                return;
+            }
+            // large body is read from network by transformer, slot is held until done
+            result = job.transformer.transform(nextResponse);
+            final Iterable<HttpProcessor<T>> processors = job.getProcessors();
+            if (processors != null) {
+                for (HttpProcessor<T> p : processors) {
+                    p.process(result);
+                }
+            }
+        } catch (Exception e) {
+            deliverFailure(e);
+            return;
+        } finally {
+            release();
+        }
+        deliverSuccess(nextResponse, result);
+    }
+
+    private void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            mDispatcher.release(job);
+        }
+    }
+
+    private void deliverSuccess(final NextResponse response, final T result) {
+        mCalls.remove(name, this);
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isCallbackSkipped()) {
+                    return;
+                }
+                if (mDebug) {
+                    LogUtils.d(TAG, "[HttpJob][Success] " + response);
+                }
+                if (job.callback != null) {
+                    job.callback.handleResponse(result);
+                }
+            }
+        });
+    }
+
+    private void deliverFailure(final Throwable ex) {
+        mCalls.remove(name, this);
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isCallbackSkipped()) {
+                    return;
+                }
+                if (mDebug) {
+                    LogUtils.w(TAG, "[HttpJob][Failure] Error:" + ex);
+                }
+                if (job.callback != null) {
+                    job.callback.handleException(ex);
+                }
+            }
+        });
+    }
+
+    private boolean isCallbackSkipped() {
+        return mCancelled || !ThreadUtils.isActive(job.caller);
+    }
+}
@@ -0,0 +1,610 @@
+package com.mcxiaoke.next.http;
+
+import android.content.Context;
+import android.util.Log;
+import com.mcxiaoke.next.cache.DiscCache;
+import com.mcxiaoke.next.cache.IMemoryCache;
+import com.mcxiaoke.next.cache.MemoryCache;
+import com.mcxiaoke.next.io.HashedNameGenerator;
+import okhttp3.CacheControl;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private HTTP response cache (RFC 7234) backed by {@link DiscCache},
+ * installed as an application interceptor by {@link NextClient#setCache(HttpCache)}.
+ * Fresh responses are served without network, stale responses with ETag or
+ * Last-Modified are revalidated with If-None-Match / If-Modified-Since,
+ * a 304 is served from cache with updated headers. Requests with their own
+ * If-None-Match / If-Modified-Since get a 304 from a matching fresh entry,
+ * and a 304 from network is passed to them unchanged.
+ * Only GET responses are stored, unsafe requests invalidate the entry of their url.
+ * With {@link #setNegativeCache(int, long)}, 404 and 410 responses without
+ * cache headers are remembered in memory and repeated for a short time.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 13:20
+ */
+public class HttpCache implements Interceptor {
+    public static final String TAG = HttpCache.class.getSimpleName();
+
+    public static final String DIR_NAME_DEFAULT = ".http";
+    public static final int MAX_ENTRY_SIZE_DEFAULT = 1024 * 1024;
+
+    private static final int ENTRY_MAGIC = 0x4e584843;
+    private static final int ENTRY_VERSION = 1;
+
+    private final DiscCache mCache;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mRevalidateCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private volatile int mMaxEntrySize = MAX_ENTRY_SIZE_DEFAULT;
+    /**
+     * url to status code of missing resources
+     */
+    private volatile IMemoryCache<String, Integer> mMissing;
+    private volatile long mMissingTtl;
+    private boolean mDebug;
+
+    public HttpCache(final Context context, final long maxSize) {
+        this(new DiscCache(context, DIR_NAME_DEFAULT, DiscCache.MODE_AUTO, maxSize));
+        mCache.setFileNameGenerator(new HashedNameGenerator());
+    }
+
+    /**
+     * @param cache disc cache for responses, should not be shared with other data
+     */
+    public HttpCache(final DiscCache cache) {
+        if (cache == null) {
+            throw new NullPointerException("cache must not be null.");
+        }
+        mCache = cache;
+    }
+
+    public HttpCache setDebug(final boolean debug) {
+        mDebug = debug;
+        return this;
+    }
+
+    /**
+     * @param maxEntrySize responses with larger body are not stored
+     */
+    public HttpCache setMaxEntrySize(final int maxEntrySize) {
+        if (maxEntrySize <= 0) {
+            throw new IllegalArgumentException("maxEntrySize <= 0");
+        }
+        mMaxEntrySize = maxEntrySize;
+        return this;
+    }
+
+    /**
+     * remember urls answered with 404 or 410 and no cache headers,
+     * requests of them in ttl get the same status without network,
+     * a successful response or an unsafe request of the url forgets it
+     *
+     * @param maxSize max number of missing urls, 0 to disable
+     * @param ttl     time to live of missing urls in millis
+     */
+    public HttpCache setNegativeCache(final int maxSize, final long ttl) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        if (maxSize > 0 && ttl <= 0) {
+            throw new IllegalArgumentException("ttl <= 0");
+        }
+        // ttl first, readers of the new cache must not put with an old ttl
+        mMissingTtl = ttl;
+        mMissing = maxSize == 0 ? null : MemoryCache.<String, Integer>lruCache(maxSize);
+        return this;
+    }
+
+    public DiscCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @return requests served from cache without network
+     */
+    public long hitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return requests revalidated with a 304 and served from cache
+     */
+    public long revalidateCount() {
+        return mRevalidateCount.get();
+    }
+
+    /**
+     * @return cacheable requests served from network
+     */
+    public long missCount() {
+        return mMissCount.get();
+    }
+
+    public void remove(final String url) {
+        mCache.remove(url);
+        final IMemoryCache<String, Integer> missing = mMissing;
+        if (missing != null) {
+            missing.remove(url);
+        }
+    }
+
+    public void clear() {
+        mCache.clear();
+        final IMemoryCache<String, Integer> missing = mMissing;
+        if (missing != null) {
+            missing.clear();
+        }
+    }
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String key = request.url().toString();
+        if (!"GET".equals(request.method())) {
+            final Response response = chain.proceed(request);
+            if (response.isSuccessful() && !"HEAD".equals(request.method())) {
+                // unsafe method, stored response is no longer valid
+                remove(key);
+            }
+            return response;
+        }
+        final CacheControl requestControl = request.cacheControl();
+        final long now = System.currentTimeMillis();
+        final IMemoryCache<String, Integer> missing = requestControl.noCache()
+                || requestControl.noStore() ? null : mMissing;
+        final Integer missingCode = missing == null ? null : missing.get(key);
+        if (missingCode != null) {
+            mHitCount.incrementAndGet();
+            if (mDebug) {
+                Log.v(TAG, "[intercept][MISSING] " + key);
+            }
+            return missing(request, missingCode, now);
+        }
+        final Entry entry = requestControl.noStore() ? null : readEntry(key, request);
+        final boolean callerConditional = request.header(HttpConsts.IF_NONE_MATCH) != null
+                || request.header(HttpConsts.IF_MODIFIED_SINCE) != null;
+        if (entry != null && !requestControl.noCache() && entry.isFresh(requestControl, now)) {
+            mHitCount.incrementAndGet();
+            if (mDebug) {
+                Log.v(TAG, "[intercept][HIT] " + key);
+            }
+            if (callerConditional && entry.isNotModified(request)) {
+                return entry.notModified(request);
+            }
+            return entry.response(request, entry.headers);
+        }
+        if (requestControl.onlyIfCached()) {
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(504)
+                    .message("Unsatisfiable Request (only-if-cached)")
+                    .body(ResponseBody.create(null, HttpConsts.NO_BODY))
+                    .sentRequestAtMillis(-1L)
+                    .receivedResponseAtMillis(now)
+                    .build();
+        }
+        final Request networkRequest = entry == null ? request : conditional(request, entry);
+        final long sentAt = System.currentTimeMillis();
+        final Response response = chain.proceed(networkRequest);
+        final long receivedAt = System.currentTimeMillis();
+        if (entry != null && response.code() == 304) {
+            if (callerConditional) {
+                // answers the conditions of the caller, not of the stored entry
+                return response;
+            }
+            response.close();
+            mRevalidateCount.incrementAndGet();
+            final Headers headers = merge(entry.headers, response.headers());
+            final Entry updated = new Entry(entry.code, entry.message, headers,
+                    entry.varyValues, entry.body, sentAt, receivedAt);
+            writeEntry(key, updated);
+            if (mDebug) {
+                Log.v(TAG, "[intercept][REVALIDATED] " + key);
+            }
+            return updated.response(request, headers);
+        }
+        mMissCount.incrementAndGet();
+        if (!isCacheable(request, response)) {
+            if (response.isSuccessful() || response.code() == 404) {
+                mCache.remove(key);
+            }
+            onMissing(key, request, response);
+            return response;
+        }
+        if (missing != null) {
+            missing.remove(key);
+        }
+        return store(key, request, response, sentAt, receivedAt);
+    }
+
+    private void onMissing(final String key, final Request request, final Response response) {
+        final IMemoryCache<String, Integer> missing = mMissing;
+        if (missing == null) {
+            return;
+        }
+        final int code = response.code();
+        if ((code == 404 || code == 410) && !request.cacheControl().noStore()
+                && !response.cacheControl().noStore()) {
+            missing.put(key, code, mMissingTtl);
+        } else {
+            missing.remove(key);
+        }
+    }
+
+    private static Response missing(final Request request, final int code, final long now) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(code == 410 ? "Gone" : "Not Found")
+                .body(ResponseBody.create(null, HttpConsts.NO_BODY))
+                .sentRequestAtMillis(-1L)
+                .receivedResponseAtMillis(now)
+                .build();
+    }
+
+    private Response store(final String key, final Request request, final Response response,
+                           final long sentAt, final long receivedAt) throws IOException {
+        final ResponseBody body = response.body();
+        if (body == null || body.contentLength() > mMaxEntrySize) {
+            return response;
+        }
+        final BufferedSource source = body.source();
+        if (source.request(mMaxEntrySize + 1L)) {
+            // too large, buffered bytes are still readable by the caller
+            return response;
+        }
+        final byte[] data = source.readByteArray();
+        body.close();
+        final Entry entry = new Entry(response.code(), response.message(), response.headers(),
+                varyValues(request, response.headers()), data, sentAt, receivedAt);
+        writeEntry(key, entry);
+        if (mDebug) {
+            Log.v(TAG, "[store] " + key + " bytes=" + data.length);
+        }
+        return response.newBuilder()
+                .body(ResponseBody.create(body.contentType(), data))
+                .build();
+    }
+
+    private Entry readEntry(final String key, final Request request) {
+        final byte[] data = mCache.getBytes(key);
+        if (data == null) {
+            return null;
+        }
+        try {
+            final Entry entry = Entry.read(data);
+            final Headers vary = varyValues(request, entry.headers);
+            // stored response was selected by other request headers
+            return vary.equals(entry.varyValues) ? entry : null;
+        } catch (IOException e) {
+            if (mDebug) {
+                Log.w(TAG, "[readEntry] " + key + " error=" + e);
+            }
+            mCache.remove(key);
+            return null;
+        }
+    }
+
+    private void writeEntry(final String key, final Entry entry) {
+        try {
+            mCache.put(key, entry.toBytes());
+        } catch (IOException e) {
+            if (mDebug) {
+                Log.w(TAG, "[writeEntry] " + key + " error=" + e);
+            }
+        }
+    }
+
+    private static Request conditional(final Request request, final Entry entry) {
+        if (request.header(HttpConsts.IF_NONE_MATCH) != null
+                || request.header(HttpConsts.IF_MODIFIED_SINCE) != null) {
+            // conditions set by the caller, a 304 is for the caller too
+            return request;
+        }
+        final Request.Builder builder = request.newBuilder();
+        final String etag = entry.headers.get(HttpConsts.ETAG);
+        final String lastModified = entry.headers.get(HttpConsts.LAST_MODIFIED);
+        if (etag != null) {
+            builder.header(HttpConsts.IF_NONE_MATCH, etag);
+        } else if (lastModified != null) {
+            builder.header(HttpConsts.IF_MODIFIED_SINCE, lastModified);
+        } else {
+            return request;
+        }
+        return builder.build();
+    }
+
+    /**
+     * RFC 7234 section 3, private cache
+     */
+    private static boolean isCacheable(final Request request, final Response response) {
+        switch (response.code()) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 308:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                break;
+            default:
+                return false;
+        }
+        if ("*".equals(response.header(HttpConsts.VARY))) {
+            return false;
+        }
+        final CacheControl control = response.cacheControl();
+        if (control.noStore() || request.cacheControl().noStore()) {
+            return false;
+        }
+        // explicit freshness or a validator, else it would never be used
+        return control.maxAgeSeconds() >= 0
+                || response.header(HttpConsts.EXPIRES) != null
+                || response.header(HttpConsts.ETAG) != null
+                || response.header(HttpConsts.LAST_MODIFIED) != null;
+    }
+
+    /**
+     * values of request headers listed in Vary of the response
+     */
+    private static Headers varyValues(final Request request, final Headers responseHeaders) {
+        final Headers.Builder builder = new Headers.Builder();
+        for (String vary : responseHeaders.values(HttpConsts.VARY)) {
+            for (String name : vary.split(",")) {
+                final String field = name.trim();
+                if (field.length() == 0) {
+                    continue;
+                }
+                for (String value : request.headers(field)) {
+                    builder.add(field, value);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * RFC 7234 section 4.3.4, headers of 304 replace the stored ones
+     */
+    private static Headers merge(final Headers stored, final Headers network) {
+        final Headers.Builder builder = new Headers.Builder();
+        for (int i = 0; i < stored.size(); i++) {
+            final String name = stored.name(i);
+            if (network.get(name) == null || HttpConsts.CONTENT_LENGTH.equalsIgnoreCase(name)
+                    || HttpConsts.CONTENT_ENCODING.equalsIgnoreCase(name)
+                    || HttpConsts.CONTENT_TYPE.equalsIgnoreCase(name)) {
+                builder.add(name, stored.value(i));
+            }
+        }
+        for (int i = 0; i < network.size(); i++) {
+            final String name = network.name(i);
+            if (!HttpConsts.CONTENT_LENGTH.equalsIgnoreCase(name)
+                    && !HttpConsts.CONTENT_ENCODING.equalsIgnoreCase(name)
+                    && !HttpConsts.CONTENT_TYPE.equalsIgnoreCase(name)) {
+                builder.add(name, network.value(i));
+            }
+        }
+        return builder.build();
+    }
+
+    static final class Entry {
+        final int code;
+        final String message;
+        final Headers headers;
+        final Headers varyValues;
+        final byte[] body;
+        final long sentAt;
+        final long receivedAt;
+
+        Entry(final int code, final String message, final Headers headers,
+              final Headers varyValues, final byte[] body,
+              final long sentAt, final long receivedAt) {
+            this.code = code;
+            this.message = message;
+            this.headers = headers;
+            this.varyValues = varyValues;
+            this.body = body;
+            this.sentAt = sentAt;
+            this.receivedAt = receivedAt;
+        }
+
+        /**
+         * RFC 7234 section 4.2
+         */
+        boolean isFresh(final CacheControl requestControl, final long now) {
+            final CacheControl control = CacheControl.parse(headers);
+            if (control.noCache()) {
+                return false;
+            }
+            long age = currentAge(now);
+            long lifetime = freshnessLifetime(control);
+            if (requestControl.maxAgeSeconds() >= 0) {
+                lifetime = Math.min(lifetime, requestControl.maxAgeSeconds() * 1000L);
+            }
+            if (requestControl.minFreshSeconds() >= 0) {
+                age += requestControl.minFreshSeconds() * 1000L;
+            }
+            long maxStale = 0;
+            if (!control.mustRevalidate() && requestControl.maxStaleSeconds() >= 0) {
+                maxStale = requestControl.maxStaleSeconds() * 1000L;
+            }
+            return age < lifetime + maxStale;
+        }
+
+        long freshnessLifetime(final CacheControl control) {
+            if (control.maxAgeSeconds() >= 0) {
+                return control.maxAgeSeconds() * 1000L;
+            }
+            final Date date = headers.getDate(HttpConsts.DATE);
+            final long served = date == null ? receivedAt : date.getTime();
+            final Date expires = headers.getDate(HttpConsts.EXPIRES);
+            if (expires != null) {
+                return Math.max(0, expires.getTime() - served);
+            }
+            if (headers.get(HttpConsts.EXPIRES) != null) {
+                // invalid date, such as "0", means already expired
+                return 0;
+            }
+            final Date lastModified = headers.getDate(HttpConsts.LAST_MODIFIED);
+            if (lastModified != null && served > lastModified.getTime()) {
+                // heuristic, 10% of the time since last modification (section 4.2.2)
+                return (served - lastModified.getTime()) / 10;
+            }
+            return 0;
+        }
+
+        long currentAge(final long now) {
+            final Date date = headers.getDate(HttpConsts.DATE);
+            final long apparentAge = date == null ? 0 : Math.max(0, receivedAt - date.getTime());
+            long ageValue = 0;
+            final String age = headers.get("Age");
+            if (age != null) {
+                try {
+                    ageValue = Long.parseLong(age.trim()) * 1000L;
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            final long correctedInitialAge = Math.max(apparentAge, ageValue) + (receivedAt - sentAt);
+            return correctedInitialAge + (now - receivedAt);
+        }
+
+        /**
+         * RFC 7232 section 6, If-Modified-Since is ignored if If-None-Match is present
+         */
+        boolean isNotModified(final Request request) {
+            final String ifNoneMatch = request.header(HttpConsts.IF_NONE_MATCH);
+            if (ifNoneMatch != null) {
+                final String etag = headers.get(HttpConsts.ETAG);
+                if (etag == null) {
+                    return false;
+                }
+                for (String tag : ifNoneMatch.split(",")) {
+                    final String value = tag.trim();
+                    // weak comparison
+                    if ("*".equals(value) || weak(value).equals(weak(etag))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            final Date since = request.headers().getDate(HttpConsts.IF_MODIFIED_SINCE);
+            final Date lastModified = headers.getDate(HttpConsts.LAST_MODIFIED);
+            return since != null && lastModified != null
+                    && lastModified.getTime() <= since.getTime();
+        }
+
+        private static String weak(final String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+
+        Response notModified(final Request request) {
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(304)
+                    .message("Not Modified")
+                    .headers(headers)
+                    .body(ResponseBody.create(null, HttpConsts.NO_BODY))
+                    .sentRequestAtMillis(sentAt)
+                    .receivedResponseAtMillis(receivedAt)
+                    .build();
+        }
+
+        Response response(final Request request, final Headers responseHeaders) {
+            final String contentType = responseHeaders.get(HttpConsts.CONTENT_TYPE);
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(code)
+                    .message(message)
+                    .headers(responseHeaders)
+                    .body(ResponseBody.create(contentType == null ? null
+                            : MediaType.parse(contentType), body))
+                    .sentRequestAtMillis(sentAt)
+                    .receivedResponseAtMillis(receivedAt)
+                    .build();
+        }
+
+        byte[] toBytes() throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length + 512);
+            final DataOutputStream output = new DataOutputStream(bos);
+            output.writeInt(ENTRY_MAGIC);
+            output.writeInt(ENTRY_VERSION);
+            output.writeInt(code);
+            output.writeUTF(message);
+            output.writeLong(sentAt);
+            output.writeLong(receivedAt);
+            writeHeaders(output, headers);
+            writeHeaders(output, varyValues);
+            output.writeInt(body.length);
+            output.write(body);
+            output.flush();
+            return bos.toByteArray();
+        }
+
+        static Entry read(final byte[] data) throws IOException {
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            if (input.readInt() != ENTRY_MAGIC || input.readInt() != ENTRY_VERSION) {
+                throw new IOException("invalid cache entry");
+            }
+            final int code = input.readInt();
+            final String message = input.readUTF();
+            final long sentAt = input.readLong();
+            final long receivedAt = input.readLong();
+            final Headers headers = readHeaders(input);
+            final Headers varyValues = readHeaders(input);
+            final int length = input.readInt();
+            if (length < 0 || length > data.length) {
+                throw new IOException("invalid body length: " + length);
+            }
+            final byte[] body = new byte[length];
+            input.readFully(body);
+            return new Entry(code, message, headers, varyValues, body, sentAt, receivedAt);
+        }
+
+        private static void writeHeaders(final DataOutputStream output, final Headers headers)
+                throws IOException {
+            output.writeInt(headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                output.writeUTF(headers.name(i));
+                output.writeUTF(headers.value(i));
+            }
+        }
+
+        private static Headers readHeaders(final DataInputStream input) throws IOException {
+            final int count = input.readInt();
+            if (count < 0) {
+                throw new IOException("invalid header count: " + count);
+            }
+            final Headers.Builder builder = new Headers.Builder();
+            for (int i = 0; i < count; i++) {
+                builder.addUnsafeNonAscii(input.readUTF(), input.readUTF());
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.mcxiaoke.next.http;
+
+import android.os.SystemClock;
+import com.mcxiaoke.next.http.job.HttpJob;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of calls running at the same time, in total and for each host,
+ * jobs waiting for a slot are granted in priority order. Waiting jobs are aged, each
+ * aging interval of waiting counts as one priority level, so low priority jobs still
+ * make progress. The effective priority {@code priority + waited / aging} is compared
+ * through the fixed key {@code queuedAt - priority * aging}, smaller key first.
+ * <p/>
+ * Each host has its own waiting queue, a free slot goes to the host whose first job has
+ * the highest effective priority level, hosts at the same level are served round-robin,
+ * so a burst of requests to one host does not stall requests to other hosts.
+ * <p/>
+ * Jobs either wait for a slot on their thread, or register a task run when
+ * the slot is granted, without holding a thread while waiting. Jobs waiting on
+ * their threads are only ordered here if there are more threads than maxRequests,
+ * else they are granted at once and wait in the queue of the executor instead.
+ * Times are from {@link SystemClock#elapsedRealtime()}, wall clock changes do not
+ * reorder waiting jobs.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 16:30
+ */
+final class HttpDispatcher {
+
+    static final int MAX_REQUESTS_DEFAULT = 16;
+    static final int MAX_REQUESTS_PER_HOST_DEFAULT = 6;
+    static final long AGING_MILLIS_DEFAULT = 2000L;
+
+    static final class Host {
+        final String name;
+        final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>();
+        int running;
+        /**
+         * round in which the host was last granted a slot
+         */
+        long served;
+
+        Host(final String name) {
+            this.name = name;
+        }
+    }
+
+    static final class Waiter implements Comparable<Waiter> {
+        final HttpJob<?> job;
+        final Host host;
+        final long queuedAt;
+        final long sequence;
+        final Condition granted;
+        final Runnable onGranted;
+        long key;
+        boolean ready;
+
+        Waiter(final HttpJob<?> job, final Host host, final long queuedAt, final long sequence,
+               final Condition granted, final Runnable onGranted) {
+            this.job = job;
+            this.host = host;
+            this.queuedAt = queuedAt;
+            this.sequence = sequence;
+            this.granted = granted;
+            this.onGranted = onGranted;
+        }
+
+        @Override
+        public int compareTo(final Waiter other) {
+            if (key != other.key) {
+                return key < other.key ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Map<String, Host> mHosts = new LinkedHashMap<String, Host>();
+    private final Map<HttpJob<?>, Waiter> mWaiters = new IdentityHashMap<HttpJob<?>, Waiter>();
+    private int mMaxRequests = MAX_REQUESTS_DEFAULT;
+    private int mMaxRequestsPerHost = MAX_REQUESTS_PER_HOST_DEFAULT;
+    private long mAgingMillis = AGING_MILLIS_DEFAULT;
+    private int mRunning;
+    private long mSequence;
+    private long mRound;
+
+    void setMaxRequests(final int maxRequests) {
+        if (maxRequests <= 0) {
+            throw new IllegalArgumentException("maxRequests <= 0");
+        }
+        final List<Runnable> granted;
+        mLock.lock();
+        try {
+            mMaxRequests = maxRequests;
+            granted = grant();
+        } finally {
+            mLock.unlock();
+        }
+        run(granted);
+    }
+
+    int getMaxRequests() {
+        mLock.lock();
+        try {
+            return mMaxRequests;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void setMaxRequestsPerHost(final int maxRequestsPerHost) {
+        if (maxRequestsPerHost <= 0) {
+            throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+        }
+        final List<Runnable> granted;
+        mLock.lock();
+        try {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            granted = grant();
+        } finally {
+            mLock.unlock();
+        }
+        run(granted);
+    }
+
+    int getMaxRequestsPerHost() {
+        mLock.lock();
+        try {
+            return mMaxRequestsPerHost;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @param agingMillis waiting time worth one priority level, applies to jobs queued later
+     */
+    void setAgingMillis(final long agingMillis) {
+        if (agingMillis <= 0) {
+            throw new IllegalArgumentException("agingMillis <= 0");
+        }
+        mLock.lock();
+        try {
+            mAgingMillis = agingMillis;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * wait for a slot, must be followed by {@link #release(HttpJob)} if returned normally
+     *
+     * @throws InterruptedException if the job is cancelled while waiting
+     */
+    void acquire(final HttpJob<?> job) throws InterruptedException {
+        List<Runnable> granted = null;
+        mLock.lock();
+        try {
+            final Host host = hostOf(job);
+            // slots are granted eagerly, waiting jobs of other hosts are not eligible
+            if (mRunning < mMaxRequests && host.running < mMaxRequestsPerHost
+                    && host.waiting.isEmpty()) {
+                mRunning++;
+                host.running++;
+                return;
+            }
+            final Waiter waiter = new Waiter(job, host, SystemClock.elapsedRealtime(),
+                    mSequence++, mLock.newCondition(), null);
+            waiter.key = keyOf(waiter, job.getPriority());
+            host.waiting.add(waiter);
+            mWaiters.put(job, waiter);
+            try {
+                while (!waiter.ready) {
+                    waiter.granted.await();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.ready) {
+                    // granted while interrupted, pass the slot on
+                    granted = releaseLocked(job);
+                } else {
+                    host.waiting.remove(waiter);
+                    removeWaiter(waiter);
+                    removeIfIdle(host);
+                }
+                throw e;
+            }
+        } finally {
+            mLock.unlock();
+            run(granted);
+        }
+    }
+
+    /**
+     * run the task when a slot is granted, at once on this thread if a slot is free,
+     * else on the thread releasing a slot, must be followed by {@link #release(HttpJob)}
+     * after the task ran, or by {@link #cancel(HttpJob)} if cancelled before
+     */
+    void acquireAsync(final HttpJob<?> job, final Runnable onGranted) {
+        mLock.lock();
+        try {
+            final Host host = hostOf(job);
+            if (mRunning >= mMaxRequests || host.running >= mMaxRequestsPerHost
+                    || !host.waiting.isEmpty()) {
+                final Waiter waiter = new Waiter(job, host, SystemClock.elapsedRealtime(),
+                        mSequence++, null, onGranted);
+                waiter.key = keyOf(waiter, job.getPriority());
+                host.waiting.add(waiter);
+                mWaiters.put(job, waiter);
+                return;
+            }
+            mRunning++;
+            host.running++;
+        } finally {
+            mLock.unlock();
+        }
+        onGranted.run();
+    }
+
+    /**
+     * remove a job waiting for a slot
+     *
+     * @return false if the job is not waiting, it holds a slot or never asked for one
+     */
+    boolean cancel(final HttpJob<?> job) {
+        mLock.lock();
+        try {
+            final Waiter waiter = mWaiters.get(job);
+            if (waiter == null) {
+                return false;
+            }
+            waiter.host.waiting.remove(waiter);
+            removeWaiter(waiter);
+            removeIfIdle(waiter.host);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void release(final HttpJob<?> job) {
+        final List<Runnable> granted;
+        mLock.lock();
+        try {
+            granted = releaseLocked(job);
+        } finally {
+            mLock.unlock();
+        }
+        run(granted);
+    }
+
+    /**
+     * move a waiting job to the position of its new priority, no effect if not waiting
+     *
+     * @return true if the job is waiting
+     */
+    boolean setPriority(final HttpJob<?> job, final int priority) {
+        mLock.lock();
+        try {
+            final Waiter waiter = mWaiters.get(job);
+            if (waiter == null) {
+                return false;
+            }
+            waiter.host.waiting.remove(waiter);
+            waiter.key = keyOf(waiter, priority);
+            waiter.host.waiting.add(waiter);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getRunningCount() {
+        mLock.lock();
+        try {
+            return mRunning;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getWaitingCount() {
+        mLock.lock();
+        try {
+            int count = 0;
+            for (Host host : mHosts.values()) {
+                count += host.waiting.size();
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getRunningCount(final String host) {
+        mLock.lock();
+        try {
+            final Host h = mHosts.get(host);
+            return h == null ? 0 : h.running;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getWaitingCount(final String host) {
+        mLock.lock();
+        try {
+            final Host h = mHosts.get(host);
+            return h == null ? 0 : h.waiting.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of waiting jobs of each host with waiting jobs
+     */
+    Map<String, Integer> getWaitingCounts() {
+        mLock.lock();
+        try {
+            final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+            for (Host host : mHosts.values()) {
+                if (!host.waiting.isEmpty()) {
+                    counts.put(host.name, host.waiting.size());
+                }
+            }
+            return counts;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private long keyOf(final Waiter waiter, final int priority) {
+        return waiter.queuedAt - priority * mAgingMillis;
+    }
+
+    private List<Runnable> releaseLocked(final HttpJob<?> job) {
+        final Host host = mHosts.get(hostName(job));
+        mRunning--;
+        if (host != null) {
+            host.running--;
+            removeIfIdle(host);
+        }
+        return grant();
+    }
+
+    /**
+     * @return tasks of async jobs granted, run them without holding the lock
+     */
+    private List<Runnable> grant() {
+        List<Runnable> granted = null;
+        final long now = SystemClock.elapsedRealtime();
+        while (mRunning < mMaxRequests) {
+            final Host host = nextHost(now);
+            if (host == null) {
+                break;
+            }
+            final Waiter waiter = host.waiting.poll();
+            removeWaiter(waiter);
+            waiter.ready = true;
+            mRunning++;
+            host.running++;
+            host.served = ++mRound;
+            if (waiter.onGranted != null) {
+                if (granted == null) {
+                    granted = new ArrayList<Runnable>();
+                }
+                granted.add(waiter.onGranted);
+            } else {
+                waiter.granted.signal();
+            }
+        }
+        return granted;
+    }
+
+    private static void run(final List<Runnable> tasks) {
+        if (tasks != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * host under its limit with the highest level of first job,
+     * least recently served host if levels are equal
+     */
+    private Host nextHost(final long now) {
+        Host next = null;
+        long nextLevel = 0;
+        for (Host host : mHosts.values()) {
+            if (host.running >= mMaxRequestsPerHost || host.waiting.isEmpty()) {
+                continue;
+            }
+            final long level = floorDiv(now - host.waiting.peek().key, mAgingMillis);
+            if (next == null || level > nextLevel
+                    || (level == nextLevel && host.served < next.served)) {
+                next = host;
+                nextLevel = level;
+            }
+        }
+        return next;
+    }
+
+    private Host hostOf(final HttpJob<?> job) {
+        final String name = hostName(job);
+        Host host = mHosts.get(name);
+        if (host == null) {
+            host = new Host(name);
+            mHosts.put(name, host);
+        }
+        return host;
+    }
+
+    private void removeIfIdle(final Host host) {
+        if (host.running == 0 && host.waiting.isEmpty()) {
+            mHosts.remove(host.name);
+        }
+    }
+
+    private static String hostName(final HttpJob<?> job) {
+        return job.request.url().host();
+    }
+
+    private static long floorDiv(final long x, final long y) {
+        final long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private void removeWaiter(final Waiter waiter) {
+        if (mWaiters.get(waiter.job) == waiter) {
+            mWaiters.remove(waiter.job);
+        }
+    }
+}
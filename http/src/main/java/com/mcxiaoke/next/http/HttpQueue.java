@@ -1,6 +1,8 @@
 package com.mcxiaoke.next.http;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Pair;
 import com.google.gson.Gson;
@@ -25,11 +27,17 @@ import com.mcxiaoke.next.task.TaskCallable;
 import com.mcxiaoke.next.task.TaskCallback;
 import com.mcxiaoke.next.task.TaskQueue;
 import com.mcxiaoke.next.utils.LogUtils;
+import com.mcxiaoke.next.utils.ThreadUtils;
 import okhttp3.OkHttpClient;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 /**
  * User: mcxiaoke
@@ -48,11 +56,20 @@ public class HttpQueue {
 
     private static final String TAG = HttpQueue.class.getSimpleName();
     private static final int NUM_THREADS_DEFAULT = 0;
+    private static final int DECODE_THREADS_DEFAULT = 2;
 
     private TaskQueue mQueue;
     private NextClient mClient;
     private Gson mGson;
     private boolean mDebug;
+    private final RequestCoalescer mCoalescer = new RequestCoalescer();
+    private final HttpDispatcher mDispatcher = new HttpDispatcher();
+    private volatile boolean mCoalescing;
+    private final ConcurrentMap<String, AsyncHttpCall<?>> mAsyncCalls =
+            new ConcurrentHashMap<String, AsyncHttpCall<?>>();
+    private volatile boolean mAsync;
+    private Executor mDecodeExecutor;
+    private Executor mCallbackExecutor;
 
     public HttpQueue() {
         this(createQueue(), new NextClient());
@@ -94,6 +111,18 @@ public class HttpQueue {
         mGson = gson;
     }
 
+    /**
+     * identical GET/HEAD jobs in flight share one call and one transformed result,
+     * jobs are identical if method, url, headers and transformer are equal,
+     * callbacks run for each job with the same result and must not modify it,
+     * jobs with processors or {@link ResponseTransformer} are not coalesced, disabled by default
+     *
+     * @param coalescing true to share calls of identical jobs
+     */
+    public void setCoalescing(final boolean coalescing) {
+        mCoalescing = coalescing;
+    }
+
     public NextClient getClient() {
         return mClient;
     }
@@ -106,17 +135,138 @@ public class HttpQueue {
         return mGson;
     }
 
+    /**
+     * in async mode calls are started by OkHttp {@link okhttp3.Call#enqueue(okhttp3.Callback)},
+     * no thread of task queue is held while waiting or during the network round trip,
+     * bodies up to 256KB are read on OkHttp threads, transformers and processors run on
+     * the decode executor and read larger bodies there, callbacks are
+     * called on main thread as before. Identical requests are not coalesced in async mode,
+     * OkHttp dispatcher of the client runs calls and applies its own limits too.
+     *
+     * @param async true to start jobs added later in async mode
+     */
+    public void setAsync(final boolean async) {
+        mAsync = async;
+    }
+
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * @param executor executor for transformers and processors in async mode,
+     *                 default is a pool of 2 threads, use more threads if many responses
+     *                 are larger than 256KB, their bodies are read from network there
+     */
+    public synchronized void setDecodeExecutor(final Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor must not be null.");
+        }
+        mDecodeExecutor = executor;
+    }
+
+    /**
+     * at most maxRequests jobs run at the same time, others wait in priority order,
+     * a waiting job is raised one priority level for each aging interval it waits,
+     * jobs not in async mode wait on threads of the task queue, they are only ordered
+     * if the queue has more threads than maxRequests, else they run in the order the
+     * queue starts them, the default queue is unbounded
+     *
+     * @param maxRequests max running jobs, default is 16
+     */
+    public void setMaxRequests(final int maxRequests) {
+        mDispatcher.setMaxRequests(maxRequests);
+    }
+
+    public int getMaxRequests() {
+        return mDispatcher.getMaxRequests();
+    }
+
+    /**
+     * requests to one host are limited separately, free slots are shared
+     * round-robin by hosts with waiting jobs of the same priority level
+     *
+     * @param maxRequestsPerHost max running jobs of each host, default is 6
+     */
+    public void setMaxRequestsPerHost(final int maxRequestsPerHost) {
+        mDispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    public int getMaxRequestsPerHost() {
+        return mDispatcher.getMaxRequestsPerHost();
+    }
+
+    /**
+     * @param agingMillis waiting time worth one priority level, default is 2000ms
+     */
+    public void setAgingMillis(final long agingMillis) {
+        mDispatcher.setAgingMillis(agingMillis);
+    }
+
+    /**
+     * change priority of a job, a waiting job is moved to its new position,
+     * eg. raise priority of an image request when the item scrolls into view
+     *
+     * @return true if the job was waiting for a slot
+     */
+    public boolean setPriority(final HttpJob<?> job, final int priority) {
+        job.setPriority(priority);
+        return mDispatcher.setPriority(job, priority);
+    }
+
+    /**
+     * @return number of jobs running network calls
+     */
+    public int getRunningCount() {
+        return mDispatcher.getRunningCount();
+    }
+
+    /**
+     * @return number of jobs waiting for a slot
+     */
+    public int getWaitingCount() {
+        return mDispatcher.getWaitingCount();
+    }
+
+    public int getRunningCount(final String host) {
+        return mDispatcher.getRunningCount(host);
+    }
+
+    public int getWaitingCount(final String host) {
+        return mDispatcher.getWaitingCount(host);
+    }
+
+    /**
+     * @return queue depth of each host with waiting jobs
+     */
+    public Map<String, Integer> getWaitingCounts() {
+        return mDispatcher.getWaitingCounts();
+    }
+
     public void cancelAll(Object caller) {
+        for (AsyncHttpCall<?> call : mAsyncCalls.values()) {
+            if (call.job.caller == caller) {
+                call.cancel();
+            }
+        }
         mQueue.cancelAll(caller);
     }
 
     public void cancel(String name) {
         if (name != null) {
-            mQueue.cancel(name);
+            final AsyncHttpCall<?> call = mAsyncCalls.get(name);
+            if (call != null) {
+                call.cancel();
+            } else {
+                mQueue.cancel(name);
+            }
         }
     }
 
     public void cancelAll() {
+        for (AsyncHttpCall<?> call : mAsyncCalls.values()) {
+            call.cancel();
+        }
         mQueue.cancelAll();
     }
 
@@ -180,6 +330,10 @@ public class HttpQueue {
         if (mDebug) {
             LogUtils.v(TAG, "[HttpJob][Enqueue]" + job.request.url() + " " + Thread.currentThread());
         }
+        if (mAsync) {
+            return new AsyncHttpCall<T>(job, mClient, mDispatcher, getDecodeExecutor(),
+                    getCallbackExecutor(), mAsyncCalls, mDebug).start();
+        }
         final TaskCallable<Pair<NextResponse, T>> callable =
                 new TaskCallable<Pair<NextResponse, T>>() {
                     @Override
@@ -191,6 +345,37 @@ public class HttpQueue {
     }
 
     private <T> Pair<NextResponse, T> performRequest(final HttpJob<T> job)
+            throws Exception {
+        final Pair<NextResponse, T> result;
+        if (mCoalescing && RequestCoalescer.canCoalesce(job)) {
+            result = mCoalescer.execute(new RequestCoalescer.Key(job.request, job.transformer),
+                    new Callable<Pair<NextResponse, T>>() {
+                        @Override
+                        public Pair<NextResponse, T> call() throws Exception {
+                            return dispatch(job);
+                        }
+                    });
+        } else {
+            result = dispatch(job);
+        }
+        invokeProcessors(result.second, job.getProcessors());
+        return result;
+    }
+
+    /**
+     * wait for a slot of dispatcher, only jobs running calls hold slots
+     */
+    private <T> Pair<NextResponse, T> dispatch(final HttpJob<T> job)
+            throws Exception {
+        mDispatcher.acquire(job);
+        try {
+            return performCall(job);
+        } finally {
+            mDispatcher.release(job);
+        }
+    }
+
+    private <T> Pair<NextResponse, T> performCall(final HttpJob<T> job)
             throws IOException, HttpException {
         long start = SystemClock.elapsedRealtime();
         final NextResponse nextResponse = mClient.execute(job.request);
@@ -200,7 +385,6 @@ public class HttpQueue {
         }
         // final T response = mClient.execute(job.request,job.transformer);
         final T response = job.transformer.transform(nextResponse);
-        invokeProcessors(response, job.getProcessors());
         if (mDebug) {
             LogUtils.v(TAG, "[HttpJob][Perform] in "
                     + (SystemClock.elapsedRealtime() - start) + "ms " + nextResponse);
@@ -249,6 +433,38 @@ public class HttpQueue {
         };
     }
 
+    private synchronized Executor getDecodeExecutor() {
+        if (mDecodeExecutor == null) {
+            mDecodeExecutor = ThreadUtils.newFixedThreadPool("http-decode", DECODE_THREADS_DEFAULT);
+        }
+        return mDecodeExecutor;
+    }
+
+    /**
+     * callbacks of async jobs are posted to main thread by default, for tests
+     *
+     * @param executor executor for callbacks in async mode
+     */
+    synchronized void setCallbackExecutor(final Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor must not be null.");
+        }
+        mCallbackExecutor = executor;
+    }
+
+    private synchronized Executor getCallbackExecutor() {
+        if (mCallbackExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mCallbackExecutor = new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return mCallbackExecutor;
+    }
+
     private static TaskQueue createQueue() {
         return TaskQueue.concurrent(NUM_THREADS_DEFAULT);
     }
@@ -4,6 +4,7 @@ import android.util.Log;
 import com.mcxiaoke.next.http.transformer.HttpTransformer;
 import com.mcxiaoke.next.utils.AssertUtils;
 import com.mcxiaoke.next.utils.LogUtils;
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -32,6 +33,7 @@ public final class NextClient {
     private OkHttpClient mClient;
     private Map<String, String> mParams;
     private Map<String, String> mHeaders;
+    private HttpCache mCache;
 
     public NextClient() {
         this(new OkHttpClient());
@@ -60,6 +62,18 @@ public final class NextClient {
         return mClient;
     }
 
+    /**
+     * @param cache response cache, null to disable
+     */
+    public NextClient setCache(final HttpCache cache) {
+        mCache = cache;
+        return this;
+    }
+
+    public HttpCache getCache() {
+        return mCache;
+    }
+
     public Map<String, String> getHeaders() {
         return mHeaders;
     }
@@ -340,19 +354,38 @@ public final class NextClient {
 
     public Response sendRequest(final NextRequest request)
             throws IOException {
+        final OkHttpClient client = createClient(request);
+        return sendOkRequest(createOkRequest(request), client, request.isDebug());
+    }
+
+    /**
+     * create a call for async execution by {@link Call#enqueue(okhttp3.Callback)},
+     * same configuration as {@link #sendRequest(NextRequest)}
+     */
+    public Call newCall(final NextRequest request) throws IOException {
+        return createClient(request).newCall(createOkRequest(request));
+    }
+
+    private OkHttpClient createClient(final NextRequest request) {
         final OkHttpClient.Builder builder = mClient.newBuilder();
         if (mDebug || request.isDebug()) {
             LogUtils.v(NextClient.TAG, "[sendRequest] " + request);
             logHttpCurl(request);
             builder.addNetworkInterceptor(new LoggingInterceptor());
         }
-        final OkHttpClient client = builder.build();
-        return sendOkRequest(createOkRequest(request), client, request.isDebug());
+        if (mCache != null) {
+            builder.addInterceptor(mCache);
+        }
+        return builder.build();
     }
 
     public Response sendRequest(final Request request)
             throws IOException {
-        final OkHttpClient client = mClient.newBuilder().build();
+        final OkHttpClient.Builder builder = mClient.newBuilder();
+        if (mCache != null) {
+            builder.addInterceptor(mCache);
+        }
+        final OkHttpClient client = builder.build();
         if (mDebug) {
             Log.v(NextClient.TAG, "Sending " + request);
         }
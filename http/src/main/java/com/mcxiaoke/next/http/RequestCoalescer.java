@@ -0,0 +1,172 @@
+package com.mcxiaoke.next.http;
+
+import android.util.Pair;
+import com.mcxiaoke.next.http.job.HttpJob;
+import com.mcxiaoke.next.http.transformer.HttpTransformer;
+import com.mcxiaoke.next.http.transformer.ResponseTransformer;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces identical requests in flight into one network call, the first job
+ * runs the call on its own thread, later jobs with an equal key wait for its
+ * transformed result. If the running job is cancelled, waiting jobs start a new call,
+ * so cancellation of each job stays independent. All jobs of a call get the same
+ * result instance, callbacks must not modify it.
+ * <p/>
+ * User: mcxiaoke
+ * Date: 27/10/18
+ * Time: 15:10
+ */
+final class RequestCoalescer {
+
+    /**
+     * method, url, headers and transformer, transformers are compared by equals
+     */
+    static final class Key {
+        final HttpMethod method;
+        final String url;
+        final Map<String, String> headers;
+        final HttpTransformer<?> transformer;
+
+        Key(final NextRequest request, final HttpTransformer<?> transformer) {
+            this.method = request.method();
+            this.url = request.url().toString();
+            this.headers = new HashMap<String, String>(request.headers());
+            this.transformer = transformer;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return method == key.method
+                    && url.equals(key.url)
+                    && headers.equals(key.headers)
+                    && transformer.equals(key.transformer);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = method.hashCode();
+            result = 31 * result + url.hashCode();
+            result = 31 * result + headers.hashCode();
+            result = 31 * result + transformer.hashCode();
+            return result;
+        }
+    }
+
+    static final class Flight<T> extends FutureTask<Pair<NextResponse, T>> {
+        /**
+         * set before the result, if the running job was cancelled
+         */
+        volatile boolean abandoned;
+
+        Flight(final Callable<Pair<NextResponse, T>> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void setException(final Throwable t) {
+            // called on the running thread, before waiting jobs are released
+            if (Thread.currentThread().isInterrupted()
+                    || t instanceof InterruptedException
+                    || t instanceof InterruptedIOException) {
+                abandoned = true;
+            }
+            super.setException(t);
+        }
+    }
+
+    private final Map<Key, Flight<?>> mFlights = new HashMap<Key, Flight<?>>();
+
+    /**
+     * only safe requests without body, the transformed result is shared, so jobs
+     * with processors, which may modify it, run their own calls, and the response
+     * of {@link ResponseTransformer} has a body readable only once
+     */
+    static boolean canCoalesce(final HttpJob<?> job) {
+        final HttpMethod method = job.request.method();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            return false;
+        }
+        if (job.transformer instanceof ResponseTransformer) {
+            return false;
+        }
+        final List<?> processors = job.getProcessors();
+        return processors == null || processors.isEmpty();
+    }
+
+    /**
+     * @return result of the call, run by this job or by another job with equal key
+     */
+    @SuppressWarnings("unchecked")
+    <T> Pair<NextResponse, T> execute(final Key key, final Callable<Pair<NextResponse, T>> call)
+            throws Exception {
+        while (true) {
+            Flight<T> flight;
+            boolean running = false;
+            synchronized (mFlights) {
+                flight = (Flight<T>) mFlights.get(key);
+                if (flight == null) {
+                    flight = new Flight<T>(call);
+                    mFlights.put(key, flight);
+                    running = true;
+                }
+            }
+            if (running) {
+                try {
+                    flight.run();
+                } finally {
+                    synchronized (mFlights) {
+                        if (mFlights.get(key) == flight) {
+                            mFlights.remove(key);
+                        }
+                    }
+                }
+            }
+            try {
+                return flight.get();
+            } catch (ExecutionException e) {
+                if (!running && flight.abandoned) {
+                    // interrupted by cancel of the running job, not a real failure,
+                    // may still be in the map until the running job removes it
+                    synchronized (mFlights) {
+                        if (mFlights.get(key) == flight) {
+                            mFlights.remove(key);
+                        }
+                    }
+                    continue;
+                }
+                final Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    int size() {
+        synchronized (mFlights) {
+            return mFlights.size();
+        }
+    }
+}
@@ -17,11 +17,16 @@ import java.util.List;
  */
 public class HttpJob<T> {
 
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
     public final NextRequest request;
     public final HttpTransformer<T> transformer;
     public final HttpCallback<T> callback;
     public final Object caller;
     private List<HttpProcessor<T>> processors;
+    private volatile int priority = PRIORITY_NORMAL;
 
     public HttpJob(final NextRequest request,
                    final HttpTransformer<T> transformer,
@@ -60,6 +65,21 @@ public class HttpJob<T> {
         return processors;
     }
 
+    /**
+     * priority of a job added to queue is changed by {@link HttpQueue#setPriority(HttpJob, int)}
+     *
+     * @param priority {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL}, {@link #PRIORITY_HIGH}
+     *                 or any other int, higher runs first
+     */
+    public HttpJob<T> setPriority(final int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
     public String execute(final HttpQueue queue) {
         return queue.add(this);
     }
@@ -76,6 +96,7 @@ public class HttpJob<T> {
                 ", callback=" + callback +
                 ", processors=" + processors +
                 ", caller=" + caller +
+                ", priority=" + priority +
                 '}';
     }
 }
@@ -14,6 +14,7 @@ public class HttpJobBuilder<T> {
     private HttpCallback<T> mCallback;
     private Object mCaller;
     public List<HttpProcessor<T>> mProcessors;
+    private int mPriority = HttpJob.PRIORITY_NORMAL;
 
     public HttpJobBuilder<T> request(final NextRequest request) {
         mRequest = request;
@@ -45,7 +46,13 @@ public class HttpJobBuilder<T> {
         return this;
     }
 
+    public HttpJobBuilder<T> priority(final int priority) {
+        mPriority = priority;
+        return this;
+    }
+
     public HttpJob<T> create() {
-        return new HttpJob<T>(mRequest, mTransformer, mCallback, mProcessors, mCaller);
+        return new HttpJob<T>(mRequest, mTransformer, mCallback, mProcessors, mCaller)
+                .setPriority(mPriority);
     }
 }
\ No newline at end of file
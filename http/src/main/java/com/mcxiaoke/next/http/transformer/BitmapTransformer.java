@@ -16,4 +16,14 @@ public class BitmapTransformer implements HttpTransformer<Bitmap> {
     public Bitmap transform(final NextResponse response) throws IOException {
         return BitmapFactory.decodeStream(response.stream());
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
 }
@@ -27,4 +27,14 @@ public class FileTransformer implements HttpTransformer<File> {
         }
         throw new IOException("can not save file: " + file);
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof FileTransformer && file.equals(((FileTransformer) o).file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
 }
@@ -35,4 +35,21 @@ public class GsonTransformer<T> implements HttpTransformer<T> {
             return gson.fromJson(response.reader(), type);
         }
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GsonTransformer)) {
+            return false;
+        }
+        final GsonTransformer<?> that = (GsonTransformer<?>) o;
+        return gson == that.gson && type.equals(that.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(gson) + type.hashCode();
+    }
 }
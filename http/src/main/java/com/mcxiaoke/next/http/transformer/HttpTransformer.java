@@ -5,6 +5,10 @@ import com.mcxiaoke.next.http.NextResponse;
 import java.io.IOException;
 
 /**
+ * Transformers should implement equals if equal instances give equal results,
+ * {@link com.mcxiaoke.next.http.HttpQueue} shares one call and one result
+ * between identical requests only if their transformers are equal.
+ * <p/>
  * User: mcxiaoke
  * Date: 15/8/21
  * Time: 12:24
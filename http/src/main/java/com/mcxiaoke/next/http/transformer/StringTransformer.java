@@ -14,4 +14,14 @@ public class StringTransformer implements HttpTransformer<String> {
     public String transform(final NextResponse response) throws IOException {
         return response.string();
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o != null && o.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
 }
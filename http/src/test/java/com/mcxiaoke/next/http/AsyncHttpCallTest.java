@@ -0,0 +1,225 @@
+package com.mcxiaoke.next.http;
+
+import com.mcxiaoke.next.http.callback.HttpCallback;
+import com.mcxiaoke.next.http.exception.HttpException;
+import com.mcxiaoke.next.http.transformer.StringTransformer;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 19:10
+ */
+public class AsyncHttpCallTest extends BaseTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private MockWebServer mServer;
+    private HttpQueue mQueue;
+
+    static class Recorder implements HttpCallback<String> {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> response = new AtomicReference<String>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void handleResponse(final String result) {
+            response.set(result);
+            calls.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public boolean handleException(final Throwable throwable) {
+            error.set(throwable);
+            calls.incrementAndGet();
+            done.countDown();
+            return true;
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+        // a dropped connection fails the call, not retried
+        mQueue = new HttpQueue(new OkHttpClient.Builder().retryOnConnectionFailure(false).build());
+        mQueue.setAsync(true);
+        mQueue.setDecodeExecutor(DIRECT);
+        // main thread handler does nothing in unit tests
+        mQueue.setCallbackExecutor(DIRECT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private String add(final String path, final Recorder recorder) {
+        return mQueue.add(NextRequest.get(mServer.url(path).toString()),
+                new StringTransformer(), recorder, this);
+    }
+
+    /**
+     * release runs after the callback on failures, wait for it
+     */
+    private void awaitIdle() throws InterruptedException {
+        for (int i = 0; i < 200 && mQueue.getRunningCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        isEquals(0, mQueue.getRunningCount());
+        isEquals(0, mQueue.getWaitingCount());
+    }
+
+    private void awaitRequests(final int count) throws InterruptedException {
+        for (int i = 0; i < 200 && mServer.getRequestCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        isEquals(count, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("hello"));
+        final Recorder recorder = new Recorder();
+        final String name = add("/ok", recorder);
+        isTrue(name.startsWith("async|"));
+        isTrue(recorder.await());
+        isEquals("hello", recorder.response.get());
+        isNull(recorder.error.get());
+        isEquals(1, recorder.calls.get());
+        awaitIdle();
+    }
+
+    @Test
+    public void testHttpError() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(500).setBody("error"));
+        final Recorder recorder = new Recorder();
+        add("/error", recorder);
+        isTrue(recorder.await());
+        isTrue(recorder.error.get() instanceof HttpException);
+        isNull(recorder.response.get());
+        isEquals(1, recorder.calls.get());
+        awaitIdle();
+    }
+
+    @Test
+    public void testIoFailure() throws Exception {
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        final Recorder recorder = new Recorder();
+        add("/io", recorder);
+        isTrue(recorder.await());
+        isTrue(recorder.error.get() instanceof IOException);
+        isEquals(1, recorder.calls.get());
+        awaitIdle();
+    }
+
+    @Test
+    public void testCancelWhileWaitingForSlot() throws Exception {
+        mQueue.setMaxRequests(1);
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        final Recorder running = new Recorder();
+        final Recorder waiting = new Recorder();
+        final String first = add("/first", running);
+        awaitRequests(1);
+        final String second = add("/second", waiting);
+        isEquals(1, mQueue.getRunningCount());
+        isEquals(1, mQueue.getWaitingCount());
+        mQueue.cancel(second);
+        isEquals(1, mQueue.getRunningCount());
+        isEquals(0, mQueue.getWaitingCount());
+        mQueue.cancel(first);
+        awaitIdle();
+        // the waiting job never reached the server
+        isEquals(1, mServer.getRequestCount());
+        isEquals(0, running.calls.get());
+        isEquals(0, waiting.calls.get());
+    }
+
+    @Test
+    public void testCancelInFlight() throws Exception {
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        final Recorder recorder = new Recorder();
+        final String name = add("/slow", recorder);
+        awaitRequests(1);
+        isEquals(1, mQueue.getRunningCount());
+        mQueue.cancel(name);
+        awaitIdle();
+        isFalse(recorder.await());
+        isEquals(0, recorder.calls.get());
+    }
+
+    @Test
+    public void testSlotReleasedOnce() throws Exception {
+        mQueue.setMaxRequests(1);
+        mServer.enqueue(new MockResponse().setBody("a"));
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        final Recorder[] recorders = {new Recorder(), new Recorder(), new Recorder()};
+        for (int i = 0; i < recorders.length; i++) {
+            add("/" + i, recorders[i]);
+        }
+        for (Recorder recorder : recorders) {
+            isTrue(recorder.await());
+        }
+        awaitIdle();
+        // a slot released twice would let two jobs run at once
+        mServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        add("/slow", new Recorder());
+        add("/next", new Recorder());
+        isEquals(1, mQueue.getRunningCount());
+        isEquals(1, mQueue.getWaitingCount());
+        mQueue.cancelAll(this);
+        awaitIdle();
+    }
+
+    @Test
+    public void testLargeBody() throws Exception {
+        final int length = (int) AsyncHttpCall.MAX_BUFFERED_BODY * 2 + 100;
+        final char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        final String body = new String(chars);
+        // requests may reach the server in any order
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) {
+                return new MockResponse().setBody("/large".equals(request.getPath()) ? body : "small");
+            }
+        });
+        final Recorder large = new Recorder();
+        final Recorder small = new Recorder();
+        add("/large", large);
+        add("/small", small);
+        isTrue(large.await());
+        isTrue(small.await());
+        isEquals(body, large.response.get());
+        isEquals("small", small.response.get());
+        awaitIdle();
+    }
+}
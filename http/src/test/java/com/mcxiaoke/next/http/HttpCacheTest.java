@@ -0,0 +1,203 @@
+package com.mcxiaoke.next.http;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import com.mcxiaoke.next.cache.DiscCache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 10:20
+ */
+public class HttpCacheTest extends BaseTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private HttpCache mCache;
+    private OkHttpClient mClient;
+
+    private static Context newContext(final File cacheDir) {
+        return new ContextWrapper(null) {
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.start();
+        mCache = new HttpCache(new DiscCache(newContext(mFolder.getRoot()), "http", DiscCache.MODE_INTERNAL));
+        mClient = new OkHttpClient.Builder().addInterceptor(mCache).build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    private Response get(final String path, final String... headers) throws IOException {
+        final Request.Builder builder = new Request.Builder().url(mServer.url(path));
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.header(headers[i], headers[i + 1]);
+        }
+        return mClient.newCall(builder.build()).execute();
+    }
+
+    private String body(final String path, final String... headers) throws IOException {
+        final Response response = get(path, headers);
+        try {
+            return response.body().string();
+        } finally {
+            response.close();
+        }
+    }
+
+    private int code(final String path) throws IOException {
+        final Response response = get(path);
+        response.close();
+        return response.code();
+    }
+
+    @Test
+    public void testFreshResponseIsServedFromCache() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A").addHeader("Cache-Control", "max-age=60"));
+        mServer.enqueue(new MockResponse().setBody("B"));
+        isEquals("A", body("/fresh"));
+        isEquals("A", body("/fresh"));
+        isEquals(1, mServer.getRequestCount());
+        isEquals(1L, mCache.hitCount());
+    }
+
+    @Test
+    public void testNoStoreIsNotCached() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A").addHeader("Cache-Control", "no-store"));
+        mServer.enqueue(new MockResponse().setBody("B"));
+        isEquals("A", body("/nostore"));
+        isEquals("B", body("/nostore"));
+        isEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testVaryHeaderSelectsEntry() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("en")
+                .addHeader("Cache-Control", "max-age=60").addHeader("Vary", "Accept-Language"));
+        mServer.enqueue(new MockResponse().setBody("fr")
+                .addHeader("Cache-Control", "max-age=60").addHeader("Vary", "Accept-Language"));
+        isEquals("en", body("/vary", "Accept-Language", "en"));
+        isEquals("fr", body("/vary", "Accept-Language", "fr"));
+        isEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testNotModifiedMergesHeaders() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A")
+                .addHeader("ETag", "\"v1\"").addHeader("X-Version", "1"));
+        mServer.enqueue(new MockResponse().setResponseCode(304).addHeader("X-Version", "2"));
+        isEquals("A", body("/etag"));
+        final Response response = get("/etag");
+        try {
+            isEquals(200, response.code());
+            isEquals("2", response.header("X-Version"));
+            isEquals("A", response.body().string());
+        } finally {
+            response.close();
+        }
+        final RecordedRequest first = mServer.takeRequest();
+        final RecordedRequest second = mServer.takeRequest();
+        isNull(first.getHeader("If-None-Match"));
+        isEquals("\"v1\"", second.getHeader("If-None-Match"));
+        isEquals(1L, mCache.revalidateCount());
+    }
+
+    @Test
+    public void testCallerConditionalGetsNotModified() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A").addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+        isEquals("A", body("/conditional"));
+        final Response response = get("/conditional", "If-None-Match", "\"v1\"");
+        try {
+            isEquals(304, response.code());
+            isEquals("", response.body().string());
+        } finally {
+            response.close();
+        }
+        isEquals(0L, mCache.revalidateCount());
+    }
+
+    @Test
+    public void testCallerConditionalAnsweredByFreshEntry() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A")
+                .addHeader("ETag", "\"v1\"").addHeader("Cache-Control", "max-age=60"));
+        isEquals("A", body("/conditional-fresh"));
+        final Response notModified = get("/conditional-fresh", "If-None-Match", "W/\"v1\"");
+        try {
+            isEquals(304, notModified.code());
+        } finally {
+            notModified.close();
+        }
+        isEquals("A", body("/conditional-fresh", "If-None-Match", "\"v0\""));
+        isEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testPostInvalidatesEntry() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("A").addHeader("Cache-Control", "max-age=60"));
+        mServer.enqueue(new MockResponse().setBody("ok"));
+        mServer.enqueue(new MockResponse().setBody("B").addHeader("Cache-Control", "max-age=60"));
+        isEquals("A", body("/post"));
+        final Request post = new Request.Builder().url(mServer.url("/post"))
+                .post(RequestBody.create(null, "x")).build();
+        mClient.newCall(post).execute().close();
+        isEquals("B", body("/post"));
+        isEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testNegativeCacheRepeatsNotFound() throws Exception {
+        mCache.setNegativeCache(10, 60 * 1000L);
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        mServer.enqueue(new MockResponse().setResponseCode(410));
+        mServer.enqueue(new MockResponse().setBody("A"));
+        isEquals(404, code("/missing"));
+        isEquals(404, code("/missing"));
+        isEquals(1, mServer.getRequestCount());
+        isEquals(410, code("/gone"));
+        isEquals(410, code("/gone"));
+        isEquals(2, mServer.getRequestCount());
+        // no-cache goes to network and forgets the url on success
+        isEquals("A", body("/missing", "Cache-Control", "no-cache"));
+        mServer.enqueue(new MockResponse().setBody("B"));
+        isEquals("B", body("/missing"));
+        isEquals(4, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testNegativeCacheSkipsNoStore() throws Exception {
+        mCache.setNegativeCache(10, 60 * 1000L);
+        mServer.enqueue(new MockResponse().setResponseCode(404).addHeader("Cache-Control", "no-store"));
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+        isEquals(404, code("/nostore-missing"));
+        isEquals(404, code("/nostore-missing"));
+        isEquals(2, mServer.getRequestCount());
+    }
+}
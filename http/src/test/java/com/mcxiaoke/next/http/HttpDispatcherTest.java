@@ -0,0 +1,231 @@
+package com.mcxiaoke.next.http;
+
+import com.mcxiaoke.next.http.job.HttpJob;
+import com.mcxiaoke.next.http.transformer.HttpTransformer;
+import com.mcxiaoke.next.http.transformer.StringTransformer;
+import com.mcxiaoke.next.task.TaskQueue;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 11:40
+ */
+public class HttpDispatcherTest extends BaseTest {
+
+    private final List<String> mStarted = new ArrayList<String>();
+
+    private HttpJob<String> job(final String host, final int priority) {
+        return new HttpJob<String>(NextRequest.get("http://" + host + "/"),
+                new StringTransformer(), null, this).setPriority(priority);
+    }
+
+    private void acquire(final HttpDispatcher dispatcher, final HttpJob<String> job,
+                         final String name) {
+        dispatcher.acquireAsync(job, new Runnable() {
+            @Override
+            public void run() {
+                mStarted.add(name);
+            }
+        });
+    }
+
+    @Test
+    public void testWaitingJobsRunInPriorityOrder() {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(1);
+        final HttpJob<String> a = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> low = job("a.com", HttpJob.PRIORITY_LOW);
+        final HttpJob<String> high = job("a.com", HttpJob.PRIORITY_HIGH);
+        final HttpJob<String> normal = job("a.com", HttpJob.PRIORITY_NORMAL);
+        acquire(dispatcher, a, "a");
+        acquire(dispatcher, low, "low");
+        acquire(dispatcher, high, "high");
+        acquire(dispatcher, normal, "normal");
+        isEquals(1, dispatcher.getRunningCount());
+        isEquals(3, dispatcher.getWaitingCount());
+        dispatcher.release(a);
+        dispatcher.release(high);
+        dispatcher.release(normal);
+        isEquals(Arrays.asList("a", "high", "normal", "low"), mStarted);
+        dispatcher.release(low);
+        isEquals(0, dispatcher.getRunningCount());
+        isEquals(0, dispatcher.getWaitingCount());
+    }
+
+    @Test
+    public void testSetPriorityMovesWaitingJob() {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(1);
+        final HttpJob<String> a = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> b = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> c = job("a.com", HttpJob.PRIORITY_LOW);
+        acquire(dispatcher, a, "a");
+        acquire(dispatcher, b, "b");
+        acquire(dispatcher, c, "c");
+        isTrue(dispatcher.setPriority(c, HttpJob.PRIORITY_HIGH));
+        isFalse(dispatcher.setPriority(a, HttpJob.PRIORITY_HIGH));
+        dispatcher.release(a);
+        dispatcher.release(c);
+        isEquals(Arrays.asList("a", "c", "b"), mStarted);
+    }
+
+    @Test
+    public void testCancelWaitingJob() {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(1);
+        final HttpJob<String> a = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> b = job("a.com", HttpJob.PRIORITY_NORMAL);
+        acquire(dispatcher, a, "a");
+        acquire(dispatcher, b, "b");
+        isTrue(dispatcher.cancel(b));
+        isFalse(dispatcher.cancel(a));
+        dispatcher.release(a);
+        isEquals(Arrays.asList("a"), mStarted);
+        isEquals(0, dispatcher.getRunningCount());
+        isEquals(0, dispatcher.getWaitingCount());
+    }
+
+    @Test
+    public void testHostsAreServedRoundRobin() {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(1);
+        dispatcher.setMaxRequestsPerHost(1);
+        final HttpJob<String> a0 = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> a1 = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> a2 = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> b1 = job("b.com", HttpJob.PRIORITY_NORMAL);
+        acquire(dispatcher, a0, "a0");
+        acquire(dispatcher, a1, "a1");
+        acquire(dispatcher, a2, "a2");
+        acquire(dispatcher, b1, "b1");
+        isEquals(2, (int) dispatcher.getWaitingCounts().get("a.com"));
+        isEquals(1, dispatcher.getWaitingCount("b.com"));
+        dispatcher.release(a0);
+        dispatcher.release(a1);
+        dispatcher.release(b1);
+        isEquals(Arrays.asList("a0", "a1", "b1", "a2"), mStarted);
+        isEquals(1, dispatcher.getRunningCount("a.com"));
+    }
+
+    @Test
+    public void testPerHostLimitLeavesSlotsToOtherHosts() {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(4);
+        dispatcher.setMaxRequestsPerHost(2);
+        final List<HttpJob<String>> images = new ArrayList<HttpJob<String>>();
+        for (int i = 0; i < 5; i++) {
+            final HttpJob<String> job = job("img.com", HttpJob.PRIORITY_NORMAL);
+            images.add(job);
+            acquire(dispatcher, job, "img" + i);
+        }
+        final HttpJob<String> api = job("api.com", HttpJob.PRIORITY_NORMAL);
+        acquire(dispatcher, api, "api");
+        isEquals(Arrays.asList("img0", "img1", "api"), mStarted);
+        isEquals(2, dispatcher.getRunningCount("img.com"));
+        isEquals(3, dispatcher.getWaitingCount("img.com"));
+        isEquals(3, dispatcher.getRunningCount());
+        dispatcher.release(api);
+        // free slots are not taken by a host at its limit
+        isEquals(2, dispatcher.getRunningCount());
+        dispatcher.release(images.get(0));
+        isEquals(Arrays.asList("img0", "img1", "api", "img2"), mStarted);
+        dispatcher.setMaxRequestsPerHost(4);
+        isEquals(4, dispatcher.getRunningCount("img.com"));
+        isEquals(0, dispatcher.getWaitingCount());
+        isTrue(dispatcher.getWaitingCounts().isEmpty());
+        for (int i = 1; i < 5; i++) {
+            dispatcher.release(images.get(i));
+        }
+        isEquals(0, dispatcher.getRunningCount("img.com"));
+    }
+
+    @Test
+    public void testBlockingAcquireWaitsForSlot() throws Exception {
+        final HttpDispatcher dispatcher = new HttpDispatcher();
+        dispatcher.setMaxRequests(1);
+        final HttpJob<String> a = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> b = job("a.com", HttpJob.PRIORITY_NORMAL);
+        final HttpJob<String> c = job("a.com", HttpJob.PRIORITY_NORMAL);
+        dispatcher.acquire(a);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    dispatcher.acquire(b);
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        final Thread interrupted = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    dispatcher.acquire(c);
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        waiting.start();
+        interrupted.start();
+        while (dispatcher.getWaitingCount() < 2) {
+            Thread.sleep(10);
+        }
+        interrupted.interrupt();
+        interrupted.join(5000);
+        isEquals(1, dispatcher.getWaitingCount());
+        isFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        dispatcher.release(a);
+        isTrue(acquired.await(5, TimeUnit.SECONDS));
+        isEquals(1, dispatcher.getRunningCount());
+        isEquals(0, dispatcher.getWaitingCount());
+        waiting.join(5000);
+    }
+
+    @Test
+    public void testQueueWithFewThreadsRunsJobs() throws Exception {
+        final MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("A"));
+        server.enqueue(new MockResponse().setBody("B"));
+        server.start();
+        try {
+            final HttpQueue queue = new HttpQueue(TaskQueue.concurrent(2));
+            final CountDownLatch done = new CountDownLatch(2);
+            final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+            // Pair of the result is a stub in unit tests, record in the transformer
+            final HttpTransformer<String> transformer = new HttpTransformer<String>() {
+                @Override
+                public String transform(final NextResponse response) throws IOException {
+                    results.add(response.string());
+                    done.countDown();
+                    return null;
+                }
+            };
+            queue.add(NextRequest.get(server.url("/a").toString()), transformer, null, this);
+            queue.add(NextRequest.get(server.url("/b").toString()), transformer, null, this);
+            isTrue(done.await(5, TimeUnit.SECONDS));
+            isEquals(2, results.size());
+            isTrue(results.contains("A") && results.contains("B"));
+            // slots are released after the transformer returns
+            for (int i = 0; i < 100 && queue.getRunningCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            isEquals(0, queue.getRunningCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
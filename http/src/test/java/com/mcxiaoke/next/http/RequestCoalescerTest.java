@@ -0,0 +1,136 @@
+package com.mcxiaoke.next.http;
+
+import android.util.Pair;
+import com.mcxiaoke.next.http.job.HttpJob;
+import com.mcxiaoke.next.http.processor.HttpProcessor;
+import com.mcxiaoke.next.http.transformer.ResponseTransformer;
+import com.mcxiaoke.next.http.transformer.StringTransformer;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: mcxiaoke
+ * Date: 28/10/18
+ * Time: 11:05
+ */
+public class RequestCoalescerTest extends BaseTest {
+
+    private static final String URL = "http://www.example.com/api";
+
+    private static RequestCoalescer.Key key(final NextRequest request) {
+        return new RequestCoalescer.Key(request, new StringTransformer());
+    }
+
+    @Test
+    public void testCanCoalesce() {
+        isTrue(RequestCoalescer.canCoalesce(new HttpJob<String>(NextRequest.get(URL),
+                new StringTransformer(), null, this)));
+        isTrue(RequestCoalescer.canCoalesce(new HttpJob<String>(NextRequest.head(URL),
+                new StringTransformer(), null, this)));
+        isFalse(RequestCoalescer.canCoalesce(new HttpJob<String>(NextRequest.post(URL),
+                new StringTransformer(), null, this)));
+        isFalse(RequestCoalescer.canCoalesce(new HttpJob<NextResponse>(NextRequest.get(URL),
+                new ResponseTransformer(), null, this)));
+        final HttpJob<String> processed = new HttpJob<String>(NextRequest.get(URL),
+                new StringTransformer(), null, this);
+        processed.addProcessor(new HttpProcessor<String>() {
+            @Override
+            public void process(final String s) {
+            }
+        });
+        isFalse(RequestCoalescer.canCoalesce(processed));
+    }
+
+    @Test
+    public void testKeyEquals() {
+        isEquals(key(NextRequest.get(URL)), key(NextRequest.get(URL)));
+        isFalse(key(NextRequest.get(URL)).equals(key(NextRequest.head(URL))));
+        isFalse(key(NextRequest.get(URL)).equals(key(NextRequest.get(URL).header("X-Test", "1"))));
+    }
+
+    @Test
+    public void testEqualKeysShareOneCall() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Pair<NextResponse, String> result = new Pair<NextResponse, String>(null, "A");
+        final Callable<Pair<NextResponse, String>> call = new Callable<Pair<NextResponse, String>>() {
+            @Override
+            public Pair<NextResponse, String> call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return result;
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Pair<NextResponse, String>> first = executor.submit(
+                    execute(coalescer, call));
+            isTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<Pair<NextResponse, String>> second = executor.submit(
+                    execute(coalescer, call));
+            // let the second job join the running call
+            Thread.sleep(100);
+            release.countDown();
+            isTrue(first.get(5, TimeUnit.SECONDS) == result);
+            isTrue(second.get(5, TimeUnit.SECONDS) == result);
+            isEquals(1, calls.get());
+            isEquals(0, coalescer.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelledCallIsRunAgainByWaitingJob() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Pair<NextResponse, String> result = new Pair<NextResponse, String>(null, "B");
+        final Callable<Pair<NextResponse, String>> call = new Callable<Pair<NextResponse, String>>() {
+            @Override
+            public Pair<NextResponse, String> call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    started.countDown();
+                    // blocks until interrupted by cancel
+                    new CountDownLatch(1).await();
+                }
+                return result;
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Pair<NextResponse, String>> first = executor.submit(
+                    execute(coalescer, call));
+            isTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<Pair<NextResponse, String>> second = executor.submit(
+                    execute(coalescer, call));
+            Thread.sleep(100);
+            first.cancel(true);
+            isTrue(second.get(5, TimeUnit.SECONDS) == result);
+            isEquals(2, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Callable<Pair<NextResponse, String>> execute(
+            final RequestCoalescer coalescer,
+            final Callable<Pair<NextResponse, String>> call) {
+        return new Callable<Pair<NextResponse, String>>() {
+            @Override
+            public Pair<NextResponse, String> call() throws Exception {
+                return coalescer.execute(key(NextRequest.get(URL)), call);
+            }
+        };
+    }
+}